@@ -37,6 +37,7 @@ import java.util.zip.ZipOutputStream;
 import com.nothome.delta.Delta;
 import com.nothome.delta.DiffWriter;
 import com.nothome.delta.GDiffWriter;
+import com.nothome.delta.SuffixArrayDelta;
 
 
 /**
@@ -51,6 +52,27 @@ import com.nothome.delta.GDiffWriter;
  */
 public class JarDelta {
 
+    private long suffixArrayLimit = SuffixArrayDelta.DEFAULT_MAX_SIZE;
+
+    /**
+     * Entries up to this size are encoded with a {@link SuffixArrayDelta} if
+     * the free heap holds its index, larger ones with {@link Delta}.
+     *
+     * @param suffixArrayLimit size in bytes, 0 to always use {@link Delta}
+     */
+    public void setSuffixArrayLimit(long suffixArrayLimit) {
+        this.suffixArrayLimit = suffixArrayLimit;
+    }
+
+    /**
+     * <p>Getter for the field <code>suffixArrayLimit</code>.</p>
+     *
+     * @return a long.
+     */
+    public long getSuffixArrayLimit() {
+        return suffixArrayLimit;
+    }
+
 	/**
 	 * Computes the binary differences of two zip files. For all files contained in source and target which
 	 * are not equal, the binary difference is calculated by using
@@ -103,8 +125,12 @@ public class JarDelta {
                     if(!equal(sourceBytes,targetBytes)) {
         				ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
                         DiffWriter diffWriter = new GDiffWriter(new DataOutputStream(outputStream));
-        				Delta d = new Delta();
-        				d.compute(sourceBytes,target.getInputStream(targetEntry),diffWriter);
+                        if(useSuffixArray(sourceSize,targetSize)) {  // small entries: longest matches
+                            new SuffixArrayDelta().compute(sourceBytes,targetBytes,diffWriter,false);
+                        } else {
+                            Delta d = new Delta();
+                            d.compute(sourceBytes,target.getInputStream(targetEntry),diffWriter);
+                        }
                         diffWriter.close();
 
         				ZipEntry outputEntry = new ZipEntry(targetEntry.getName()+".gdiff");
@@ -125,6 +151,20 @@ public class JarDelta {
         }
 	}
 
+    /*
+     * True if the entries are small enough for a suffix array and the free
+     * heap holds its index
+     */
+    private boolean useSuffixArray(int sourceSize, int targetSize) {
+        if((sourceSize>suffixArrayLimit) || (targetSize>suffixArrayLimit)) {
+            return false;
+        }
+        Runtime runtime = Runtime.getRuntime();
+        long free = runtime.maxMemory()-(runtime.totalMemory()-runtime.freeMemory());
+        // source and target arrays are allocated already
+        return SuffixArrayDelta.memoryFor(sourceSize,targetSize)-sourceSize-targetSize < free;
+    }
+
 	/**
 	 * Test if the content of two byte arrays is completly identical.
 	 *
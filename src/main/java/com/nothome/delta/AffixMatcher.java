@@ -0,0 +1,174 @@
+/*
+ * #%L
+ * XDeltaEncoder
+ * %%
+ * Copyright (C) 2011 - 2012 Frantisek Mantlik <frantisek at mantlik.cz>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package com.nothome.delta;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Finds the common prefix and suffix of source and target files with bulk
+ * compares of memory mapped windows, so that only the differing middle of
+ * the target needs to go through {@link Delta}.
+ *
+ * @author kylestev
+ * @version $Id: $Id
+ */
+public class AffixMatcher {
+
+    /*
+     * Bytes mapped at once from each file
+     */
+    static final int WINDOW_SIZE = 1 << 26;
+
+    private AffixMatcher() {
+    }
+
+    /**
+     * Length of the common prefix of two files.
+     *
+     * @param source a {@link java.nio.channels.FileChannel} object.
+     * @param target a {@link java.nio.channels.FileChannel} object.
+     * @return a long.
+     * @throws java.io.IOException if any.
+     */
+    public static long commonPrefix(FileChannel source, FileChannel target) throws IOException {
+        long max = Math.min(source.size(), target.size());
+        long prefix = 0;
+        while (prefix < max) {
+            int len = (int) Math.min(WINDOW_SIZE, max - prefix);
+            ByteBuffer s = source.map(FileChannel.MapMode.READ_ONLY, prefix, len);
+            ByteBuffer t = target.map(FileChannel.MapMode.READ_ONLY, prefix, len);
+            int same = Delta.mismatch(s, 0, t, 0, len);
+            prefix += same;
+            if (same < len) {
+                break;
+            }
+        }
+        return prefix;
+    }
+
+    /**
+     * Length of the common suffix of two files, at most <code>max</code>
+     * bytes so that it does not overlap the common prefix.
+     *
+     * @param source a {@link java.nio.channels.FileChannel} object.
+     * @param target a {@link java.nio.channels.FileChannel} object.
+     * @param max a long.
+     * @return a long.
+     * @throws java.io.IOException if any.
+     */
+    public static long commonSuffix(FileChannel source, FileChannel target, long max) throws IOException {
+        max = Math.min(max, Math.min(source.size(), target.size()));
+        long suffix = 0;
+        while (suffix < max) {
+            int len = (int) Math.min(WINDOW_SIZE, max - suffix);
+            ByteBuffer s = source.map(FileChannel.MapMode.READ_ONLY, source.size() - suffix - len, len);
+            ByteBuffer t = target.map(FileChannel.MapMode.READ_ONLY, target.size() - suffix - len, len);
+            int same = mismatchBackward(s, t, len);
+            suffix += same;
+            if (same < len) {
+                break;
+            }
+        }
+        return suffix;
+    }
+
+    /**
+     * Whether a target starting with <code>prefix</code> bytes of the source
+     * is encoded as appended to it, indexing only the changed source tail of
+     * at most <code>maxTail</code> bytes. Otherwise the whole source is
+     * indexed as usual.
+     *
+     * @param sourceLength a long.
+     * @param prefix common prefix of source and target.
+     * @param maxTail a long.
+     * @return a boolean.
+     */
+    public static boolean isAppended(long sourceLength, long prefix, long maxTail) {
+        return sourceLength - prefix <= maxTail;
+    }
+
+    /**
+     * Encodes a target starting with <code>prefix</code> bytes of the
+     * source: the prefix is copied, the rest of target is matched against
+     * the source tail only, with copy offsets shifted to the whole source.
+     *
+     * @param delta a {@link com.nothome.delta.Delta} object.
+     * @param tail the source from <code>prefix</code> on.
+     * @param prefix common prefix of source and target.
+     * @param tailLength length of <code>tail</code>.
+     * @param rest the target from <code>prefix</code> on.
+     * @param output a {@link com.nothome.delta.DiffWriter} object, left open.
+     * @throws java.io.IOException if any.
+     */
+    public static void encodeAppended(Delta delta, SeekableSource tail, long prefix, long tailLength,
+            InputStream rest, DiffWriter output) throws IOException {
+        addCopy(output, 0, prefix);
+        if (tailLength == 0) {
+            // nothing to index, the rest of target is appended data
+            int b;
+            while ((b = rest.read()) >= 0) {
+                output.addData((byte) b);
+            }
+            return;
+        }
+        delta.compute(tail, rest, output, prefix, 0, false);
+    }
+
+    /**
+     * Adds a copy of any length, split where the writer requires it.
+     *
+     * @param output a {@link com.nothome.delta.DiffWriter} object.
+     * @param offset a long.
+     * @param length a long.
+     * @throws java.io.IOException if any.
+     */
+    public static void addCopy(DiffWriter output, long offset, long length) throws IOException {
+        while (length > 0) {
+            int len = (int) Math.min(length, Integer.MAX_VALUE);
+            output.addCopy(offset, len);
+            offset += len;
+            length -= len;
+        }
+    }
+
+    /*
+     * Number of equal trailing bytes of the first len bytes of two buffers
+     */
+    static int mismatchBackward(ByteBuffer a, ByteBuffer b, int len) {
+        int i = 0;
+        while (i + 8 <= len) {
+            long diff = a.getLong(len - i - 8) ^ b.getLong(len - i - 8);
+            if (diff != 0) {
+                // big endian, the last byte is the least significant one
+                return i + (Long.numberOfTrailingZeros(diff) >>> 3);
+            }
+            i += 8;
+        }
+        while ((i < len) && (a.get(len - i - 1) == b.get(len - i - 1))) {
+            i++;
+        }
+        return i;
+    }
+}
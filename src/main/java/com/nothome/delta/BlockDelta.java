@@ -0,0 +1,334 @@
+/*
+ * #%L
+ * XDeltaEncoder
+ * %%
+ * Copyright (C) 2011 - 2012 Frantisek Mantlik <frantisek at mantlik.cz>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package com.nothome.delta;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Block mode engine for data changed in aligned fixed-size blocks, such as
+ * raw disk and VM images.
+ * <p>
+ * Every aligned source block is hashed with a 64 bit hash into a table,
+ * then every aligned target block is looked up with a single probe (none
+ * if it equals the source block at the same offset). Adjacent matches are
+ * merged into one copy. Unmatched target blocks become data, or with
+ * {@link #setRefine(boolean)} are matched by {@link Delta} against the
+ * source around the same offset. Blocks are matched by their hash only,
+ * like chunks in {@link Delta#acceptHash} mode.
+ * <p>
+ * The output is standard GDIFF (or whatever the {@link DiffWriter} writes),
+ * so existing patchers apply it.
+ *
+ * @author kylestev
+ * @version $Id: $Id
+ */
+public class BlockDelta {
+
+    /** Constant <code>DEFAULT_BLOCK_SIZE=4096</code> */
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+    /*
+     * Unmatched target bytes refined at once
+     */
+    private static final int MAX_RUN = 1 << 20;
+    private static final long K1 = 0x9e3779b97f4a7c15L;
+    private static final long K2 = 0xc2b2ae3d27d4eb4fL;
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+    private boolean refine = false;
+    private int refineChunkSize = Delta.DEFAULT_CHUNK_SIZE;
+    private SeekableSource source;
+    private DiffWriter output;
+    private long[] hashes = new long[0];
+    private int blocks;
+    private long sourceLength;
+    private ChecksumIndex index;
+    private long copyOffset;
+    private long copyLength = 0;
+    private ByteArrayOutputStream run = new ByteArrayOutputStream();
+    private long runStart;
+    private Delta refiner;
+    /**
+     * Target bytes copied from matched blocks.
+     */
+    public long found = 0;
+
+    /**
+     * Size of the aligned blocks, a multiple of 8 is fastest.
+     *
+     * @param blockSize a int.
+     */
+    public void setBlockSize(int blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Invalid block size");
+        }
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * <p>Getter for the field <code>blockSize</code>.</p>
+     *
+     * @return a int.
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Matches unmatched target blocks with the rolling hash matcher of
+     * {@link Delta} against the source from one block before to one block
+     * after the same offset. Finds data shifted within a block at the cost
+     * of indexing that part of the source.
+     *
+     * @param refine a boolean.
+     */
+    public void setRefine(boolean refine) {
+        this.refine = refine;
+    }
+
+    /**
+     * <p>isRefine.</p>
+     *
+     * @return a boolean.
+     */
+    public boolean isRefine() {
+        return refine;
+    }
+
+    /**
+     * Chunk size of the {@link Delta} refining unmatched blocks.
+     *
+     * @param refineChunkSize a int.
+     */
+    public void setRefineChunkSize(int refineChunkSize) {
+        if (refineChunkSize < 1) {
+            throw new IllegalArgumentException("Invalid chunk size");
+        }
+        this.refineChunkSize = refineChunkSize;
+    }
+
+    /**
+     * <p>Getter for the field <code>refineChunkSize</code>.</p>
+     *
+     * @return a int.
+     */
+    public int getRefineChunkSize() {
+        return refineChunkSize;
+    }
+
+    /**
+     * Compares the source bytes with target bytes, returning GDIFF output.
+     *
+     * @param source an array of byte.
+     * @param target an array of byte.
+     * @return an array of byte.
+     * @throws java.io.IOException if any.
+     */
+    public byte[] compute(byte[] source, byte[] target) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        compute(new ByteBufferSeekableSource(source), new ByteArrayInputStream(target),
+                new GDiffWriter(os), true);
+        return os.toByteArray();
+    }
+
+    /**
+     * Compares the source with a target, writing to output.
+     *
+     * @param source a {@link com.nothome.delta.SeekableSource} object.
+     * @param target a {@link java.io.InputStream} object.
+     * @param output a {@link com.nothome.delta.DiffWriter} object.
+     * @param closeOutput a boolean.
+     * @throws java.io.IOException if any.
+     */
+    public void compute(SeekableSource source, InputStream target, DiffWriter output, boolean closeOutput)
+            throws IOException {
+        this.source = source;
+        this.output = output;
+        found = 0;
+        hashSource();
+        ByteBuffer tb = ByteBuffer.allocate(blockSize);
+        long offset = 0;
+        while (true) {
+            int n = fill(target, tb.array());
+            if (n <= 0) {
+                break;
+            }
+            long match = -1;
+            if (n == blockSize) {
+                long h = hash(tb, n);
+                long block = offset / blockSize;
+                if ((block < blocks) && (hashes[(int) block] == h)) {
+                    match = block;
+                } else {
+                    int i = index.get(key(h));
+                    if ((i >= 0) && (hashes[i] == h)) {
+                        match = i;
+                    }
+                }
+            }
+            if (match >= 0) {
+                flushRun();
+                addCopy(match * blockSize, n);
+                found += n;
+            } else {
+                if (run.size() == 0) {
+                    runStart = offset;
+                }
+                run.write(tb.array(), 0, n);
+                if (run.size() >= MAX_RUN) {
+                    flushRun();
+                }
+            }
+            offset += n;
+        }
+        flushRun();
+        flushCopy();
+        if (closeOutput) {
+            output.close();
+        } else {
+            output.flush();
+        }
+        hashes = new long[0];
+        index = null;
+    }
+
+    private void hashSource() throws IOException {
+        ByteBuffer sb = ByteBuffer.allocate(blockSize);
+        blocks = 0;
+        index = new ChecksumIndex();
+        source.seek(0);
+        while (true) {
+            sb.clear();
+            while (sb.hasRemaining() && (source.read(sb) > 0)) {
+            }
+            sourceLength = (long) blocks * blockSize + sb.position();
+            if (sb.position() < blockSize) {
+                break;  // a partial last block is never matched
+            }
+            if (blocks == hashes.length) {
+                long[] grown = new long[Math.max(1024, 2 * blocks)];
+                System.arraycopy(hashes, 0, grown, 0, blocks);
+                hashes = grown;
+            }
+            long h = hash(sb, blockSize);
+            hashes[blocks] = h;
+            if (index.get(key(h)) < 0) {
+                index.put(key(h), blocks);
+            }
+            blocks++;
+        }
+    }
+
+    /*
+     * Reads up to buf.length bytes, less only at the end of the stream
+     */
+    private static int fill(InputStream is, byte[] buf) throws IOException {
+        int n = 0;
+        while (n < buf.length) {
+            int r = is.read(buf, n, buf.length - n);
+            if (r < 0) {
+                break;
+            }
+            n += r;
+        }
+        return n;
+    }
+
+    private void addCopy(long offset, int length) throws IOException {
+        if ((copyLength > 0) && (copyOffset + copyLength == offset)
+                && (copyLength + length <= Integer.MAX_VALUE)) {
+            copyLength += length;
+            return;
+        }
+        flushCopy();
+        copyOffset = offset;
+        copyLength = length;
+    }
+
+    private void flushCopy() throws IOException {
+        if (copyLength > 0) {
+            output.addCopy(copyOffset, (int) copyLength);
+            copyLength = 0;
+        }
+    }
+
+    /*
+     * Writes the pending unmatched target bytes, refined if requested
+     */
+    private void flushRun() throws IOException {
+        if (run.size() == 0) {
+            return;
+        }
+        flushCopy();
+        byte[] data = run.toByteArray();
+        run.reset();
+        // source around the run, none if the run lies beyond the source end
+        long start = Math.min(Math.max(0, runStart - blockSize), sourceLength);
+        long end = Math.min(runStart + data.length + blockSize, sourceLength);
+        if (!refine || (end <= start)) {
+            for (int i = 0; i < data.length; i++) {
+                output.addData(data[i]);
+            }
+            return;
+        }
+        if (refiner == null) {
+            refiner = new Delta();
+            refiner.setIndexThreads(1);
+        }
+        refiner.setChunkSize(refineChunkSize);
+        ByteBuffer window = ByteBuffer.allocate((int) (end - start));
+        source.seek(start);
+        while (window.hasRemaining() && (source.read(window) > 0)) {
+        }
+        window.flip();
+        refiner.compute(new ByteBufferSeekableSource(window), new ByteArrayInputStream(data), output,
+                start, 0, false);
+        found += refiner.found;
+        refiner.found = 0;
+    }
+
+    private static int key(long h) {
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /*
+     * 64 bit hash of the first len bytes, 8 bytes per step
+     */
+    static long hash(ByteBuffer bb, int len) {
+        long h = len * K1;
+        int i = 0;
+        for (; i + 8 <= len; i += 8) {
+            h = Long.rotateLeft(h ^ (bb.getLong(i) * K2), 31) * K1;
+        }
+        for (; i < len; i++) {
+            h = Long.rotateLeft(h ^ ((bb.get(i) & 0xff) * K2), 31) * K1;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * #%L
+ * XDeltaEncoder
+ * %%
+ * Copyright (C) 2011 - 2012 Frantisek Mantlik <frantisek at mantlik.cz>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package com.nothome.delta;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * Checksum table grouping entries into buckets of one 64 byte cache line.
+ * <p>
+ * A bucket holds up to {@link #BUCKET_ENTRIES} keys, their values and an
+ * entry count in 16 ints, so a lookup usually costs a single cache miss
+ * where {@link ChecksumIndex} touches two arrays. Entries of a full bucket
+ * overflow to the next one (linear probing by buckets) and a lookup ends at
+ * the first bucket which is not full. Several values of one key are kept in
+ * probe order as in {@link ChecksumIndex}. Buckets are filled up to 6
+ * entries in average, about 11 bytes per entry.
+ *
+ * @author kylestev
+ * @version $Id: $Id
+ */
+public class BucketChecksumIndex implements ChecksumTable, Serializable {
+
+    /** Constant <code>BUCKET_ENTRIES=7</code> */
+    public static final int BUCKET_ENTRIES = 7;
+    static final int BUCKET_INTS = 16;
+    static final int VALUES = BUCKET_ENTRIES;
+    static final int COUNT = 2 * BUCKET_ENTRIES;
+    static final int MIN_BUCKETS = 1 << 7;
+    static final int MAX_BUCKETS = 1 << 26;
+    private int[] table;
+    private int mask;
+    private int size = 0;
+    private int threshold;
+
+    /**
+     * Creates an empty index which grows as entries are added.
+     */
+    public BucketChecksumIndex() {
+        this(0);
+    }
+
+    /**
+     * Creates an index able to hold <code>expectedEntries</code> without
+     * rehashing.
+     *
+     * @param expectedEntries a long.
+     */
+    public BucketChecksumIndex(long expectedEntries) {
+        allocate(bucketsFor(expectedEntries));
+    }
+
+    /**
+     * Number of buckets needed to store <code>entries</code> entries.
+     *
+     * @param entries a long.
+     * @return a int.
+     */
+    public static int bucketsFor(long entries) {
+        int buckets = MIN_BUCKETS;
+        while ((buckets < MAX_BUCKETS) && (6L * buckets < entries)) {
+            buckets <<= 1;
+        }
+        return buckets;
+    }
+
+    /**
+     * Heap bytes of an index sized for <code>entries</code> entries.
+     *
+     * @param entries a long.
+     * @return a long.
+     */
+    public static long memoryFor(long entries) {
+        return 4L * BUCKET_INTS * bucketsFor(entries);
+    }
+
+    private static int thresholdFor(int buckets) {
+        // a full-size table is allowed to fill up further rather than fail
+        return buckets == MAX_BUCKETS ? BUCKET_ENTRIES * buckets - buckets / 4 : 6 * buckets;
+    }
+
+    private void allocate(int buckets) {
+        table = new int[buckets * BUCKET_INTS];
+        mask = buckets - 1;
+        threshold = thresholdFor(buckets);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void ensureCapacity(long expectedEntries) {
+        int buckets = bucketsFor(expectedEntries);
+        if (buckets > mask + 1) {
+            rehash(buckets);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void put(int key, int value) {
+        add(key, value, 1);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void add(int key, int value, int limit) {
+        int b = ChecksumIndex.slot(key, mask);
+        int found = 0;
+        while (true) {
+            int base = b * BUCKET_INTS;
+            int count = table[base + COUNT];
+            for (int i = 0; i < count; i++) {
+                if ((table[base + i] == key) && (++found >= limit)) {
+                    table[base + VALUES + i] = value;
+                    return;
+                }
+            }
+            if (count < BUCKET_ENTRIES) {
+                if (size >= threshold) {
+                    if (mask + 1 == MAX_BUCKETS) {
+                        throw new IllegalStateException("Checksum index full (" + size + " entries).");
+                    }
+                    rehash((mask + 1) << 1);
+                    add(key, value, limit);
+                    return;
+                }
+                table[base + count] = key;
+                table[base + VALUES + count] = value;
+                table[base + COUNT] = count + 1;
+                size++;
+                return;
+            }
+            b = (b + 1) & mask;
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int get(int key) {
+        int b = ChecksumIndex.slot(key, mask);
+        while (true) {
+            int base = b * BUCKET_INTS;
+            int count = table[base + COUNT];
+            for (int i = 0; i < count; i++) {
+                if (table[base + i] == key) {
+                    return table[base + VALUES + i];
+                }
+            }
+            if (count < BUCKET_ENTRIES) {
+                return ChecksumIndex.EMPTY;
+            }
+            b = (b + 1) & mask;
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getAll(int key, int[] found) {
+        int b = ChecksumIndex.slot(key, mask);
+        int n = 0;
+        while (n < found.length) {
+            int base = b * BUCKET_INTS;
+            int count = table[base + COUNT];
+            for (int i = 0; (i < count) && (n < found.length); i++) {
+                if (table[base + i] == key) {
+                    found[n++] = table[base + VALUES + i];
+                }
+            }
+            if (count < BUCKET_ENTRIES) {
+                break;
+            }
+            b = (b + 1) & mask;
+        }
+        return n;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int prefetch(int key) {
+        return table[ChecksumIndex.slot(key, mask) * BUCKET_INTS + COUNT];
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean remove(int key, int value) {
+        int b = ChecksumIndex.slot(key, mask);
+        while (true) {
+            int base = b * BUCKET_INTS;
+            int count = table[base + COUNT];
+            for (int i = 0; i < count; i++) {
+                if ((table[base + i] == key) && (table[base + VALUES + i] == value)) {
+                    delete(b, i);
+                    return true;
+                }
+            }
+            if (count < BUCKET_ENTRIES) {
+                return false;
+            }
+            b = (b + 1) & mask;
+        }
+    }
+
+    /*
+     * Removes entry i of bucket b. If the bucket was full, the entries
+     * overflowing behind it are inserted again, as lookups stop at b now.
+     */
+    private void delete(int b, int i) {
+        int base = b * BUCKET_INTS;
+        int count = table[base + COUNT];
+        for (int j = i + 1; j < count; j++) {
+            table[base + j - 1] = table[base + j];
+            table[base + VALUES + j - 1] = table[base + VALUES + j];
+        }
+        table[base + COUNT] = count - 1;
+        size--;
+        if (count < BUCKET_ENTRIES) {
+            return;
+        }
+        int end = b;
+        int cluster = 0;
+        do {
+            end = (end + 1) & mask;
+            cluster += table[end * BUCKET_INTS + COUNT];
+        } while (table[end * BUCKET_INTS + COUNT] == BUCKET_ENTRIES);
+        int[] keys = new int[cluster];
+        int[] values = new int[cluster];
+        int n = 0;
+        for (int c = (b + 1) & mask; n < cluster; c = (c + 1) & mask) {
+            int cbase = c * BUCKET_INTS;
+            for (int j = 0; j < table[cbase + COUNT]; j++) {
+                keys[n] = table[cbase + j];
+                values[n++] = table[cbase + VALUES + j];
+            }
+            table[cbase + COUNT] = 0;
+        }
+        size -= cluster;
+        for (int j = 0; j < cluster; j++) {
+            add(keys[j], values[j], Integer.MAX_VALUE);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int removeValues(int from, int to) {
+        int before = size;
+        rebuild(mask + 1, from, to);
+        return before - size;
+    }
+
+    private void rehash(int buckets) {
+        rebuild(buckets, 0, 0);
+    }
+
+    /*
+     * Inserts all entries except those with values from..to-1 into a table
+     * of the given size, in probe order so that values of a key keep
+     * their order
+     */
+    private void rebuild(int buckets, int from, int to) {
+        int[] old = table;
+        int oldBuckets = mask + 1;
+        // start behind a bucket which is not full, no cluster wraps there
+        int start = 0;
+        while (old[start * BUCKET_INTS + COUNT] == BUCKET_ENTRIES) {
+            start++;
+        }
+        allocate(buckets);
+        size = 0;
+        for (int n = 1; n <= oldBuckets; n++) {
+            int base = ((start + n) & (oldBuckets - 1)) * BUCKET_INTS;
+            for (int i = 0; i < old[base + COUNT]; i++) {
+                int value = old[base + VALUES + i];
+                if ((value < from) || (value >= to)) {
+                    add(old[base + i], value, Integer.MAX_VALUE);
+                }
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int maxSize() {
+        return thresholdFor(MAX_BUCKETS);
+    }
+
+    /**
+     * Heap bytes currently used by the table.
+     *
+     * @return a long.
+     */
+    public long memoryUsage() {
+        return 4L * table.length;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The entries are copied to a flat table first, which takes additional
+     * memory while writing.
+     */
+    @Override
+    public void write(DataOutput out) throws IOException {
+        ChecksumIndex flat = new ChecksumIndex(size);
+        int start = 0;
+        while (table[start * BUCKET_INTS + COUNT] == BUCKET_ENTRIES) {
+            start++;
+        }
+        for (int n = 1; n <= mask + 1; n++) {
+            int base = ((start + n) & mask) * BUCKET_INTS;
+            for (int i = 0; i < table[base + COUNT]; i++) {
+                flat.add(table[base + i], table[base + VALUES + i], Integer.MAX_VALUE);
+            }
+        }
+        flat.write(out);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public ChecksumTable newTable() {
+        return new BucketChecksumIndex();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void clear() {
+        allocate(MIN_BUCKETS);
+        size = 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Returns a debug
+     * <code>String</code>.
+     */
+    @Override
+    public String toString() {
+        return "BucketChecksumIndex size=" + size + " buckets=" + (mask + 1);
+    }
+}
@@ -78,11 +78,11 @@ public class ByteBufferSeekableSource implements SeekableSource {
     public int read(ByteBuffer dest) throws IOException {
         if (!bb.hasRemaining())
             return -1;
-        int c = 0;
-        while (bb.hasRemaining() && dest.hasRemaining()) {
-            dest.put(bb.get());
-            c++;
-        }
+        int c = Math.min(bb.remaining(), dest.remaining());
+        ByteBuffer src = bb.duplicate();
+        src.limit(src.position() + c);
+        dest.put(src);
+        bb.position(bb.position() + c);
         return c;
     }
     
@@ -24,17 +24,30 @@
  */
 package com.nothome.delta;
 
-import gnu.trove.THashMap;
-import gnu.trove.TIntArrayList;
-import gnu.trove.TIntIntHashMap;
-import gnu.trove.decorator.TIntIntHashMapDecorator;
+import java.io.DataOutput;
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Checksum computation class.
+ * <p>
+ * The index is made of segments of at most {@link #SEGMENT_CHUNKS} chunks,
+ * each with its own table keeping int indexes relative to the segment, so
+ * the number of chunks of a source is only limited by a long.
+ * <p>
+ * Chunk <code>i</code> normally starts at source offset
+ * <code>i * chunkSize</code>. An index computed by
+ * {@link #computeAnchors(SeekableSource, int, int)} only holds the chunks at
+ * content defined boundaries, their offsets are given by
+ * {@link #offsetOf(long, int)}.
  *
  * @author kylestev
  * @version $Id: $Id
@@ -42,12 +55,48 @@ import java.util.Random;
 public class Checksum implements Serializable {
 
     static final boolean debug = false;
-    private THashMap<Integer, TIntIntHashMap> checksums = new THashMap<Integer, TIntIntHashMap>();
+    /** Constant <code>SEGMENT_CHUNKS=1 &lt;&lt; 29</code> */
+    public static final int SEGMENT_CHUNKS = 1 << 29;
+    private ChecksumTable checksums = new ChecksumIndex();
+    private ArrayList<Segment> segments = new ArrayList<Segment>();
+    private int segmentChunks = SEGMENT_CHUNKS;
+    private long expectedChunks = 0;
+    private long chunks = 0;
+    /*
+     * Source offsets of the chunks of a content defined index, null for
+     * chunks at fixed offsets
+     */
+    private long[] anchors = null;
+    private int maxAnchorGap = 0;
+    private transient int[] found = new int[0];
+    /*
+     * Chunks hashed by one task when computing in parallel
+     */
+    private static final int PARALLEL_CHUNKS = 1 << 12;
+    private transient int[] parallelKeys;
+    private transient int[] parallelTags;
     //private THashMap<Integer, TIntLongHashMap> repchecksums = new THashMap<Integer, TIntLongHashMap>();
     public long spos = 0;
-    TIntArrayList currentList = new TIntArrayList();
-    private int currentPosition = 0;
-    final int MAX_INDEXES = 100;
+    private int maxCandidates = 1;
+    private boolean filterEnabled = true;
+    /** Lookups rejected by the filter without probing the table. */
+    public transient long filterRejects = 0;
+    /** Lookups found in the table. */
+    public transient long hits = 0;
+    /** Lookups passing the filter but missing in the table, all misses without filter. */
+    public transient long falsePositives = 0;
+    /*
+     * 64 bit polynomial rolling hash, its high half or a fingerprint of the
+     * chunk is kept per chunk in tags to confirm table hits
+     */
+    private static final long RABIN_BASE = 0x100000001b3L;
+    private boolean hash64 = false;
+    private boolean strongFingerprint = false;
+    private long seed = 0;
+    private boolean seeded = false;
+    private long[] rabin_hash = null;
+    private transient long rabinPower;
+    private transient int rabinPowerSize = 0;
     private char single_hash[] = {
         /*
          * Random numbers generated using SLIB's pseudo-random number generator.
@@ -93,6 +142,8 @@ public class Checksum implements Serializable {
      */
     private Checksum(SeekableSource source, int chunkSize, long seed,
             boolean genHash) throws IOException {
+        this.seed = seed;
+        this.seeded = genHash;
         if (genHash) {
             Random random = new Random(seed);
             for (int i = 0; i < single_hash.length; i++) {
@@ -113,12 +164,15 @@ public class Checksum implements Serializable {
     public void init(SeekableSource source, int chunkSize) throws IOException {
         ByteBuffer bb = ByteBuffer.allocate(chunkSize * 2);
         //ByteBuffer cc = ByteBuffer.allocate(chunkSize * 2);
-        int count = 0;
+        long count = 0;
         int rep = 0;
         spos = 0;
         source.seek(0);
         while (true) {
-            spos += source.read(bb);
+            int read = source.read(bb);
+            if (read > 0) {
+                spos += read;
+            }
             bb.flip();
             if (bb.remaining() < chunkSize) {
                 break;
@@ -138,27 +192,628 @@ public class Checksum implements Serializable {
      *
      * @param bb a {@link java.nio.ByteBuffer} object.
      * @param chunkSize a int.
-     * @param count a int.
-     * @return a int.
+     * @param count index of the first chunk in <code>bb</code>.
+     * @return index of the next chunk.
+     * @throws java.io.IOException if any.
      */
-    public int compute(ByteBuffer bb, int chunkSize, int count) {
-        TIntIntHashMap map;
+    public long compute(ByteBuffer bb, int chunkSize, long count) throws IOException {
+        Segment segment = null;
         while (bb.remaining() >= chunkSize) {
-            long queryChecksum = queryChecksum0(bb, chunkSize);
-            int chu = ((int) (queryChecksum >> 32) & 0xffffffff);
-            int chs = (int) (queryChecksum & 0xffffffff);
-            //long chs = queryChecksum;
-            if (!checksums.contains(chu)) {
-                map = new TIntIntHashMap();
-                checksums.put(chu, map);
-            } else {  // duplicate checksum
-                map = checksums.get(chu);
-            }
-            map.put(chs, count++);
+            int start = bb.position();
+            long hashf = queryChecksum0(bb, chunkSize);
+            segment = add(segment, count++, key(hashf), tag(hashf, bb, start, chunkSize));
+        }
+        dropSaturatedFilter(segment);
+        return count;
+    }
+
+    /**
+     * Indexes the <code>chunkSize</code> bytes at each content defined chunk
+     * boundary of <code>source</code>, see {@link ContentDefinedChunker}.
+     * The rolling hash of the target still finds them at any offset, and
+     * since boundaries follow the content the chunks are found again after
+     * data is inserted or removed. With an average chunk size well above
+     * <code>chunkSize</code> the index is correspondingly smaller than one of
+     * fixed chunks.
+     *
+     * @param source a {@link com.nothome.delta.SeekableSource} object.
+     * @param chunkSize a int.
+     * @param averageSize average distance of boundaries.
+     * @return number of chunks indexed.
+     * @throws java.io.IOException if any.
+     */
+    public long computeAnchors(SeekableSource source, int chunkSize, int averageSize) throws IOException {
+        ContentDefinedChunker chunker = new ContentDefinedChunker(averageSize);
+        ByteBuffer bb = ByteBuffer.allocate(Math.max(1 << 16, chunkSize * 2));
+        bb.limit(0);
+        anchors = new long[(int) Math.min(Math.max(expectedChunks + 1, 1024), Integer.MAX_VALUE - 8)];
+        maxAnchorGap = 0;
+        long base = 0;
+        long count = 0;
+        boolean eof = false;
+        Segment segment = null;
+        spos = 0;
+        source.seek(0);
+        while (!eof) {
+            base += bb.position();
+            bb.compact();
+            int read = source.read(bb);
+            if (read > 0) {
+                spos += read;
+            } else {
+                eof = true;
+            }
+            bb.flip();
+            // a boundary is taken when the chunk following it is in buffer
+            int end = bb.limit() - chunkSize;
+            int pos = bb.position();
+            if ((count == 0) && (base == 0)) {
+                if (end < 0) {
+                    continue;
+                }
+                segment = addAnchor(segment, count++, 0, bb, 0, chunkSize);
+            }
+            while (pos < end) {
+                int next = chunker.next(bb, pos, end);
+                if (next < 0) {
+                    pos = end;
+                } else {
+                    segment = addAnchor(segment, count++, base + next, bb, next, chunkSize);
+                    maxAnchorGap = (int) Math.max(maxAnchorGap, Math.min(base + next - anchors[(int) count - 2], Integer.MAX_VALUE));
+                    pos = next;
+                }
+            }
+            bb.position(Math.max(pos, 0));
         }
+        dropSaturatedFilter(segment);
         return count;
     }
 
+    private Segment addAnchor(Segment segment, long count, long offset, ByteBuffer bb, int pos, int chunkSize) throws IOException {
+        if (count >= anchors.length) {
+            if (count >= Integer.MAX_VALUE - 8) {
+                throw new IOException("Too many chunks, use a larger average chunk size");
+            }
+            long[] grown = new long[(int) Math.min(2L * anchors.length, Integer.MAX_VALUE - 8)];
+            System.arraycopy(anchors, 0, grown, 0, anchors.length);
+            anchors = grown;
+        }
+        anchors[(int) count] = offset;
+        long hashf = checksumAt(bb, pos, chunkSize);
+        return add(segment, count, key(hashf), tag(hashf, bb, pos, chunkSize));
+    }
+
+    /**
+     * Adds the chunks at multiples of <code>chunkSize</code> between source
+     * offsets <code>from</code> and <code>to</code> to a sparse index, which
+     * only covers selected regions of the source. Chunks are numbered in the
+     * order they are added, see {@link #offsetOf(long, int)}.
+     *
+     * @param source a {@link com.nothome.delta.SeekableSource} object.
+     * @param chunkSize a int.
+     * @param from a long.
+     * @param to a long.
+     * @return number of chunks indexed.
+     * @throws java.io.IOException if any.
+     */
+    public long addChunks(SeekableSource source, int chunkSize, long from, long to) throws IOException {
+        checkSparse();
+        long first = (from + chunkSize - 1) / chunkSize * chunkSize;
+        if (to - first < chunkSize) {
+            return 0;
+        }
+        ByteBuffer bb = ByteBuffer.allocate((int) Math.min(to - first, Integer.MAX_VALUE - 8));
+        readChunk(source, first, bb);
+        bb.flip();
+        Segment segment = null;
+        long start = chunks;
+        long count = start;
+        for (int pos = 0; pos + chunkSize <= bb.limit(); pos += chunkSize) {
+            segment = addAnchor(segment, count++, first + pos, bb, pos, chunkSize);
+        }
+        dropSaturatedFilter(segment);
+        return count - start;
+    }
+
+    /**
+     * Adds the chunk at source offset <code>offset</code> to a sparse index,
+     * see {@link #addChunks(SeekableSource, int, long, long)}.
+     *
+     * @param source a {@link com.nothome.delta.SeekableSource} object.
+     * @param chunkSize a int.
+     * @param offset a long.
+     * @return false if the chunk is beyond the end of source.
+     * @throws java.io.IOException if any.
+     */
+    public boolean addChunk(SeekableSource source, int chunkSize, long offset) throws IOException {
+        checkSparse();
+        ByteBuffer bb = ByteBuffer.allocate(chunkSize);
+        if (!readChunk(source, offset, bb)) {
+            return false;
+        }
+        addAnchor(null, chunks, offset, bb, 0, chunkSize);
+        return true;
+    }
+
+    private void checkSparse() {
+        if (anchors == null) {
+            if (chunks > 0) {
+                throw new IllegalStateException("Chunks at fixed offsets cannot be extended by regions");
+            }
+            anchors = new long[(int) Math.min(Math.max(expectedChunks + 1, 1024), Integer.MAX_VALUE - 8)];
+        }
+    }
+
+    /**
+     * Source offset of chunk <code>index</code>.
+     *
+     * @param index a long.
+     * @param chunkSize chunk size the index was computed with.
+     * @return a long.
+     */
+    public long offsetOf(long index, int chunkSize) {
+        return anchors == null ? index * chunkSize : anchors[(int) index];
+    }
+
+    /**
+     * Whether the index was computed by
+     * {@link #computeAnchors(SeekableSource, int, int)}.
+     *
+     * @return a boolean.
+     */
+    public boolean isContentDefined() {
+        return anchors != null;
+    }
+
+    /**
+     * Largest distance of two consecutive chunks of a content defined index,
+     * 0 for chunks at fixed offsets. Data preceding a chunk is not found by
+     * its hash up to this many bytes.
+     *
+     * @return a int.
+     */
+    public int getMaxAnchorGap() {
+        return maxAnchorGap;
+    }
+
+    /**
+     * Indexes the chunks appended to <code>source</code> since the index was
+     * computed, reading only the new data. The chunk which was incomplete at
+     * the previous end of source is indexed as well.
+     *
+     * @param source a {@link com.nothome.delta.SeekableSource} object.
+     * @param chunkSize chunk size the index was computed with.
+     * @return number of chunks indexed.
+     * @throws java.io.IOException if any.
+     */
+    public long append(SeekableSource source, int chunkSize) throws IOException {
+        checkFixedChunks();
+        ByteBuffer bb = ByteBuffer.allocate(Math.max((1 << 16) / chunkSize, 2) * chunkSize);
+        long count = chunks;
+        spos = count * chunkSize;
+        source.seek(spos);
+        while (true) {
+            int read = source.read(bb);
+            if (read > 0) {
+                spos += read;
+            }
+            bb.flip();
+            if (bb.remaining() < chunkSize) {
+                break;
+            }
+            count = compute(bb, chunkSize, count);
+            bb.compact();
+        }
+        return count;
+    }
+
+    /**
+     * Re-indexes the chunks overlapping bytes <code>from</code> to
+     * <code>to</code> (exclusive) of a source changed in place. Old entries
+     * of these chunks are removed using their previous content read from
+     * <code>oldSource</code>. Without it the whole table is swept for them,
+     * unless the index uses {@link #setHash64(boolean)}: stale entries then
+     * stay in the table but fail confirmation, as the chunk tags are
+     * updated. Chunks beyond the indexed end are left to
+     * {@link #append(SeekableSource, int)}.
+     *
+     * @param source the changed {@link com.nothome.delta.SeekableSource}.
+     * @param oldSource the source the index was computed for, may be null.
+     * @param chunkSize chunk size the index was computed with.
+     * @param from a long.
+     * @param to a long.
+     * @throws java.io.IOException if any.
+     */
+    public void update(SeekableSource source, SeekableSource oldSource, int chunkSize, long from, long to) throws IOException {
+        checkFixedChunks();
+        long first = Math.max(from, 0) / chunkSize;
+        long last = Math.min((to + chunkSize - 1) / chunkSize, chunks);
+        if (first >= last) {
+            return;
+        }
+        if ((oldSource == null) && !hash64) {
+            for (long base = first - first % segmentChunks; base < last; base += segmentChunks) {
+                Segment segment = segments.get((int) (base / segmentChunks));
+                segment.table.removeValues((int) (Math.max(first, base) - base),
+                        (int) (Math.min(last, base + segmentChunks) - base));
+            }
+        }
+        ByteBuffer bb = ByteBuffer.allocate(chunkSize);
+        for (long i = first; i < last; i++) {
+            Segment segment = segments.get((int) (i / segmentChunks));
+            int index = (int) (i - segment.base);
+            if ((oldSource != null) && readChunk(oldSource, i * chunkSize, bb)) {
+                segment.table.remove(key(checksumAt(bb, 0, chunkSize)), index);
+            }
+            if (readChunk(source, i * chunkSize, bb)) {
+                long hashf = checksumAt(bb, 0, chunkSize);
+                int key = key(hashf);
+                if (hash64) {
+                    segment.addTag(index, tag(hashf, bb, 0, chunkSize));
+                }
+                segment.table.add(key, index, maxCandidates);
+                if (segment.filter != null) {
+                    segment.filter.add(key);
+                }
+            }
+        }
+    }
+
+    private void checkFixedChunks() {
+        if (anchors != null) {
+            throw new IllegalStateException("Content defined chunks cannot be updated");
+        }
+    }
+
+    private static boolean readChunk(SeekableSource source, long pos, ByteBuffer bb) throws IOException {
+        source.seek(pos);
+        bb.clear();
+        while (bb.hasRemaining() && (source.read(bb) > 0)) {
+            // fill chunk
+        }
+        return !bb.hasRemaining();
+    }
+
+    /**
+     * Same as {@link #compute(ByteBuffer, int, long)}, but the chunks are
+     * hashed on <code>pool</code>. Chunks are added in source order
+     * afterwards, so the index is identical to the one computed on a single
+     * thread.
+     *
+     * @param bb a {@link java.nio.ByteBuffer} object.
+     * @param chunkSize a int.
+     * @param count index of the first chunk in <code>bb</code>.
+     * @param pool a {@link java.util.concurrent.ForkJoinPool} object, may be null.
+     * @return index of the next chunk.
+     * @throws java.io.IOException if any.
+     */
+    public long compute(ByteBuffer bb, int chunkSize, long count, ForkJoinPool pool) throws IOException {
+        int n = bb.remaining() / chunkSize;
+        if ((pool == null) || (n < 2 * PARALLEL_CHUNKS)) {
+            return compute(bb, chunkSize, count);
+        }
+        if ((parallelKeys == null) || (parallelKeys.length < n)) {
+            parallelKeys = new int[n];
+            parallelTags = new int[n];
+        }
+        int start = bb.position();
+        pool.invoke(new HashTask(bb, start, chunkSize, 0, n));
+        bb.position(start + n * chunkSize);
+        Segment segment = null;
+        for (int i = 0; i < n; i++) {
+            segment = add(segment, count++, parallelKeys[i], parallelTags[i]);
+        }
+        dropSaturatedFilter(segment);
+        return count;
+    }
+
+    private Segment add(Segment segment, long count, int key, int tag) throws IOException {
+        if ((segment == null) || (count - segment.base >= segmentChunks)) {
+            segment = segmentFor(count);
+        }
+        int index = (int) (count - segment.base);
+        chunks = Math.max(chunks, count + 1);
+        if (hash64) {
+            segment.addTag(index, tag);
+        }
+        segment.table.add(key, index, maxCandidates);
+        if (segment.filter != null) {
+            segment.filter.add(key);
+        }
+        return segment;
+    }
+
+    private void dropSaturatedFilter(Segment segment) {
+        if ((segment != null) && (segment.filter != null) && segment.filter.isSaturated()) {
+            segment.filter = null;  // no longer worth a lookup, index size was unknown
+        }
+    }
+
+    /*
+     * Tag stored for the chunk at pos, 0 without 64 bit hash
+     */
+    private int tag(long hashf, ByteBuffer bb, int pos, int chunkSize) {
+        if (!hash64) {
+            return 0;
+        }
+        return strongFingerprint ? fingerprint(bb, pos, chunkSize) : (int) (hashf >>> 32);
+    }
+
+    /*
+     * Segment holding chunk index, a new one is started when the last is full
+     */
+    private Segment segmentFor(long index) throws IOException {
+        if (!segments.isEmpty()) {
+            Segment last = segments.get(segments.size() - 1);
+            if (index - last.base < segmentChunks) {
+                return last;
+            }
+        }
+        long base = segments.size() * (long) segmentChunks;
+        Segment segment = new Segment();
+        segment.base = base;
+        segment.table = segments.isEmpty() ? checksums : checksums.newTable();
+        long expected = Math.min(Math.max(expectedChunks - base, 0), segmentChunks);
+        if (expected > 0) {
+            segment.table.ensureCapacity(expected);
+        }
+        if (filterEnabled) {
+            segment.filter = new ChecksumFilter(expected);
+        }
+        if (hash64) {
+            segment.tags = new int[(int) Math.max(expected + 1, 1024)];
+        }
+        segments.add(segment);
+        return segment;
+    }
+
+    /*
+     * Checksums are 32 bit, upper half of the long is sign extension only.
+     * 64 bit hashes are folded, the high half is confirmed by the tag.
+     */
+    private int key(long hashf) {
+        return hash64 ? (int) (hashf ^ (hashf >>> 32)) : (int) hashf;
+    }
+
+    /*
+     * Tag a chunk must carry to match the hash, bb may be null if the target
+     * bytes are not at hand, the fingerprint is not checked then
+     */
+    private boolean needsConfirm(Segment segment, ByteBuffer bb) {
+        return (segment.tags != null) && !(strongFingerprint && (bb == null));
+    }
+
+    private int expectedTag(long hashf, ByteBuffer bb, int len) {
+        return strongFingerprint ? fingerprint(bb, bb.position(), len) : (int) (hashf >>> 32);
+    }
+
+    /**
+     * 32 bit fingerprint of <code>len</code> bytes at <code>pos</code>,
+     * independent of the rolling hash. The buffer position is not changed.
+     *
+     * @param bb a {@link java.nio.ByteBuffer} object.
+     * @param pos a int.
+     * @param len a int.
+     * @return a int.
+     */
+    public static int fingerprint(ByteBuffer bb, int pos, int len) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < len; i++) {
+            h = (h ^ (bb.get(pos + i) & 0xff)) * 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    /**
+     * Uses a 64 bit polynomial rolling hash instead of the 32 bit one. The
+     * table is keyed by the folded hash and every chunk keeps its upper 32
+     * bits, so a lookup only succeeds if all 64 bits are equal. This is safer
+     * than a second seeded checksum at about half its memory. Must be set
+     * before computing.
+     *
+     * @param hash64 a boolean.
+     */
+    public void setHash64(boolean hash64) {
+        if (hash64 != this.hash64) {
+            clear();
+            this.hash64 = hash64;
+            if (hash64 && (rabin_hash == null)) {
+                Random random = new Random(seed);
+                rabin_hash = new long[256];
+                for (int i = 0; i < rabin_hash.length; i++) {
+                    rabin_hash[i] = random.nextLong();
+                }
+            }
+        }
+    }
+
+    /**
+     * <p>isHash64.</p>
+     *
+     * @return a boolean.
+     */
+    public boolean isHash64() {
+        return hash64;
+    }
+
+    /**
+     * Keeps a fingerprint of the chunk bytes instead of the upper half of the
+     * 64 bit hash to confirm lookups, see {@link #fingerprint(ByteBuffer, int, int)}.
+     * Only used with {@link #setHash64(boolean)}, must be set before computing.
+     *
+     * @param strongFingerprint a boolean.
+     */
+    public void setStrongFingerprint(boolean strongFingerprint) {
+        if (strongFingerprint != this.strongFingerprint) {
+            clear();
+            this.strongFingerprint = strongFingerprint;
+        }
+    }
+
+    /**
+     * <p>isStrongFingerprint.</p>
+     *
+     * @return a boolean.
+     */
+    public boolean isStrongFingerprint() {
+        return strongFingerprint;
+    }
+
+    /**
+     * Number of chunks kept per checksum. With 1, a repeated chunk keeps only
+     * its last position. Larger values keep the first positions plus the
+     * last one, giving {@link Delta} more candidates to pick a longer match
+     * from. Must be set before computing.
+     *
+     * @param maxCandidates a int.
+     */
+    public void setMaxCandidates(int maxCandidates) {
+        if (maxCandidates < 1) {
+            throw new IllegalArgumentException("Invalid number of candidates");
+        }
+        this.maxCandidates = maxCandidates;
+    }
+
+    /**
+     * <p>Getter for the field <code>maxCandidates</code>.</p>
+     *
+     * @return a int.
+     */
+    public int getMaxCandidates() {
+        return maxCandidates;
+    }
+
+    /**
+     * Preallocates the index for a source of <code>sourceSize</code> bytes so
+     * that no rehashing takes place while computing.
+     *
+     * @param sourceSize a long.
+     * @param chunkSize a int.
+     * @throws java.io.IOException if any.
+     */
+    public void ensureCapacity(long sourceSize, int chunkSize) throws IOException {
+        expectedChunks = sourceSize / chunkSize;
+        if (!segments.isEmpty()) {
+            Segment last = segments.get(segments.size() - 1);
+            last.table.ensureCapacity(Math.min(expectedChunks - last.base, segmentChunks));
+        }
+    }
+
+    /*
+     * Smaller segments for tests
+     */
+    void setSegmentChunks(int segmentChunks) {
+        clear();
+        this.segmentChunks = segmentChunks;
+    }
+
+    /**
+     * Enables the bloom filter checked before each table lookup. It is built
+     * while computing and sized by {@link #ensureCapacity(long, int)}.
+     * Enabled by default.
+     *
+     * @param filterEnabled a boolean.
+     */
+    public void setFilterEnabled(boolean filterEnabled) {
+        this.filterEnabled = filterEnabled;
+        if (!filterEnabled) {
+            for (Segment segment : segments) {
+                segment.filter = null;
+            }
+        }
+    }
+
+    /**
+     * <p>isFilterEnabled.</p>
+     *
+     * @return a boolean.
+     */
+    public boolean isFilterEnabled() {
+        return filterEnabled;
+    }
+
+    /**
+     * Lookup counters as a printable line.
+     *
+     * @return a {@link java.lang.String} object.
+     */
+    public String getLookupStatistics() {
+        long lookups = filterRejects + hits + falsePositives;
+        if (lookups == 0) {
+            return "Index lookups: 0";
+        }
+        return "Index lookups: " + lookups + ", filtered out " + (100 * filterRejects / lookups)
+                + " %, hits " + (100 * hits / lookups) + " %, "
+                + (hasFilter() ? "false positives " : "misses ") + (100 * falsePositives / lookups) + " %";
+    }
+
+    private boolean hasFilter() {
+        for (Segment segment : segments) {
+            if (segment.filter != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Resets lookup counters.
+     */
+    public void resetLookupStatistics() {
+        filterRejects = 0;
+        hits = 0;
+        falsePositives = 0;
+    }
+
+    /**
+     * Replaces the storage of checksums, e.g. by a
+     * {@link MappedChecksumIndex} to keep the index off the heap.
+     *
+     * @param table an empty {@link com.nothome.delta.ChecksumTable}.
+     */
+    public void setTable(ChecksumTable table) {
+        clear();
+        checksums = table;
+        segmentChunks = Math.min(segmentChunks, table.maxSize());
+    }
+
+    /**
+     * Heap bytes needed to index <code>sourceSize</code> bytes of source
+     * using chunks of <code>chunkSize</code> bytes.
+     *
+     * @param sourceSize a long.
+     * @param chunkSize a int.
+     * @return a long.
+     */
+    public static long memoryFor(long sourceSize, int chunkSize) {
+        return ChecksumIndex.memoryFor(sourceSize / chunkSize);
+    }
+
+    /**
+     * Smallest chunk size not below <code>minChunkSize</code> whose index for
+     * <code>sourceSize</code> bytes fits into <code>memory</code> bytes.
+     *
+     * @param sourceSize a long.
+     * @param memory a long.
+     * @param minChunkSize a int.
+     * @return a int.
+     */
+    public static int chunkSizeFor(long sourceSize, long memory, int minChunkSize) {
+        long entries = Math.max(memory / ChecksumIndex.BYTES_PER_ENTRY, 1);
+        long chunkSize = Math.max((sourceSize + entries - 1) / entries, minChunkSize);
+        // capacities are powers of two, step up until the real size fits
+        while ((chunkSize < Integer.MAX_VALUE) && (memoryFor(sourceSize, (int) chunkSize) > memory)
+                && (sourceSize / chunkSize > ChecksumIndex.MIN_CAPACITY / 2)) {
+            chunkSize += Math.max(chunkSize / 16, 1);
+        }
+        return (int) Math.min(chunkSize, Integer.MAX_VALUE);
+    }
+
     /**
      * Initialize checksum with seed-based random generated hashes
      *
@@ -198,10 +853,27 @@ public class Checksum implements Serializable {
     }
 
     private long queryChecksum0(ByteBuffer bb, int len) {
+        int pos = bb.position();
+        bb.position(pos + len);
+        return checksumAt(bb, pos, len);
+    }
+
+    /*
+     * Checksum of len bytes at pos, does not modify bb so it may be called
+     * from several threads
+     */
+    private long checksumAt(ByteBuffer bb, int pos, int len) {
+        if (hash64) {
+            long h = 0;
+            for (int i = 0; i < len; i++) {
+                h = h * RABIN_BASE + rabin_hash[bb.get(pos + i) & 0xff];
+            }
+            return h;
+        }
         int high = 0;
         int low = 0;
         for (int i = 0; i < len; i++) {
-            low += single_hash[bb.get() + 128];
+            low += single_hash[bb.get(pos + i) + 128];
             high += low;
         }
         return ((high & 0xffff) << 16) | (low & 0xffff);
@@ -217,6 +889,17 @@ public class Checksum implements Serializable {
      * @return new checksum
      */
     public long incrementChecksum(long checksum, byte out, byte in, int chunkSize) {
+        if (hash64) {
+            if (rabinPowerSize != chunkSize) {
+                long power = 1;
+                for (int i = 1; i < chunkSize; i++) {
+                    power *= RABIN_BASE;
+                }
+                rabinPower = power;
+                rabinPowerSize = chunkSize;
+            }
+            return (checksum - rabin_hash[out & 0xff] * rabinPower) * RABIN_BASE + rabin_hash[in & 0xff];
+        }
         char old_c = single_hash[out + 128];
         char new_c = single_hash[in + 128];
         int low = ((int) ((checksum) & 0xffff) - old_c + new_c) & 0xffff;
@@ -234,24 +917,181 @@ public class Checksum implements Serializable {
     }
 
     /**
-     * Finds the index of a checksum.
+     * Touches the index memory a lookup of <code>hashf</code> reads first:
+     * the filter word if there is a filter, else the table slot. See
+     * {@link ChecksumTable#prefetch(int)}.
      *
      * @param hashf a long.
      * @return a int.
      */
-    public int findChecksumIndex(long hashf) {
-        //currentList.clear();
-        int chs = (int) (hashf & 0xffffffff);
-        int chu = ((int) (hashf >> 32) & 0xffffffff);
-        //long chs = hashf;
-        if (!checksums.contains(chu)) {
-            return -1;
+    public int prefetch(long hashf) {
+        int key = key(hashf);
+        int sink = 0;
+        for (int s = segments.size() - 1; s >= 0; s--) {
+            Segment segment = segments.get(s);
+            sink += segment.filter != null ? segment.filter.prefetch(key) : segment.table.prefetch(key);
         }
-        TIntIntHashMap map = checksums.get(chu);
-        if (!map.containsKey(chs)) {
+        return sink;
+    }
+
+    /**
+     * Finds the index of a checksum.
+     *
+     * @param hashf a long.
+     * @return a long.
+     */
+    public long findChecksumIndex(long hashf) {
+        return findChecksumIndex(hashf, null, 0);
+    }
+
+    /**
+     * Finds the index of a checksum, confirming a 64 bit hit by the
+     * fingerprint of the <code>len</code> bytes at the position of
+     * <code>bb</code>. Later segments are searched first, so the last chunk
+     * wins as with a single table.
+     *
+     * @param hashf a long.
+     * @param bb a {@link java.nio.ByteBuffer} object, may be null.
+     * @param len a int.
+     * @return a long.
+     */
+    public long findChecksumIndex(long hashf, ByteBuffer bb, int len) {
+        return findChecksumIndex(hashf, bb, len, true);
+    }
+
+    /**
+     * Finds the index of a checksum as
+     * {@link #findChecksumIndex(long, ByteBuffer, int)} does, leaving the
+     * lookup statistics alone. For probes which are not lookups of the
+     * encoding, such as looking ahead.
+     *
+     * @param hashf a long.
+     * @param bb a {@link java.nio.ByteBuffer} object, may be null.
+     * @param len a int.
+     * @return a long.
+     */
+    public long peekChecksumIndex(long hashf, ByteBuffer bb, int len) {
+        return findChecksumIndex(hashf, bb, len, false);
+    }
+
+    private long findChecksumIndex(long hashf, ByteBuffer bb, int len, boolean count) {
+        int key = key(hashf);
+        boolean probed = false;
+        boolean tagged = false;
+        int tag = 0;
+        for (int s = segments.size() - 1; s >= 0; s--) {
+            Segment segment = segments.get(s);
+            if ((segment.filter != null) && !segment.filter.mightContain(key)) {
+                continue;
+            }
+            probed = true;
+            int index = segment.table.get(key);
+            if (index == -1) {
+                continue;
+            }
+            if (needsConfirm(segment, bb)) {
+                if (!tagged) {
+                    tag = expectedTag(hashf, bb, len);
+                    tagged = true;
+                }
+                if (segment.tags[index] != tag) {
+                    continue;
+                }
+            }
+            if (count) {
+                hits++;
+            }
+            return segment.base + index;
+        }
+        if (!count) {
             return -1;
         }
-        return map.get(chs);
+        if (probed) {
+            falsePositives++;
+        } else {
+            filterRejects++;
+        }
+        return -1;
+    }
+
+    /**
+     * Finds up to <code>indexes.length</code> chunk indexes of a checksum.
+     *
+     * @param hashf a long.
+     * @param indexes an array of long.
+     * @return number of indexes found.
+     */
+    public int findChecksumIndexes(long hashf, long[] indexes) {
+        return findChecksumIndexes(hashf, null, 0, indexes);
+    }
+
+    /**
+     * Finds up to <code>indexes.length</code> chunk indexes of a checksum,
+     * see {@link #findChecksumIndex(long, ByteBuffer, int)}.
+     *
+     * @param hashf a long.
+     * @param bb a {@link java.nio.ByteBuffer} object, may be null.
+     * @param len a int.
+     * @param indexes an array of long.
+     * @return number of indexes found.
+     */
+    public int findChecksumIndexes(long hashf, ByteBuffer bb, int len, long[] indexes) {
+        return findChecksumIndexes(hashf, bb, len, indexes, true);
+    }
+
+    /**
+     * Finds up to <code>indexes.length</code> chunk indexes of a checksum,
+     * leaving the lookup statistics alone, see
+     * {@link #peekChecksumIndex(long, ByteBuffer, int)}.
+     *
+     * @param hashf a long.
+     * @param bb a {@link java.nio.ByteBuffer} object, may be null.
+     * @param len a int.
+     * @param indexes an array of long.
+     * @return number of indexes found.
+     */
+    public int peekChecksumIndexes(long hashf, ByteBuffer bb, int len, long[] indexes) {
+        return findChecksumIndexes(hashf, bb, len, indexes, false);
+    }
+
+    private int findChecksumIndexes(long hashf, ByteBuffer bb, int len, long[] indexes, boolean count) {
+        int key = key(hashf);
+        boolean probed = false;
+        boolean tagged = false;
+        int tag = 0;
+        int n = 0;
+        if ((found == null) || (found.length != indexes.length)) {
+            found = new int[indexes.length];
+        }
+        for (int s = segments.size() - 1; (s >= 0) && (n < indexes.length); s--) {
+            Segment segment = segments.get(s);
+            if ((segment.filter != null) && !segment.filter.mightContain(key)) {
+                continue;
+            }
+            probed = true;
+            int m = segment.table.getAll(key, found);
+            boolean confirm = (m > 0) && needsConfirm(segment, bb);
+            if (confirm && !tagged) {
+                tag = expectedTag(hashf, bb, len);
+                tagged = true;
+            }
+            for (int i = 0; (i < m) && (n < indexes.length); i++) {
+                if (!confirm || (segment.tags[found[i]] == tag)) {
+                    indexes[n++] = segment.base + found[i];
+                }
+            }
+        }
+        if (!count) {
+            return n;
+        }
+        if (n > 0) {
+            hits++;
+        } else if (probed) {
+            falsePositives++;
+        } else {
+            filterRejects++;
+        }
+        return n;
     }
     
     /**
@@ -260,14 +1100,143 @@ public class Checksum implements Serializable {
      * @return a boolean.
      */
     public boolean isEmpty() {
-        return checksums.isEmpty();
+        for (Segment segment : segments) {
+            if (!segment.table.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
     }
     
     /**
      * <p>clear.</p>
      */
     public void clear() {
+        for (Segment segment : segments) {
+            segment.table.clear();
+        }
         checksums.clear();
+        segments.clear();
+        chunks = 0;
+        anchors = null;
+        maxAnchorGap = 0;
+    }
+
+    /**
+     * Writes the index in binary form, see {@link Delta#writeChecksums(String)}.
+     * Tables are written in their mapped layout so that
+     * {@link #read(RandomAccessFile, File)} does not need to rebuild them.
+     *
+     * @param out a {@link java.io.DataOutput} object.
+     * @throws java.io.IOException if any.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeBoolean(seeded);
+        out.writeLong(seed);
+        out.writeBoolean(hash64);
+        out.writeBoolean(strongFingerprint);
+        out.writeInt(maxCandidates);
+        out.writeLong(spos);
+        out.writeLong(chunks);
+        out.writeInt(segmentChunks);
+        out.writeInt(segments.size());
+        for (Segment segment : segments) {
+            out.writeLong(segment.base);
+            segment.table.write(out);
+            int n = segment.tags == null ? -1 : (int) Math.min(chunks - segment.base, segmentChunks);
+            out.writeInt(n);
+            ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+            for (int i = 0; i < n; i++) {
+                if (!buf.hasRemaining()) {
+                    out.write(buf.array(), 0, buf.position());
+                    buf.clear();
+                }
+                buf.putInt(segment.tags[i]);
+            }
+            out.write(buf.array(), 0, buf.position());
+            out.writeBoolean(segment.filter != null);
+            if (segment.filter != null) {
+                segment.filter.write(out);
+            }
+        }
+        out.writeLong(anchors == null ? -1 : chunks);
+        if (anchors != null) {
+            ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+            for (int i = 0; i < chunks; i++) {
+                if (!buf.hasRemaining()) {
+                    out.write(buf.array(), 0, buf.position());
+                    buf.clear();
+                }
+                buf.putLong(anchors[i]);
+            }
+            out.write(buf.array(), 0, buf.position());
+        }
+    }
+
+    /**
+     * Reads an index written by {@link #write(DataOutput)} at the file pointer
+     * of <code>raf</code>. Tables are mapped read only from
+     * <code>file</code>, tags and filters are loaded to the heap.
+     *
+     * @param raf a {@link java.io.RandomAccessFile} object.
+     * @param file the file of <code>raf</code>.
+     * @return a {@link com.nothome.delta.Checksum} object.
+     * @throws java.io.IOException if any.
+     */
+    public static Checksum read(RandomAccessFile raf, File file) throws IOException {
+        boolean seeded = raf.readBoolean();
+        Checksum checksum = new Checksum(null, 0, raf.readLong(), seeded);
+        checksum.setHash64(raf.readBoolean());
+        checksum.setStrongFingerprint(raf.readBoolean());
+        checksum.setMaxCandidates(raf.readInt());
+        checksum.spos = raf.readLong();
+        checksum.chunks = raf.readLong();
+        checksum.segmentChunks = raf.readInt();
+        int n = raf.readInt();
+        if ((checksum.segmentChunks <= 0) || (n < 0)) {
+            throw new IOException("Invalid checksum index in " + file);
+        }
+        for (int i = 0; i < n; i++) {
+            Segment segment = new Segment();
+            segment.base = raf.readLong();
+            segment.table = MappedChecksumIndex.read(raf, file);
+            int tags = raf.readInt();
+            if (tags >= 0) {
+                long pos = raf.getFilePointer();
+                if ((tags > checksum.segmentChunks) || (pos + 4L * tags > raf.length())) {
+                    throw new IOException("Invalid checksum index in " + file);
+                }
+                segment.tags = new int[Math.max(tags, 1)];
+                if (tags > 0) {
+                    raf.getChannel().map(FileChannel.MapMode.READ_ONLY, pos, 4L * tags).asIntBuffer().get(segment.tags, 0, tags);
+                }
+                raf.seek(pos + 4L * tags);
+            }
+            if (raf.readBoolean()) {
+                segment.filter = ChecksumFilter.read(raf);
+            }
+            checksum.segments.add(segment);
+        }
+        long anchors = raf.readLong();
+        if (anchors >= 0) {
+            long pos = raf.getFilePointer();
+            if ((anchors != checksum.chunks) || (anchors > Integer.MAX_VALUE - 8) || (pos + 8L * anchors > raf.length())) {
+                throw new IOException("Invalid checksum index in " + file);
+            }
+            checksum.anchors = new long[(int) Math.max(anchors, 1)];
+            if (anchors > 0) {
+                raf.getChannel().map(FileChannel.MapMode.READ_ONLY, pos, 8L * anchors).asLongBuffer().get(checksum.anchors, 0, (int) anchors);
+            }
+            raf.seek(pos + 8L * anchors);
+            for (int i = 1; i < anchors; i++) {
+                checksum.maxAnchorGap = (int) Math.max(checksum.maxAnchorGap,
+                        Math.min(checksum.anchors[i] - checksum.anchors[i - 1], Integer.MAX_VALUE));
+            }
+        }
+        if (!checksum.segments.isEmpty()) {
+            checksum.checksums = checksum.segments.get(0).table;
+        }
+        return checksum;
     }
 
     /**
@@ -279,7 +1248,68 @@ public class Checksum implements Serializable {
     @Override
     public String toString() {
         return super.toString()
-                + " checksums=" + new TIntIntHashMapDecorator(this.checksums.get(0))
+                + " checksums=" + this.checksums
+                + " segments=" + this.segments.size()
                 + "";
     }
+
+    /*
+     * Hashes chunks from..to-1 of the buffer into the parallel arrays
+     */
+    private class HashTask extends RecursiveAction {
+
+        private final ByteBuffer bb;
+        private final int start;
+        private final int chunkSize;
+        private final int from;
+        private final int to;
+
+        HashTask(ByteBuffer bb, int start, int chunkSize, int from, int to) {
+            this.bb = bb;
+            this.start = start;
+            this.chunkSize = chunkSize;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > PARALLEL_CHUNKS) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new HashTask(bb, start, chunkSize, from, middle),
+                        new HashTask(bb, start, chunkSize, middle, to));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                int pos = start + i * chunkSize;
+                long hashf = checksumAt(bb, pos, chunkSize);
+                parallelKeys[i] = key(hashf);
+                parallelTags[i] = tag(hashf, bb, pos, chunkSize);
+            }
+        }
+    }
+
+    /*
+     * Index of up to segmentChunks chunks starting at chunk base
+     */
+    private static class Segment implements Serializable {
+
+        private long base;
+        private ChecksumTable table;
+        private ChecksumFilter filter;
+        private int[] tags;
+
+        void addTag(int index, int tag) {
+            if (index >= tags.length) {
+                int length = tags.length;
+                while (index >= length) {
+                    length = (int) Math.min(2L * length, Integer.MAX_VALUE - 8);
+                }
+                int[] grown = new int[length];
+                System.arraycopy(tags, 0, grown, 0, tags.length);
+                tags = grown;
+            }
+            tags[index] = tag;
+        }
+    }
 }
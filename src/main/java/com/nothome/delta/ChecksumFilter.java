@@ -0,0 +1,211 @@
+/*
+ * #%L
+ * XDeltaEncoder
+ * %%
+ * Copyright (C) 2011 - 2012 Frantisek Mantlik <frantisek at mantlik.cz>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package com.nothome.delta;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Blocked bloom filter over checksum keys, used to reject lookups of
+ * checksums not present in the index without touching the table.
+ * <p>
+ * Both bits of a key lie in the same 64 bit word, so a lookup costs a single
+ * memory access. With {@link #BITS_PER_ENTRY} bits per key about 5 % of the
+ * absent keys pass the filter. The filter never rejects a key which was
+ * added.
+ *
+ * @author kylestev
+ * @version $Id: $Id
+ */
+public class ChecksumFilter implements Serializable {
+
+    /**
+     * Filter bits reserved per expected entry.
+     */
+    public static final int BITS_PER_ENTRY = 8;
+    static final int MIN_WORDS = 1 << 11;
+    static final int MAX_WORDS = 1 << 25;
+    private long[] words;
+    private int mask;
+    private long entries = 0;
+
+    /**
+     * Creates a filter for <code>expectedEntries</code> keys.
+     *
+     * @param expectedEntries a long.
+     */
+    public ChecksumFilter(long expectedEntries) {
+        int n = wordsFor(expectedEntries);
+        words = new long[n];
+        mask = n - 1;
+    }
+
+    private static int wordsFor(long expectedEntries) {
+        int n = MIN_WORDS;
+        while ((n < MAX_WORDS) && (64L * n < BITS_PER_ENTRY * expectedEntries)) {
+            n <<= 1;
+        }
+        return n;
+    }
+
+    /**
+     * Heap bytes of a filter for <code>expectedEntries</code> keys.
+     *
+     * @param expectedEntries a long.
+     * @return a long.
+     */
+    public static long memoryFor(long expectedEntries) {
+        return 8L * wordsFor(expectedEntries);
+    }
+
+    private static long mix(int key) {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return h ^ (h >>> 29);
+    }
+
+    /*
+     * Word of a mixed key from bits above those of the bit positions, wide
+     * enough for MAX_WORDS
+     */
+    private int word(long h) {
+        return (int) (h >>> 32) & mask;
+    }
+
+    /*
+     * Bits of word i, for tests
+     */
+    long getWord(int i) {
+        return words[i];
+    }
+
+    private ChecksumFilter(long[] words, long entries) {
+        this.words = words;
+        mask = words.length - 1;
+        this.entries = entries;
+    }
+
+    /**
+     * Writes the filter for {@link #read(RandomAccessFile)}.
+     *
+     * @param out a {@link java.io.DataOutput} object.
+     * @throws java.io.IOException if any.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(words.length);
+        out.writeLong(entries);
+        ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+        for (int i = 0; i < words.length; i++) {
+            if (!buf.hasRemaining()) {
+                out.write(buf.array(), 0, buf.position());
+                buf.clear();
+            }
+            buf.putLong(words[i]);
+        }
+        out.write(buf.array(), 0, buf.position());
+    }
+
+    /**
+     * Reads a filter written by {@link #write(DataOutput)} at the file
+     * pointer of <code>raf</code>.
+     *
+     * @param raf a {@link java.io.RandomAccessFile} object.
+     * @return a {@link com.nothome.delta.ChecksumFilter} object.
+     * @throws java.io.IOException if any.
+     */
+    public static ChecksumFilter read(RandomAccessFile raf) throws IOException {
+        int n = raf.readInt();
+        long entries = raf.readLong();
+        long pos = raf.getFilePointer();
+        if ((n < MIN_WORDS) || (n > MAX_WORDS) || (Integer.bitCount(n) != 1) || (pos + 8L * n > raf.length())) {
+            throw new IOException("Invalid checksum filter");
+        }
+        long[] words = new long[n];
+        raf.getChannel().map(FileChannel.MapMode.READ_ONLY, pos, 8L * n).asLongBuffer().get(words);
+        raf.seek(pos + 8L * n);
+        return new ChecksumFilter(words, entries);
+    }
+
+    /**
+     * <p>add.</p>
+     *
+     * @param key a int.
+     */
+    public void add(int key) {
+        long h = mix(key);
+        words[word(h)] |= (1L << h) | (1L << (h >>> 6));
+        entries++;
+    }
+
+    /**
+     * Returns false if <code>key</code> was certainly not added.
+     *
+     * @param key a int.
+     * @return a boolean.
+     */
+    public boolean mightContain(int key) {
+        long h = mix(key);
+        long bits = (1L << h) | (1L << (h >>> 6));
+        return (words[word(h)] & bits) == bits;
+    }
+
+    /**
+     * Touches the word of <code>key</code>, see
+     * {@link ChecksumTable#prefetch(int)}.
+     *
+     * @param key a int.
+     * @return a int.
+     */
+    public int prefetch(int key) {
+        return (int) words[word(mix(key))];
+    }
+
+    /**
+     * <p>entries.</p>
+     *
+     * @return number of keys added.
+     */
+    public long entries() {
+        return entries;
+    }
+
+    /**
+     * True when less than 2 bits per key are left and most absent keys pass.
+     *
+     * @return a boolean.
+     */
+    public boolean isSaturated() {
+        return 2 * entries > 64L * words.length;
+    }
+
+    /**
+     * Heap bytes used by the filter.
+     *
+     * @return a long.
+     */
+    public long memoryUsage() {
+        return 8L * words.length;
+    }
+}
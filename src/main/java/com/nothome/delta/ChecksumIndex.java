@@ -0,0 +1,342 @@
+/*
+ * #%L
+ * XDeltaEncoder
+ * %%
+ * Copyright (C) 2011 - 2012 Frantisek Mantlik <frantisek at mantlik.cz>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package com.nothome.delta;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Hash table mapping int checksums to int chunk indexes.
+ * <p>
+ * Several values of one key are stored as separate entries along the probe
+ * sequence, see {@link #add(int, int, int)}.
+ * <p>
+ * Keys and values are kept in two flat arrays of power-of-two capacity,
+ * collisions are resolved by linear probing. No objects are allocated per
+ * entry. The table is kept at most half full, so an index sized for a known
+ * number of chunks costs exactly {@link #BYTES_PER_ENTRY} bytes per chunk.
+ *
+ * @author kylestev
+ * @version $Id: $Id
+ */
+public class ChecksumIndex implements ChecksumTable, Serializable {
+
+    /**
+     * Memory used per indexed chunk when the table is sized in advance.
+     * Two int slots per entry at load factor 1/2.
+     */
+    public static final int BYTES_PER_ENTRY = 16;
+    /**
+     * Largest possible table capacity (number of slots).
+     */
+    public static final int MAX_CAPACITY = 1 << 30;
+    static final int MIN_CAPACITY = 1 << 10;
+    /**
+     * Value marking an empty slot. Chunk indexes are never negative.
+     */
+    static final int EMPTY = -1;
+    private int[] keys;
+    private int[] values;
+    private int mask;
+    private int size = 0;
+    private int threshold;
+
+    /**
+     * Creates an empty index which grows as entries are added.
+     */
+    public ChecksumIndex() {
+        this(0);
+    }
+
+    /**
+     * Creates an index able to hold <code>expectedEntries</code> without
+     * rehashing.
+     *
+     * @param expectedEntries a long.
+     */
+    public ChecksumIndex(long expectedEntries) {
+        allocate(capacityFor(expectedEntries));
+    }
+
+    /**
+     * Table capacity needed to store <code>entries</code> entries.
+     *
+     * @param entries a long.
+     * @return a int.
+     */
+    public static int capacityFor(long entries) {
+        int capacity = MIN_CAPACITY;
+        while ((capacity < MAX_CAPACITY) && (capacity / 2 < entries)) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /**
+     * Heap bytes used by an index sized for <code>entries</code> entries.
+     *
+     * @param entries a long.
+     * @return a long.
+     */
+    public static long memoryFor(long entries) {
+        return 8L * capacityFor(entries);
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, EMPTY);
+        mask = capacity - 1;
+        // a full-size table is allowed to fill up to 15/16 rather than fail
+        threshold = capacity == MAX_CAPACITY ? capacity - capacity / 16 : capacity / 2;
+    }
+
+    static int slot(int key, int mask) {
+        int h = key * 0x9e3779b9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void ensureCapacity(long expectedEntries) {
+        int capacity = capacityFor(expectedEntries);
+        if (capacity > keys.length) {
+            rehash(capacity);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void put(int key, int value) {
+        add(key, value, 1);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void add(int key, int value, int limit) {
+        int i = slot(key, mask);
+        int found = 0;
+        while (values[i] != EMPTY) {
+            if ((keys[i] == key) && (++found >= limit)) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        if (size >= threshold) {
+            if (keys.length == MAX_CAPACITY) {
+                throw new IllegalStateException("Checksum index full (" + size + " entries).");
+            }
+            rehash(keys.length << 1);
+            add(key, value, limit);
+            return;
+        }
+        keys[i] = key;
+        values[i] = value;
+        size++;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int get(int key) {
+        int i = slot(key, mask);
+        int v;
+        while ((v = values[i]) != EMPTY) {
+            if (keys[i] == key) {
+                return v;
+            }
+            i = (i + 1) & mask;
+        }
+        return EMPTY;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getAll(int key, int[] found) {
+        int i = slot(key, mask);
+        int n = 0;
+        int v;
+        while (((v = values[i]) != EMPTY) && (n < found.length)) {
+            if (keys[i] == key) {
+                found[n++] = v;
+            }
+            i = (i + 1) & mask;
+        }
+        return n;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int prefetch(int key) {
+        return values[slot(key, mask)];
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean remove(int key, int value) {
+        int i = slot(key, mask);
+        while (values[i] != EMPTY) {
+            if ((keys[i] == key) && (values[i] == value)) {
+                delete(i);
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int removeValues(int from, int to) {
+        int removed = 0;
+        // start behind an empty slot, entries are never moved behind it
+        int start = 0;
+        while (values[start] != EMPTY) {
+            start++;
+        }
+        for (int n = 1; n <= values.length; n++) {
+            int i = (start + n) & mask;
+            while ((values[i] >= from) && (values[i] < to)) {
+                delete(i);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /*
+     * Empties slot i, moving back the following entries of the cluster which
+     * would not be found behind the gap
+     */
+    private void delete(int i) {
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (values[j] == EMPTY) {
+                break;
+            }
+            if (((j - slot(keys[j], mask)) & mask) >= ((j - i) & mask)) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+        }
+        values[i] = EMPTY;
+        size--;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(capacity);
+        for (int j = 0; j < oldValues.length; j++) {
+            if (oldValues[j] != EMPTY) {
+                int i = slot(oldKeys[j], mask);
+                while (values[i] != EMPTY) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int maxSize() {
+        return MAX_CAPACITY - MAX_CAPACITY / 16;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * <p>capacity.</p>
+     *
+     * @return number of slots.
+     */
+    public int capacity() {
+        return keys.length;
+    }
+
+    /**
+     * Heap bytes currently used by the table.
+     *
+     * @return a long.
+     */
+    public long memoryUsage() {
+        return 8L * keys.length;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(keys.length);
+        out.writeInt(size);
+        ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+        for (int i = 0; i < keys.length; i++) {
+            if (!buf.hasRemaining()) {
+                out.write(buf.array(), 0, buf.position());
+                buf.clear();
+            }
+            buf.putInt(values[i] == EMPTY ? 0 : keys[i]);
+            buf.putInt(values[i] + 1);
+        }
+        out.write(buf.array(), 0, buf.position());
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public ChecksumTable newTable() {
+        return new ChecksumIndex();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void clear() {
+        allocate(MIN_CAPACITY);
+        size = 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Returns a debug
+     * <code>String</code>.
+     */
+    @Override
+    public String toString() {
+        return "ChecksumIndex size=" + size + " capacity=" + keys.length;
+    }
+}
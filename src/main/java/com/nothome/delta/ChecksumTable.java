@@ -0,0 +1,161 @@
+/*
+ * #%L
+ * XDeltaEncoder
+ * %%
+ * Copyright (C) 2011 - 2012 Frantisek Mantlik <frantisek at mantlik.cz>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package com.nothome.delta;
+
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Storage of the checksum to chunk index mapping used by {@link Checksum}.
+ * <p>
+ * Chunk indexes are non-negative, -1 means "not found".
+ *
+ * @author kylestev
+ * @version $Id: $Id
+ */
+public interface ChecksumTable {
+
+    /**
+     * Associates <code>value</code> with <code>key</code>, replacing any
+     * previous value.
+     *
+     * @param key a int.
+     * @param value a non-negative int.
+     * @throws java.io.IOException if any.
+     */
+    void put(int key, int value) throws IOException;
+
+    /**
+     * Adds <code>value</code> to the values of <code>key</code>. At most
+     * <code>limit</code> values are kept per key: when the limit is reached,
+     * the most recently added value replaces the last one kept, so the
+     * earliest values and the latest one remain. With limit 1 this is
+     * {@link #put(int, int)}.
+     *
+     * @param key a int.
+     * @param value a non-negative int.
+     * @param limit a int.
+     * @throws java.io.IOException if any.
+     */
+    void add(int key, int value, int limit) throws IOException;
+
+    /**
+     * Returns the value stored for <code>key</code> or -1 if none.
+     *
+     * @param key a int.
+     * @return a int.
+     */
+    int get(int key);
+
+    /**
+     * Copies up to <code>values.length</code> values stored for
+     * <code>key</code> to <code>values</code>, returning how many were found.
+     *
+     * @param key a int.
+     * @param values an array of int.
+     * @return a int.
+     */
+    int getAll(int key, int[] values);
+
+    /**
+     * Touches the memory a lookup of <code>key</code> starts with, so that a
+     * following {@link #get(int)} finds it in cache. Callers issue it some
+     * positions ahead of the lookup to overlap memory latency.
+     *
+     * @param key a int.
+     * @return the value read, to be accumulated by the caller so the read is
+     * not optimized away.
+     */
+    int prefetch(int key);
+
+    /**
+     * Removes the entry of <code>key</code> with <code>value</code>.
+     *
+     * @param key a int.
+     * @param value a non-negative int.
+     * @return false if there was no such entry.
+     * @throws java.io.IOException if any.
+     */
+    boolean remove(int key, int value) throws IOException;
+
+    /**
+     * Removes all entries with values from <code>from</code> (inclusive) to
+     * <code>to</code> (exclusive). This scans the whole table.
+     *
+     * @param from a int.
+     * @param to a int.
+     * @return number of entries removed.
+     * @throws java.io.IOException if any.
+     */
+    int removeValues(int from, int to) throws IOException;
+
+    /**
+     * Makes room for <code>expectedEntries</code> entries in total.
+     *
+     * @param expectedEntries a long.
+     * @throws java.io.IOException if any.
+     */
+    void ensureCapacity(long expectedEntries) throws IOException;
+
+    /**
+     * <p>size.</p>
+     *
+     * @return number of entries.
+     */
+    int size();
+
+    /**
+     * Largest number of entries the table can hold.
+     *
+     * @return a int.
+     */
+    int maxSize();
+
+    /**
+     * <p>isEmpty.</p>
+     *
+     * @return a boolean.
+     */
+    boolean isEmpty();
+
+    /**
+     * Writes capacity, size and all slots in the file layout of
+     * {@link MappedChecksumIndex}, which can map them back without
+     * rehashing, see {@link MappedChecksumIndex#read(java.io.RandomAccessFile, java.io.File)}.
+     *
+     * @param out a {@link java.io.DataOutput} object.
+     * @throws java.io.IOException if any.
+     */
+    void write(DataOutput out) throws IOException;
+
+    /**
+     * Creates an empty table of the same kind and storage location.
+     *
+     * @return a {@link com.nothome.delta.ChecksumTable} object.
+     */
+    ChecksumTable newTable();
+
+    /**
+     * Removes all entries and releases the table storage.
+     */
+    void clear();
+}
@@ -0,0 +1,136 @@
+/*
+ * #%L
+ * XDeltaEncoder
+ * %%
+ * Copyright (C) 2011 - 2012 Frantisek Mantlik <frantisek at mantlik.cz>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package com.nothome.delta;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Finds content defined chunk boundaries with a gear hash in the manner of
+ * FastCDC. A boundary depends only on the bytes just before it, so after an
+ * insertion or deletion the boundaries of the following data are the same
+ * as in the original.
+ * <p>
+ * Chunks are at least a quarter and at most four times the average size.
+ * Below the average size a stricter mask is used, above it a looser one,
+ * which narrows the spread of chunk sizes (normalized chunking).
+ *
+ * @author kylestev
+ * @version $Id: $Id
+ */
+public class ContentDefinedChunker {
+
+    /**
+     * Smallest average chunk size accepted.
+     */
+    public static final int MIN_AVERAGE_SIZE = 64;
+    /*
+     * Gear table, fixed so that boundaries do not change between runs
+     */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x6765617248L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final int minSize;
+    private final int maxSize;
+    private final int averageSize;
+    private final long smallMask;
+    private final long largeMask;
+    private long hash = 0;
+    private int length = 0;
+
+    /**
+     * <p>Constructor for ContentDefinedChunker.</p>
+     *
+     * @param averageSize average chunk size, rounded down to a power of 2.
+     */
+    public ContentDefinedChunker(int averageSize) {
+        if (averageSize < MIN_AVERAGE_SIZE) {
+            throw new IllegalArgumentException("Invalid average chunk size");
+        }
+        int bits = 31 - Integer.numberOfLeadingZeros(averageSize);
+        this.averageSize = 1 << bits;
+        minSize = this.averageSize / 4;
+        maxSize = (int) Math.min(this.averageSize * 4L, Integer.MAX_VALUE);
+        // the upper bits of the gear hash depend on the last 64 bytes
+        smallMask = -1L << (64 - bits - 1);
+        largeMask = -1L << (64 - bits + 1);
+    }
+
+    /**
+     * Feeds bytes <code>from</code> to <code>to</code> (exclusive) of
+     * <code>bb</code> until the current chunk ends. The state is kept
+     * between calls, so the data may be fed in any pieces.
+     *
+     * @param bb a {@link java.nio.ByteBuffer} object, its position is not changed.
+     * @param from a int.
+     * @param to a int.
+     * @return index of the first byte of the next chunk, -1 if the chunk
+     * does not end before <code>to</code>.
+     */
+    public int next(ByteBuffer bb, int from, int to) {
+        for (int i = from; i < to; i++) {
+            hash = (hash << 1) + GEAR[bb.get(i) & 0xff];
+            length++;
+            if (length < minSize) {
+                continue;
+            }
+            long mask = length < averageSize ? smallMask : largeMask;
+            if (((hash & mask) == 0) || (length >= maxSize)) {
+                reset();
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Starts a new chunk.
+     */
+    public void reset() {
+        hash = 0;
+        length = 0;
+    }
+
+    /**
+     * <p>Getter for the field <code>averageSize</code>.</p>
+     *
+     * @return a int.
+     */
+    public int getAverageSize() {
+        return averageSize;
+    }
+
+    /**
+     * <p>Getter for the field <code>maxSize</code>.</p>
+     *
+     * @return a int.
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+}
@@ -33,12 +33,17 @@
  */
 package com.nothome.delta;
 
-import gnu.trove.TByteArrayList;
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
 import java.text.DecimalFormat;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
 
 /**
  * Class for computing deltas against a source. The source file is read by
@@ -47,9 +52,9 @@ import java.text.DecimalFormat;
  * <p>
  * This class is not thread safe. Use one instance per thread.
  * <p>
- * This class should support files over 4GB in length, although you must use a
- * larger checksum size, such as 1K, as all checksums use "int" indexing. Newer
- * versions may eventually support paging in/out of checksums.
+ * Sources of any length are supported, the checksum index is split into
+ * segments of {@link Checksum#SEGMENT_CHUNKS} chunks. Use
+ * {@link #setIndexDirectory(File)} to page the index out of the heap.
  *
  * @author kylestev
  * @version $Id: $Id
@@ -68,9 +73,39 @@ public class Delta {
      * Use a size like 64 or 128 for large files.
      */
     public static final int DEFAULT_CHUNK_SIZE = 1 << 4;
-    /** Constant <code>LONGEST_POSSIBLE_MATCH=Short.MAX_VALUE - 4</code> */
-    public static final int LONGEST_POSSIBLE_MATCH = Short.MAX_VALUE - 4;
     private static final DecimalFormat df = new DecimalFormat("0.00");
+    /*
+     * Source bytes hashed at once when computing the index in parallel
+     */
+    private static final int INDEX_BLOCK_SIZE = 1 << 22;
+    /*
+     * Checksum file format, see writeChecksums
+     */
+    private static final int INDEX_MAGIC = 0x58444358;  // "XDCX"
+    private static final int INDEX_VERSION = 4;
+    private static final int INDEX_HEADER_SIZE = 25;
+    /*
+     * Source bytes covered by one content hash of the checksum file
+     */
+    private static final int CONTENT_HASH_BLOCK = 1 << 20;
+    /*
+     * Source bytes read for the first step of match extension
+     */
+    private static final int MIN_SOURCE_READ = 256;
+    /**
+     * Default heap for the fine index of the multi resolution engine, see
+     * {@link #setFineIndexMemory(long)}.
+     */
+    public static final long DEFAULT_FINE_INDEX_MEMORY = 64L << 20;
+    /*
+     * Source bytes indexed at once by the fine index of the multi
+     * resolution engine
+     */
+    private static final int REGION_SIZE = 1 << 20;
+    /*
+     * Most target bytes kept for backward matching to a content defined chunk
+     */
+    private static final int MAX_HISTORY = 1 << 16;
     /**
      * Chunk Size.
      */
@@ -87,6 +122,21 @@ public class Delta {
     public boolean firstMatch = false;
     public boolean acceptHash = false;
     private boolean duplicateChecksum = false;
+    private boolean checksumsUpdated = false;
+    private long sourceSizeHint = 0;
+    private File indexDirectory = null;
+    private int maxCandidates = 1;
+    private boolean checksumFilter = true;
+    private boolean bucketIndex = false;
+    private int prefetchDistance = 0;
+    private int lazyLevel = 0;
+    private int contentDefinedChunkSize = 0;
+    private int coarseChunkSize = 0;
+    private long fineIndexMemory = DEFAULT_FINE_INDEX_MEMORY;
+    private boolean hash64 = false;
+    private boolean strongFingerprint = false;
+    private int indexThreads = Runtime.getRuntime().availableProcessors();
+    private long lastCopyEnd = 0;
 
     /**
      * Constructs a new Delta. In the future, additional constructor arguments
@@ -117,6 +167,9 @@ public class Delta {
         if (source.checksum == null) {
             return 0;
         }
+        if (source.coarse != null) {
+            return source.coarse.spos;
+        }
         long spos = source.checksum.spos;
         if (duplicateChecksum && (source.checksum2 != null)) {
             spos = (spos + source.checksum2.spos) / 2;
@@ -236,6 +289,299 @@ public class Delta {
         compute(sourceFile, targetFile, output, 0, true);
     }
 
+    /**
+     * Expected source size in bytes. When set, the checksum index is
+     * allocated in one step instead of growing while the source is hashed.
+     *
+     * @param sourceSizeHint a long, 0 if unknown.
+     */
+    public void setSourceSizeHint(long sourceSizeHint) {
+        this.sourceSizeHint = sourceSizeHint;
+    }
+
+    /**
+     * Keeps the checksum index in memory mapped files in
+     * <code>indexDirectory</code> instead of the Java heap. Takes effect for
+     * the next source.
+     *
+     * @param indexDirectory a {@link java.io.File} object, null for heap
+     * index.
+     */
+    public void setIndexDirectory(File indexDirectory) {
+        this.indexDirectory = indexDirectory;
+    }
+
+    /**
+     * <p>Getter for the field <code>indexDirectory</code>.</p>
+     *
+     * @return a {@link java.io.File} object.
+     */
+    public File getIndexDirectory() {
+        return indexDirectory;
+    }
+
+    /**
+     * Uses a {@link BucketChecksumIndex} with cache line sized buckets
+     * instead of the flat {@link ChecksumIndex} for a heap index. Ignored
+     * with {@link #setIndexDirectory(File)}. Takes effect for the next
+     * source.
+     *
+     * @param bucketIndex a boolean.
+     */
+    public void setBucketIndex(boolean bucketIndex) {
+        this.bucketIndex = bucketIndex;
+    }
+
+    /**
+     * <p>isBucketIndex.</p>
+     *
+     * @return a boolean.
+     */
+    public boolean isBucketIndex() {
+        return bucketIndex;
+    }
+
+    /**
+     * Number of target positions ahead of the current one whose index
+     * memory is touched while scanning, so that cache misses of following
+     * lookups overlap. 0 disables prefetching, the default.
+     *
+     * @param prefetchDistance a int.
+     */
+    public void setPrefetchDistance(int prefetchDistance) {
+        if (prefetchDistance < 0) {
+            throw new IllegalArgumentException("Invalid prefetch distance");
+        }
+        this.prefetchDistance = prefetchDistance;
+    }
+
+    /**
+     * <p>Getter for the field <code>prefetchDistance</code>.</p>
+     *
+     * @return a int.
+     */
+    public int getPrefetchDistance() {
+        return prefetchDistance;
+    }
+
+    /**
+     * Number of following target positions checked for a longer match
+     * before a match is taken. 0 takes the first match, the default;
+     * higher levels give better deltas on structured data at the cost of
+     * extra index lookups for every match.
+     *
+     * @param lazyLevel a int.
+     */
+    public void setLazyLevel(int lazyLevel) {
+        if (lazyLevel < 0) {
+            throw new IllegalArgumentException("Invalid lazy level");
+        }
+        this.lazyLevel = lazyLevel;
+    }
+
+    /**
+     * <p>Getter for the field <code>lazyLevel</code>.</p>
+     *
+     * @return a int.
+     */
+    public int getLazyLevel() {
+        return lazyLevel;
+    }
+
+    /**
+     * Number of source chunks kept per checksum and tried for every hit. The
+     * longest match wins, ties go to the candidate nearest to the end of the
+     * previous copy. More candidates give better matches on data with
+     * repeated blocks at the cost of one source read per extra candidate.
+     * Default is 1, i.e. the last chunk with a given checksum. Takes effect
+     * for the next source.
+     *
+     * @param maxCandidates a int.
+     */
+    public void setMaxCandidates(int maxCandidates) {
+        if (maxCandidates < 1) {
+            throw new IllegalArgumentException("Invalid number of candidates");
+        }
+        this.maxCandidates = maxCandidates;
+    }
+
+    /**
+     * <p>Getter for the field <code>maxCandidates</code>.</p>
+     *
+     * @return a int.
+     */
+    public int getMaxCandidates() {
+        return maxCandidates;
+    }
+
+    /**
+     * Enables the bloom filter in front of the checksum index, which skips
+     * most table lookups for target data not present in the source. Enabled
+     * by default. Takes effect for the next source.
+     *
+     * @param checksumFilter a boolean.
+     */
+    public void setChecksumFilter(boolean checksumFilter) {
+        this.checksumFilter = checksumFilter;
+    }
+
+    /**
+     * Indexes the source only at content defined chunk boundaries about
+     * <code>averageSize</code> bytes apart instead of every chunk size bytes,
+     * see {@link Checksum#computeAnchors(SeekableSource, int, int)}. The index
+     * shrinks by the ratio of the two sizes while data shifted by insertions
+     * is still found. Matches are then extended backwards over up to four
+     * times <code>averageSize</code> bytes of data. 0 disables it, the
+     * default. Takes effect for the next source.
+     *
+     * @param averageSize a int, at least
+     * {@link ContentDefinedChunker#MIN_AVERAGE_SIZE}, or 0.
+     */
+    public void setContentDefinedChunkSize(int averageSize) {
+        if ((averageSize != 0) && (averageSize < ContentDefinedChunker.MIN_AVERAGE_SIZE)) {
+            throw new IllegalArgumentException("Invalid average chunk size");
+        }
+        this.contentDefinedChunkSize = averageSize;
+    }
+
+    /**
+     * <p>Getter for the field <code>contentDefinedChunkSize</code>.</p>
+     *
+     * @return a int.
+     */
+    public int getContentDefinedChunkSize() {
+        return contentDefinedChunkSize;
+    }
+
+    /**
+     * Enables the multi resolution engine. A coarse index of chunks of
+     * <code>coarseChunkSize</code> bytes covers the whole source, while the
+     * fine index of chunk size bytes is built on demand: when the coarse
+     * index finds a match, the source region around it is indexed finely, so
+     * that the small changes typical near a match are found. Regions are
+     * added until {@link #setFineIndexMemory(long)} is used up, after that
+     * only the matched coarse chunks are added. This matches a large source
+     * in one pass with about the result of a coarse preparation pass
+     * followed by fine passes over source blocks. 0 disables it, the
+     * default. Takes effect for the next source.
+     *
+     * @param coarseChunkSize a int, larger than the chunk size, or 0.
+     */
+    public void setCoarseChunkSize(int coarseChunkSize) {
+        if (coarseChunkSize < 0) {
+            throw new IllegalArgumentException("Invalid coarse chunk size");
+        }
+        this.coarseChunkSize = coarseChunkSize;
+    }
+
+    /**
+     * <p>Getter for the field <code>coarseChunkSize</code>.</p>
+     *
+     * @return a int.
+     */
+    public int getCoarseChunkSize() {
+        return coarseChunkSize;
+    }
+
+    /**
+     * Heap bytes the fine index of the multi resolution engine may use, see
+     * {@link #setCoarseChunkSize(int)}. Defaults to
+     * {@link #DEFAULT_FINE_INDEX_MEMORY}.
+     *
+     * @param fineIndexMemory a long.
+     */
+    public void setFineIndexMemory(long fineIndexMemory) {
+        if (fineIndexMemory < 0) {
+            throw new IllegalArgumentException("Invalid fine index memory");
+        }
+        this.fineIndexMemory = fineIndexMemory;
+    }
+
+    /**
+     * <p>Getter for the field <code>fineIndexMemory</code>.</p>
+     *
+     * @return a long.
+     */
+    public long getFineIndexMemory() {
+        return fineIndexMemory;
+    }
+
+    /**
+     * Indexes the source with a 64 bit rolling hash confirmed per chunk, see
+     * {@link Checksum#setHash64(boolean)}. A single table gives better
+     * protection against false matches than {@link #setDuplicateChecksum(boolean)}
+     * at half the memory. Takes effect for the next source.
+     *
+     * @param hash64 a boolean.
+     */
+    public void setHash64(boolean hash64) {
+        this.hash64 = hash64;
+    }
+
+    /**
+     * <p>isHash64.</p>
+     *
+     * @return a boolean.
+     */
+    public boolean isHash64() {
+        return hash64;
+    }
+
+    /**
+     * Confirms 64 bit hash hits by a fingerprint of the chunk bytes instead of
+     * the upper half of the hash, see {@link Checksum#setStrongFingerprint(boolean)}.
+     * Takes effect for the next source.
+     *
+     * @param strongFingerprint a boolean.
+     */
+    public void setStrongFingerprint(boolean strongFingerprint) {
+        this.strongFingerprint = strongFingerprint;
+    }
+
+    /**
+     * <p>isStrongFingerprint.</p>
+     *
+     * @return a boolean.
+     */
+    public boolean isStrongFingerprint() {
+        return strongFingerprint;
+    }
+
+    /**
+     * Number of threads hashing the source when computing the checksum
+     * index, 1 computes it on the calling thread. Defaults to the number of
+     * processors. The index does not depend on it.
+     *
+     * @param indexThreads a int.
+     */
+    public void setIndexThreads(int indexThreads) {
+        if (indexThreads < 1) {
+            throw new IllegalArgumentException("Invalid number of threads");
+        }
+        this.indexThreads = indexThreads;
+    }
+
+    /**
+     * <p>Getter for the field <code>indexThreads</code>.</p>
+     *
+     * @return a int.
+     */
+    public int getIndexThreads() {
+        return indexThreads;
+    }
+
+    /**
+     * Checksum index lookup counters of the current source.
+     *
+     * @return a {@link java.lang.String} object.
+     */
+    public String getLookupStatistics() {
+        if ((source == null) || (source.checksum == null)) {
+            return "Index lookups: 0";
+        }
+        return source.checksum.getLookupStatistics();
+    }
+
     /*
      * SourceState will be reused if exists
      */
@@ -261,6 +607,9 @@ public class Delta {
      * <p>clearSource.</p>
      */
     public void clearSource() {
+        if (source != null) {
+            source.clear();
+        }
         source = null;
     }
     
@@ -292,9 +641,10 @@ public class Delta {
         }
 
         if ((source == null) || (!keepSource)) {
+            clearSource();
             source = new SourceState(seekSource);
         }
-        if (source.checksum.isEmpty()) {
+        if ((source.coarse != null) ? source.coarse.isEmpty() : source.checksum.isEmpty()) {
             initChecksums(seekSource, S);
         }
         target = new TargetState(targetIS);
@@ -303,6 +653,7 @@ public class Delta {
             debug("checksums " + source.checksum);
         }
         done = 0;
+        lastCopyEnd = 0;
         long nextDone = done;
 
         long loops = 0;
@@ -311,33 +662,63 @@ public class Delta {
         while (!target.eof()) {
             loops++;
             debug("!target.eof()");
-            int index = target.find(source);
+            target.candidateLimit = autocode ? done + targetOffset - sourceOffset : Long.MAX_VALUE;
+            long index = target.find(source);
+            target.peeked = -1;
+            if ((index > -1) && (lazyLevel > 0) && !acceptHash && target.betterMatchAhead(source, source.checksum.offsetOf(index, S))) {
+                // the current byte becomes data, the longer match is taken later
+                index = -1;
+            }
             if (index > -1) {
                 if (debug) {
                     debug("found hash " + index);
                 }
-                long offset = ((long) index) * S;
+                long offset = source.checksum.offsetOf(index, S);
                 autocodeFit = true;
                 if (autocode && (sourceOffset + offset) >= (done + targetOffset)) {
                     autocodeFit = false;
                 }
                 int match = 0;
+                int back = 0;
                 if (acceptHash && autocodeFit) {
                     match = S;
                     target.tbuf.position(target.tbuf.position() + match);
                     target.hashReset = true;
                 } else if (autocodeFit) {
-                    source.seek(offset);
-                    target.matched.clear();
-                    match = target.longestMatch(source);
+                    int peeked = target.peeked;
+                    if (output instanceof RetractableDiffWriter) {
+                        // the preceding bytes are read only for a real match
+                        if (peeked < 0) {
+                            peeked = target.peekMatch(source, offset);
+                        }
+                        if (peeked >= S) {
+                            back = target.backwardMatch(source, offset, ((RetractableDiffWriter) output).retractable());
+                        }
+                    }
+                    if (peeked >= 0) {
+                        match = target.longestMatch(source, offset, peeked);
+                    } else {
+                        source.seek(offset);
+                        match = target.longestMatch(source);
+                    }
                 }
-                debug("best match " + match + " at index " + (offset / S));
+                debug("best match " + match + " at index " + index);
                 if ((match >= S) && autocodeFit) {
+                    back = Math.min(back, Integer.MAX_VALUE - match);
+                    if (back > 0) {
+                        // the preceding data bytes are copied as well
+                        ((RetractableDiffWriter) output).retractData(back);
+                    }
                     if (debug) {
-                        debug("output.addCopy(" + offset + "," + match + ")");
+                        debug("output.addCopy(" + (offset - back) + "," + (match + back) + ")");
+                    }
+                    output.addCopy(sourceOffset + offset - back, match + back);
+                    lastCopyEnd = offset + match;
+                    if (source.coarse != null) {
+                        // a match running into the next region makes it hot as well
+                        source.refineRegion(lastCopyEnd);
                     }
-                    output.addCopy(sourceOffset + offset, match);
-                    found += match;
+                    found += match + back;
                     done += match;
                 } else {
                     // move the position back according to how much we can't copy
@@ -386,63 +767,345 @@ public class Delta {
     }
 
     private void initChecksums(SeekableSource ssource, int chunkSize) throws IOException {
+        if (source.coarse != null) {
+            initChecksums(ssource, source.coarse, null, coarseChunkSize);
+            source.checksum.ensureCapacity(source.fineLimit, chunkSize);
+            if (duplicateChecksum) {
+                source.checksum2.ensureCapacity(source.fineLimit, chunkSize);
+            }
+            return;
+        }
+        if (contentDefinedChunkSize > 0) {
+            if (sourceSizeHint > 0) {
+                source.checksum.ensureCapacity(sourceSizeHint, contentDefinedChunkSize);
+                if (duplicateChecksum) {
+                    source.checksum2.ensureCapacity(sourceSizeHint, contentDefinedChunkSize);
+                }
+            }
+            source.checksum.computeAnchors(ssource, chunkSize, contentDefinedChunkSize);
+            if (duplicateChecksum) {
+                source.checksum2.computeAnchors(ssource, chunkSize, contentDefinedChunkSize);
+            }
+            return;
+        }
+        initChecksums(ssource, source.checksum, duplicateChecksum ? source.checksum2 : null, chunkSize);
+    }
+
+    private void initChecksums(SeekableSource ssource, Checksum checksum, Checksum checksum2, int chunkSize) throws IOException {
+        ForkJoinPool pool = null;
         ByteBuffer bb = ByteBuffer.allocate(chunkSize * 2);
-        int count = 0;
-        int count2 = 0;
+        if (indexThreads > 1) {
+            pool = new ForkJoinPool(indexThreads);
+            bb = ByteBuffer.allocate(Math.max(INDEX_BLOCK_SIZE / chunkSize, 2) * chunkSize);
+        }
+        try {
+            initChecksums(ssource, checksum, checksum2, chunkSize, bb, pool);
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    private void initChecksums(SeekableSource ssource, Checksum checksum, Checksum checksum2, int chunkSize,
+            ByteBuffer bb, ForkJoinPool pool) throws IOException {
+        long count = 0;
+        long count2 = 0;
         int rep = 0;
-        source.checksum.spos = 0;
+        checksum.spos = 0;
+        if (sourceSizeHint > 0) {
+            checksum.ensureCapacity(sourceSizeHint, chunkSize);
+            if (checksum2 != null) {
+                checksum2.ensureCapacity(sourceSizeHint, chunkSize);
+            }
+        }
         ssource.seek(0);
         while (true) {
-            source.checksum.spos += ssource.read(bb);
+            int read = ssource.read(bb);
+            if (read > 0) {
+                checksum.spos += read;
+            }
             bb.flip();
             if (bb.remaining() < chunkSize) {
                 break;
             }
-            count = source.checksum.compute(bb, chunkSize, count);
-            if (duplicateChecksum) {
+            count = checksum.compute(bb, chunkSize, count, pool);
+            if (checksum2 != null) {
                 bb.rewind();
-                count2 = source.checksum2.compute(bb, chunkSize, count2);
+                count2 = checksum2.compute(bb, chunkSize, count2, pool);
             }
             bb.compact();
             rep++;
-            if (rep >= 5 + 10000000 / chunkSize) {
-                System.out.print("Computing hash table (" + source.checksum.spos / 1024 / 1024 + " mb)                                 \b\r");
+            if (rep >= 5 + 10000000 / bb.capacity()) {
+                System.out.print("Computing hash table (" + checksum.spos / 1024 / 1024 + " mb)                                 \b\r");
                 rep = 0;
             }
         }
     }
-    
+
     /**
-     * <p>writeChecksums.</p>
+     * Writes the checksum index of the current source to a file.
+     * <p>
+     * The file starts with a header: magic, format version, chunk size and
+     * length of the indexed source, then a content hash of each megabyte of
+     * the source (CRC-32 and Adler-32 in one long). Each checksum follows
+     * with its hash seeds and tables in mapped layout, see
+     * {@link Checksum#write(DataOutput)}. The partial index of the multi
+     * resolution engine cannot be written, see {@link #setCoarseChunkSize(int)}.
+     * <p>
+     * The index is written to a temporary file renamed to
+     * <code>filename</code> at the end, so an index restored from
+     * <code>filename</code> and still mapped from it can be written back.
      *
      * @param filename a {@link java.lang.String} object.
      * @throws java.io.FileNotFoundException if any.
      * @throws java.io.IOException if any.
      */
     public void writeChecksums(String filename) throws FileNotFoundException, IOException {
-        ObjectOutputStream os = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(filename)));
-        os.writeInt(S);
-        os.writeObject(source.checksum);
-        os.writeObject(source.checksum2);
-        os.close();
+        if (source.coarse != null) {
+            throw new IllegalStateException("Checksums of the multi resolution engine cannot be saved");
+        }
+        long length = source.checksum.spos;
+        long[] hashes = contentHashes(source.source, length);
+        File file = new File(filename);
+        File temp = new File(filename + ".tmp");
+        DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 20));
+        boolean written = false;
+        try {
+            os.writeInt(INDEX_MAGIC);
+            os.writeInt(INDEX_VERSION);
+            os.writeInt(S);
+            os.writeLong(length);
+            os.writeInt(hashes.length);
+            for (long hash : hashes) {
+                os.writeLong(hash);
+            }
+            boolean duplicate = duplicateChecksum && !source.checksum2.isEmpty();
+            os.writeBoolean(duplicate);
+            source.checksum.write(os);
+            if (duplicate) {
+                source.checksum2.write(os);
+            }
+            written = true;
+        } finally {
+            os.close();
+            if (!written) {
+                temp.delete();
+            }
+        }
+        if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+            temp.delete();
+            throw new IOException("Cannot replace " + filename);
+        }
     }
-    
+
+    /**
+     * Restores a checksum index written by {@link #writeChecksums(String)}.
+     * Index tables are mapped from the file rather than read. The index is
+     * rejected if the file is not in the current format or if the length or
+     * content of <code>seekSource</code> differ from the indexed source. The
+     * whole source is read to compare content hashes, so a restored index is
+     * safe to use with {@link #acceptHash}.
+     *
+     * @param filename a {@link java.lang.String} object.
+     * @param seekSource a {@link com.nothome.delta.SeekableSource} object.
+     * @return false if the index was rejected, the source is unchanged then.
+     * @throws java.io.IOException if any.
+     */
+    public boolean readChecksums(String filename, SeekableSource seekSource) throws IOException {
+        return readChecksums(filename, seekSource, false);
+    }
+
     /**
-     * <p>readChecksums.</p>
+     * Restores a checksum index written by {@link #writeChecksums(String)}
+     * like {@link #readChecksums(String, SeekableSource)}. With
+     * <code>update</code> the source may have grown or changed in place
+     * since: only the indexed part of <code>seekSource</code> is compared,
+     * each megabyte of it with a different content hash is indexed again by
+     * {@link #updateChecksums(SeekableSource, SeekableSource, long, long)}
+     * and appended data by {@link #appendChecksums(SeekableSource)}. The
+     * index is still rejected if the source is shorter than the indexed one
+     * or if an index of content defined chunks would have to change.
+     * {@link #isChecksumsUpdated()} tells whether the index has changed and
+     * should be written again.
      *
      * @param filename a {@link java.lang.String} object.
      * @param seekSource a {@link com.nothome.delta.SeekableSource} object.
+     * @param update true to bring the index up to date with the source.
+     * @return false if the index was rejected, the source is unchanged then.
+     * @throws java.io.IOException if any.
+     */
+    public boolean readChecksums(String filename, SeekableSource seekSource, boolean update) throws IOException {
+        checksumsUpdated = false;
+        File file = new File(filename);
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if ((raf.length() < INDEX_HEADER_SIZE) || (raf.readInt() != INDEX_MAGIC)
+                    || (raf.readInt() != INDEX_VERSION)) {
+                return false;
+            }
+            int chunkSize = raf.readInt();
+            long length = raf.readLong();
+            int n = raf.readInt();
+            if ((chunkSize <= 0) || (length < 0) || (n != (length + CONTENT_HASH_BLOCK - 1) / CONTENT_HASH_BLOCK)
+                    || (raf.length() < INDEX_HEADER_SIZE + 8L * n)) {
+                return false;
+            }
+            long[] hashes = new long[n];
+            for (int i = 0; i < n; i++) {
+                hashes[i] = raf.readLong();
+            }
+            long[] current = contentHashes(seekSource, length);
+            if ((current == null) || (!update && (!hasLength(seekSource, length) || !Arrays.equals(hashes, current)))) {
+                return false;
+            }
+            boolean grown = !hasLength(seekSource, length);
+            boolean changed = grown || !Arrays.equals(hashes, current);
+            boolean duplicate = raf.readBoolean();
+            Checksum checksum = Checksum.read(raf, file);
+            Checksum checksum2 = duplicate ? Checksum.read(raf, file) : null;
+            if ((raf.getFilePointer() != raf.length()) || (changed && checksum.isContentDefined())) {
+                checksum.clear();
+                if (checksum2 != null) {
+                    checksum2.clear();
+                }
+                return false;
+            }
+            clearSource();
+            source = new SourceState(seekSource);
+            source.coarse = null;  // the restored index covers the whole source
+            setKeepSource(true);
+            setChunkSize(chunkSize);
+            setDuplicateChecksum(duplicate);
+            source.checksum = checksum;
+            if (duplicate) {
+                source.checksum2 = checksum2;
+            }
+            for (int i = 0; i < n; i++) {
+                if (hashes[i] != current[i]) {
+                    // one update for a run of changed megabytes
+                    int j = i + 1;
+                    while ((j < n) && (hashes[j] != current[j])) {
+                        j++;
+                    }
+                    updateChecksums(seekSource, null, (long) i * CONTENT_HASH_BLOCK,
+                            Math.min((long) j * CONTENT_HASH_BLOCK, length));
+                    i = j;
+                }
+            }
+            if (grown) {
+                appendChecksums(seekSource);
+            }
+            checksumsUpdated = changed;
+            return true;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * True if the last {@link #readChecksums(String, SeekableSource, boolean)}
+     * brought the restored index up to date with a changed source.
+     *
+     * @return a boolean.
+     */
+    public boolean isChecksumsUpdated() {
+        return checksumsUpdated;
+    }
+
+    /**
+     * Extends the checksum index of the current source to data appended to
+     * it, see {@link Checksum#append(SeekableSource, int)}. The index must
+     * have been computed with {@link #setKeepSource(boolean)} or restored by
+     * {@link #readChecksums(String, SeekableSource)}; <code>seekSource</code>
+     * becomes the source of following computations.
+     *
+     * @param seekSource the grown {@link com.nothome.delta.SeekableSource}.
      * @throws java.io.IOException if any.
-     * @throws java.lang.ClassNotFoundException if any.
      */
-    public void readChecksums(String filename, SeekableSource seekSource) throws IOException, ClassNotFoundException {
-        ObjectInputStream is = new ObjectInputStream(new BufferedInputStream(new FileInputStream(filename)));
-        source = new SourceState(seekSource);
+    public void appendChecksums(SeekableSource seekSource) throws IOException {
+        checkUpdatable();
+        source.source = seekSource;
+        source.checksum.append(seekSource, S);
+        if (duplicateChecksum) {
+            source.checksum2.append(seekSource, S);
+        }
+    }
+
+    /**
+     * Updates the checksum index of the current source for bytes
+     * <code>from</code> to <code>to</code> (exclusive) changed in place, see
+     * {@link Checksum#update(SeekableSource, SeekableSource, int, long, long)}.
+     * Call once per changed range and {@link #appendChecksums(SeekableSource)}
+     * if the source has grown.
+     *
+     * @param seekSource the changed {@link com.nothome.delta.SeekableSource}.
+     * @param oldSource the previous source, null if no longer available.
+     * @param from a long.
+     * @param to a long.
+     * @throws java.io.IOException if any.
+     */
+    public void updateChecksums(SeekableSource seekSource, SeekableSource oldSource, long from, long to) throws IOException {
+        checkUpdatable();
+        source.source = seekSource;
+        source.checksum.update(seekSource, oldSource, S, from, to);
+        if (duplicateChecksum) {
+            source.checksum2.update(seekSource, oldSource, S, from, to);
+        }
+    }
+
+    private void checkUpdatable() {
+        if ((source == null) || source.checksum.isEmpty()) {
+            throw new IllegalStateException("No checksums to update");
+        }
         setKeepSource(true);
-        setChunkSize(is.readInt());
-        source.checksum = (Checksum) is.readObject();
-        source.checksum2 = (Checksum) is.readObject();
-        is.close();
+    }
+
+    /*
+     * True if the source ends exactly at length
+     */
+    private static boolean hasLength(SeekableSource source, long length) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(1);
+        if (length > 0) {
+            source.seek(length - 1);
+            if (source.read(bb) != 1) {
+                return false;
+            }
+            bb.clear();
+        }
+        source.seek(length);
+        return source.read(bb) <= 0;
+    }
+
+    /*
+     * CRC-32 and Adler-32 of each CONTENT_HASH_BLOCK bytes of the first
+     * length bytes of the source, null if the source is shorter
+     */
+    private static long[] contentHashes(SeekableSource source, long length) throws IOException {
+        long[] hashes = new long[(int) ((length + CONTENT_HASH_BLOCK - 1) / CONTENT_HASH_BLOCK)];
+        ByteBuffer bb = ByteBuffer.allocate((int) Math.min(CONTENT_HASH_BLOCK, Math.max(length, 1)));
+        CRC32 crc = new CRC32();
+        Adler32 adler = new Adler32();
+        for (int i = 0; i < hashes.length; i++) {
+            long pos = (long) i * CONTENT_HASH_BLOCK;
+            source.seek(pos);
+            bb.clear();
+            bb.limit((int) Math.min(CONTENT_HASH_BLOCK, length - pos));
+            while (bb.hasRemaining() && (source.read(bb) > 0)) {
+                // fill block
+            }
+            if (bb.hasRemaining()) {
+                source.seek(0);
+                return null;
+            }
+            crc.reset();
+            crc.update(bb.array(), 0, bb.position());
+            adler.reset();
+            adler.update(bb.array(), 0, bb.position());
+            hashes[i] = (crc.getValue() << 32) | adler.getValue();
+        }
+        source.seek(0);
+        return hashes;
     }
 
     private void addData() throws IOException {
@@ -481,9 +1144,38 @@ public class Delta {
         private SeekableSource source;
         private Checksum checksum = new Checksum(source, S);
         private Checksum checksum2 = new Checksum(source, S, System.currentTimeMillis());
+        /*
+         * Coarse index of the multi resolution engine, null if not used
+         */
+        private Checksum coarse = null;
+        private BitSet regions = new BitSet();
+        private HashSet<Long> refined = new HashSet<Long>();
+        private long fineIndexed = 0;
+        private long fineLimit = 0;
 
         public SourceState(SeekableSource source) throws IOException {
             this.source = source;
+            if (coarseChunkSize > S) {
+                coarse = new Checksum(source, coarseChunkSize);
+                coarse.setFilterEnabled(checksumFilter);
+                if (indexDirectory != null) {
+                    coarse.setTable(new MappedChecksumIndex(indexDirectory));
+                }
+                fineLimit = fineIndexMemory / ChecksumIndex.BYTES_PER_ENTRY * S;
+            }
+            if (indexDirectory != null) {
+                checksum.setTable(new MappedChecksumIndex(indexDirectory));
+                checksum2.setTable(new MappedChecksumIndex(indexDirectory));
+            } else if (bucketIndex) {
+                checksum.setTable(new BucketChecksumIndex());
+                checksum2.setTable(new BucketChecksumIndex());
+            }
+            checksum.setHash64(hash64);
+            checksum.setStrongFingerprint(strongFingerprint);
+            checksum.setMaxCandidates(maxCandidates);
+            checksum2.setMaxCandidates(maxCandidates);
+            checksum.setFilterEnabled(checksumFilter);
+            checksum2.setFilterEnabled(checksumFilter);
             source.seek(0);
         }
 
@@ -491,6 +1183,50 @@ public class Delta {
             source.seek(index);
         }
 
+        /*
+         * Releases index storage, mapped index files are deleted
+         */
+        void clear() {
+            checksum.clear();
+            checksum2.clear();
+            if (coarse != null) {
+                coarse.clear();
+            }
+        }
+
+        /*
+         * Makes the fine index find the source chunk of the coarse index,
+         * indexing the source region around it if the memory allows
+         */
+        void refine(long coarseIndex) throws IOException {
+            long offset = coarseIndex * coarseChunkSize;
+            long region = offset / REGION_SIZE;
+            refineRegion(offset);
+            if ((!regions.get((int) region) || (offset % S != 0)) && refined.add(offset)) {
+                checksum.addChunk(source, S, offset);
+                if (duplicateChecksum) {
+                    checksum2.addChunk(source, S, offset);
+                }
+            }
+        }
+
+        /*
+         * Indexes the source region containing offset with fine chunks,
+         * unless done or out of memory
+         */
+        void refineRegion(long offset) throws IOException {
+            long region = offset / REGION_SIZE;
+            if (regions.get((int) region) || (fineIndexed + REGION_SIZE > fineLimit)) {
+                return;
+            }
+            regions.set((int) region);
+            fineIndexed += REGION_SIZE;
+            checksum.addChunks(source, S, region * REGION_SIZE, (region + 1) * REGION_SIZE);
+            if (duplicateChecksum) {
+                checksum2.addChunks(source, S, region * REGION_SIZE, (region + 1) * REGION_SIZE);
+            }
+        }
+
         /**
          * Returns a debug
          * <code>String</code>.
@@ -504,16 +1240,70 @@ public class Delta {
         }
     }
 
+    /*
+     * Number of equal leading bytes of two buffer regions, compared 8 bytes
+     * at a time. Both buffers are big endian, so the first differing byte
+     * is the most significant one of the differing word.
+     */
+    static int mismatch(ByteBuffer a, int apos, ByteBuffer b, int bpos, int len) {
+        int i = 0;
+        while (i + 8 <= len) {
+            long diff = a.getLong(apos + i) ^ b.getLong(bpos + i);
+            if (diff != 0) {
+                return i + (Long.numberOfLeadingZeros(diff) >>> 3);
+            }
+            i += 8;
+        }
+        while ((i < len) && (a.get(apos + i) == b.get(bpos + i))) {
+            i++;
+        }
+        return i;
+    }
+
     class TargetState {
 
         private ReadableByteChannel c;
-        private ByteBuffer tbuf = ByteBuffer.allocate(blocksize());
-        private ByteBuffer sbuf = ByteBuffer.allocate(S);
-        private long hash, hash2;
+        /*
+         * Coarse chunk size, 0 without multi resolution engine
+         */
+        private final int coarseSize = source.coarse == null ? 0 : coarseChunkSize;
+        /*
+         * Target bytes kept before the current position, so that data
+         * preceding a content defined or coarse chunk can be matched
+         * backwards
+         */
+        private final int history = Math.min(Math.max(source.checksum.getMaxAnchorGap(), coarseSize), MAX_HISTORY);
+        /*
+         * Target bytes hashed at the current position
+         */
+        private final int window = Math.max(S, coarseSize);
+        private ByteBuffer tbuf = ByteBuffer.allocate(blocksize() + history);
+        private ByteBuffer sbuf = ByteBuffer.allocate(blocksize());
+        private long hash, hash2, coarseHash;
         private boolean invalidHash = true;
+        private boolean coarseValid = false;
         private boolean hashReset = true;
         private boolean eof;
-        private TByteArrayList matched = new TByteArrayList();
+        private ByteBuffer pbuf = ByteBuffer.allocate(Math.max(256, history));
+        private long[] candidates = new long[0];
+        private long[] candidates2 = new long[0];
+        /*
+         * Match length within the buffered target of the candidate picked
+         * by the last lookup, -1 if not measured
+         */
+        private int candidateMatch = -1;
+        /*
+         * Match length within the buffered target at the offset passed to
+         * betterMatchAhead, -1 if not measured
+         */
+        int peeked = -1;
+        private long aheadHash;
+        private boolean aheadValid = false;
+        private int prefetched = 0;
+        /*
+         * Candidates at or beyond this source offset are not usable
+         */
+        long candidateLimit = Long.MAX_VALUE;
 
         TargetState(InputStream targetIS) throws IOException {
             c = Channels.newChannel(targetIS);
@@ -521,13 +1311,13 @@ public class Delta {
         }
 
         private int blocksize() {
-            return Math.max(Math.min(1024 * 16, S * 4), S + 1024);
+            return Math.max(Math.min(1024 * 16, window * 4), window + 1024);
         }
 
         /**
          * Returns the index of the next N bytes of the stream.
          */
-        public int find(SourceState source) throws IOException {
+        public long find(SourceState source) throws IOException {
             if (eof) {
                 return -1;
             }
@@ -535,15 +1325,15 @@ public class Delta {
             sbuf.limit(0);
             if (hashReset) {
                 debug("hashReset");
-                while (tbuf.remaining() < S) {
-                    tbuf.compact();
-                    int read = c.read(tbuf);
-                    tbuf.flip();
-                    if (read == -1) {
-                        debug("target ending");
-                        return -1;
+                while (tbuf.remaining() < window) {
+                    if (readMore() == -1) {
+                        break;
                     }
                 }
+                if (tbuf.remaining() < S) {
+                    debug("target ending");
+                    return -1;
+                }
                 hash();
                 //hash = Checksum.queryChecksum(tbuf, S);
                 //hashReset = false;
@@ -554,12 +1344,38 @@ public class Delta {
             if (debug) {
                 debug("hash " + hash + " " + dump());
             }
-            int index = source.checksum.findChecksumIndex(hash);
+            long index = lookup(source);
+            if ((index == -1) && coarseValid) {
+                long coarseIndex = source.coarse.findChecksumIndex(coarseHash, tbuf, coarseSize);
+                if (coarseIndex > -1) {
+                    source.refine(coarseIndex);
+                    index = lookup(source);
+                }
+            }
+            return index;
+        }
+
+        private long lookup(SourceState source) throws IOException {
+            return lookup(source, hash, hash2, true);
+        }
+
+        /*
+         * Index of the chunk at the current position with hashes h and h2,
+         * counted in the lookup statistics if count is set
+         */
+        private long lookup(SourceState source, long h, long h2, boolean count) throws IOException {
+            candidateMatch = -1;
+            if (source.checksum.getMaxCandidates() > 1) {
+                return bestCandidate(source, h, h2, count);
+            }
+            long index = count ? source.checksum.findChecksumIndex(h, tbuf, S)
+                    : source.checksum.peekChecksumIndex(h, tbuf, S);
             if (index == -1) {
                 return index;
             }
             if (isDuplicateChecksum()) {
-                int index2 = source.checksum2.findChecksumIndex(hash2);
+                long index2 = count ? source.checksum2.findChecksumIndex(h2)
+                        : source.checksum2.peekChecksumIndex(h2, null, 0);
                 if (index2 != index) {
                     return -1;
                 }
@@ -567,6 +1383,146 @@ public class Delta {
             return index;
         }
 
+        /*
+         * Picks the candidate giving the longest match within the buffered
+         * target, the nearest to the previous copy on ties.
+         */
+        private long bestCandidate(SourceState source, long h, long h2, boolean count) throws IOException {
+            if (candidates.length != source.checksum.getMaxCandidates()) {
+                candidates = new long[source.checksum.getMaxCandidates()];
+                candidates2 = new long[source.checksum.getMaxCandidates()];
+            }
+            int n = count ? source.checksum.findChecksumIndexes(h, tbuf, S, candidates)
+                    : source.checksum.peekChecksumIndexes(h, tbuf, S, candidates);
+            int n2 = 0;
+            if (isDuplicateChecksum()) {
+                n2 = count ? source.checksum2.findChecksumIndexes(h2, candidates2)
+                        : source.checksum2.peekChecksumIndexes(h2, null, 0, candidates2);
+            }
+            long best = -1;
+            int bestMatch = -1;
+            long bestDistance = Long.MAX_VALUE;
+            for (int i = 0; i < n; i++) {
+                long index = candidates[i];
+                if (isDuplicateChecksum() && !contains(candidates2, n2, index)) {
+                    continue;
+                }
+                long offset = source.checksum.offsetOf(index, S);
+                if (offset >= candidateLimit) {
+                    if (best == -1) {
+                        best = index;  // caller rejects it
+                    }
+                    continue;
+                }
+                int match = (acceptHash || (n == 1)) ? S : peekMatch(source, offset);
+                long distance = Math.abs(offset - lastCopyEnd);
+                if ((match > bestMatch) || ((match == bestMatch) && (distance < bestDistance))) {
+                    best = index;
+                    bestMatch = match;
+                    bestDistance = distance;
+                }
+            }
+            candidateMatch = (acceptHash || (n == 1)) ? -1 : bestMatch;
+            return best;
+        }
+
+        private boolean contains(long[] values, int n, long value) {
+            for (int i = 0; i < n; i++) {
+                if (values[i] == value) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /*
+         * Length of match at source offset without consuming target bytes,
+         * limited to the target data in buffer.
+         */
+        int peekMatch(SourceState source, long offset) throws IOException {
+            int pos = tbuf.position();
+            int limit = tbuf.remaining();
+            int match = 0;
+            source.seek(offset);
+            while (match < limit) {
+                pbuf.clear();
+                pbuf.limit(Math.min(pbuf.capacity(), limit - match));
+                if (source.source.read(pbuf) <= 0) {
+                    break;
+                }
+                pbuf.flip();
+                int same = mismatch(pbuf, 0, tbuf, pos + match, pbuf.remaining());
+                match += same;
+                if (same < pbuf.remaining()) {
+                    return match;
+                }
+            }
+            return match;
+        }
+
+        /*
+         * Whether a match starting up to lazyLevel bytes later ends beyond
+         * the one at source offset, both measured within the buffered target.
+         * Later chunks are picked as lookup picks them, without counting the
+         * probes as lookups. The length at offset is left in peeked.
+         */
+        boolean betterMatchAhead(SourceState source, long offset) throws IOException {
+            peeked = -1;
+            if (offset >= candidateLimit) {
+                return false;
+            }
+            int pos = tbuf.position();
+            int match = (candidateMatch >= 0) ? candidateMatch : peekMatch(source, offset);
+            peeked = match;
+            if ((match < S) || (match >= tbuf.remaining())) {
+                return false;
+            }
+            try {
+                for (int k = 1; (k <= lazyLevel) && (pos + k + S <= tbuf.limit()); k++) {
+                    tbuf.position(pos + k);
+                    long h = source.checksum.queryChecksum(tbuf, S);
+                    long h2 = isDuplicateChecksum() ? source.checksum2.queryChecksum(tbuf, S) : 0;
+                    long index = lookup(source, h, h2, false);
+                    if ((index == -1) || (source.checksum.offsetOf(index, S) >= candidateLimit)) {
+                        continue;
+                    }
+                    int ahead = (candidateMatch >= 0) ? candidateMatch
+                            : peekMatch(source, source.checksum.offsetOf(index, S));
+                    if (ahead > match + k) {
+                        return true;
+                    }
+                }
+            } finally {
+                tbuf.position(pos);
+            }
+            return false;
+        }
+
+        /*
+         * Length of the match ending at the current target position and at
+         * source offset, looking back at most max bytes still in buffer.
+         */
+        int backwardMatch(SourceState source, long offset, int max) throws IOException {
+            int len = (int) Math.min(Math.min(max, pbuf.capacity()), Math.min(offset, tbuf.position()));
+            if (len <= 0) {
+                return 0;
+            }
+            source.seek(offset - len);
+            pbuf.clear();
+            pbuf.limit(len);
+            while (pbuf.hasRemaining()) {
+                if (source.source.read(pbuf) <= 0) {
+                    return 0;
+                }
+            }
+            int pos = tbuf.position();
+            int back = 0;
+            while ((back < len) && (pbuf.get(len - 1 - back) == tbuf.get(pos - 1 - back))) {
+                back++;
+            }
+            return back;
+        }
+
         public boolean eof() {
             return eof;
         }
@@ -577,7 +1533,7 @@ public class Delta {
          * @throws IOException
          */
         public int read() throws IOException {
-            if (tbuf.remaining() <= S) {
+            if (tbuf.remaining() <= window) {
                 readMore();
                 if (!tbuf.hasRemaining()) {
                     eof = true;
@@ -591,11 +1547,17 @@ public class Delta {
                 if (isDuplicateChecksum()) {
                     hash2 = source.checksum2.incrementChecksum(hash2, b, nchar, S);
                 }
+                if (prefetchDistance > 0) {
+                    prefetchAhead();
+                }
                 invalidHash = false;
             } else {
                 debug("out of char");
                 invalidHash = true;
             }
+            if (coarseSize > 0) {
+                rollCoarse(b);
+            }
             return b & 0xFF;
         }
 
@@ -606,54 +1568,77 @@ public class Delta {
                 if (isDuplicateChecksum()) {
                     hash2 = source.checksum2.incrementChecksum(hash2, b, nchar, S);
                 }
+                if (prefetchDistance > 0) {
+                    prefetchAhead();
+                }
                 invalidHash = false;
             } else {
                 debug("out of char");
                 invalidHash = true;
             }
+            if (coarseSize > 0) {
+                rollCoarse(b);
+            }
+        }
+
+        /*
+         * Rolls the coarse hash over byte b just consumed, it is recomputed
+         * once the window is in buffer again
+         */
+        private void rollCoarse(byte b) {
+            if (tbuf.remaining() < coarseSize) {
+                coarseValid = false;
+            } else if (coarseValid) {
+                coarseHash = source.coarse.incrementChecksum(coarseHash, b, tbuf.get(tbuf.position() + coarseSize - 1), coarseSize);
+            } else {
+                coarseHash = source.coarse.queryChecksum(tbuf, coarseSize);
+                coarseValid = true;
+            }
         }
 
         /**
          * Returns the longest match length at the source location.
+         * The hash is rebuilt by the next {@link #find} rather than rolled
+         * over every matched byte.
          */
         public int longestMatch(SourceState source) throws IOException {
-            debug("longestMatch");
-            int match = 0;
-            if (!matched.isEmpty()) {
-                for (int i = 0; i < matched.size(); i++) {
-                    if (!sbuf.hasRemaining()) {
-                        sbuf.clear();
-                        int read = source.source.read(sbuf);
-                        sbuf.flip();
-                        if (read == -1) {
-                            return match;
-                        }
-                    }
-                    if (sbuf.get() != matched.get(i)) {
-                        return match;
-                    }
-                    match++;
-                    if (match >= LONGEST_POSSIBLE_MATCH) {
-                        debug("longest possible match");
-                        return match;
-                    }
-                }
+            return longestMatch(source, 0);
+        }
+
+        /*
+         * Longest match at the current source position whose first peeked
+         * bytes, all within the buffered target, are known to match already
+         * and are skipped without reading the source again
+         */
+        int longestMatch(SourceState source, long offset, int peeked) throws IOException {
+            boolean bufferEnd = (peeked >= tbuf.remaining());
+            tbuf.position(tbuf.position() + peeked);
+            hashReset = true;
+            if (!bufferEnd) {
+                // the match ends at a mismatch or at the end of source
+                return peeked;
             }
-            //hashReset = true;
+            source.seek(offset + peeked);
+            return longestMatch(source, peeked);
+        }
+
+        private int longestMatch(SourceState source, int match) throws IOException {
+            debug("longestMatch");
+            int readSize = Math.min(Math.max(S, MIN_SOURCE_READ), sbuf.capacity());
+            hashReset = true;
             while (true) {
                 if (!sbuf.hasRemaining()) {
                     sbuf.clear();
+                    sbuf.limit(readSize);
                     int read = source.source.read(sbuf);
                     sbuf.flip();
                     if (read == -1) {
                         return match;
                     }
+                    // long matches read the source in growing blocks
+                    readSize = Math.min(readSize * 2, sbuf.capacity());
                 }
                 if (!tbuf.hasRemaining()) {
-                    /*
-                     * if (match <= S) { eof = true; return match; // end of
-                     * buffer }
-                     */
                     readMore();
                     if (!tbuf.hasRemaining()) {
                         debug("target ending");
@@ -661,29 +1646,55 @@ public class Delta {
                         return match;
                     }
                 }
-                byte b = tbuf.get();
-                if (b != sbuf.get()) {
-                    tbuf.position(tbuf.position() - 1);
+                // copy length is an int in all diff formats
+                int len = Math.min(Math.min(sbuf.remaining(), tbuf.remaining()), Integer.MAX_VALUE - match);
+                int same = mismatch(sbuf, sbuf.position(), tbuf, tbuf.position(), len);
+                sbuf.position(sbuf.position() + same);
+                tbuf.position(tbuf.position() + same);
+                match += same;
+                if (same < len) {
                     return match;
                 }
-                incrementChecksum(b);
-                matched.add(b);
-                match++;
-                if (match >= LONGEST_POSSIBLE_MATCH) {
+                if (match == Integer.MAX_VALUE) {
                     debug("longest possible match");
-                    //System.err.println("Max match length exceeded.");
                     return match;
                 }
             }
         }
 
-        private void readMore() throws IOException {
+        /*
+         * Rolls the hash of the window prefetchDistance bytes ahead of the
+         * current one and touches its index memory
+         */
+        private void prefetchAhead() {
+            int start = tbuf.position() + prefetchDistance;
+            if (start + S > tbuf.limit()) {
+                aheadValid = false;
+                return;
+            }
+            if (aheadValid) {
+                aheadHash = source.checksum.incrementChecksum(aheadHash, tbuf.get(start - 1), tbuf.get(start + S - 1), S);
+            } else {
+                int pos = tbuf.position();
+                tbuf.position(start);
+                aheadHash = source.checksum.queryChecksum(tbuf, S);
+                tbuf.position(pos);
+                aheadValid = true;
+            }
+            prefetched += source.checksum.prefetch(aheadHash);
+        }
+
+        private int readMore() throws IOException {
             if (debug) {
                 debug("readMore " + tbuf);
             }
+            int keep = Math.min(tbuf.position(), history);
+            tbuf.position(tbuf.position() - keep);
             tbuf.compact();
-            c.read(tbuf);
+            int read = c.read(tbuf);
             tbuf.flip();
+            tbuf.position(keep);
+            return read;
         }
 
         void hash() {
@@ -692,10 +1703,18 @@ public class Delta {
                 if (isDuplicateChecksum()) {
                     hash2 = source.checksum2.queryChecksum(tbuf, S);
                 }
+                if (prefetchDistance > 0) {
+                    aheadValid = false;
+                    prefetchAhead();
+                }
                 invalidHash = false;
             } else {
                 invalidHash = true;
             }
+            coarseValid = (coarseSize > 0) && (tbuf.remaining() >= coarseSize);
+            if (coarseValid) {
+                coarseHash = source.coarse.queryChecksum(tbuf, coarseSize);
+            }
             hashReset = false;
         }
 
@@ -35,7 +35,7 @@ import java.io.OutputStream;
  * @author kylestev
  * @version $Id: $Id
  */
-public class GDiffWriter implements DiffWriter {
+public class GDiffWriter implements RetractableDiffWriter {
 
     /**
      * Max length of a chunk.
@@ -82,7 +82,7 @@ public class GDiffWriter implements DiffWriter {
     
     /** Constant <code>RATIO_WINDOW_SIZE=1024*1024</code> */
     public static final int RATIO_WINDOW_SIZE = 1024*1024; // 1 Mbyte floating window
-    private final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    private final DataBuffer buf = new DataBuffer();
     private final boolean debug = false;
     private int skipHeaders = 0;
     private boolean differential = false;
@@ -286,6 +286,22 @@ public class GDiffWriter implements DiffWriter {
         totalLength ++;
     }
 
+    /** {@inheritDoc} */
+    @Override
+    public int retractable() {
+        return buf.size();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void retractData(int length) throws IOException {
+        if ((length < 0) || (length > buf.size())) {
+            throw new IOException("Cannot retract " + length + " of " + buf.size() + " data bytes");
+        }
+        buf.truncate(buf.size() - length);
+        totalLength -= length;
+    }
+
     private void writeBuf() throws IOException {
         if (buf.size() > 0) {
             if (zeroAdditions && (buf.size() >= this.zeroMinBlock) && (winRatio < zeroRatio)) {
@@ -337,4 +353,14 @@ public class GDiffWriter implements DiffWriter {
         }
 //        output.close();
     }
+
+    /*
+     * Data bytes not yet written, the tail may be dropped again
+     */
+    private static class DataBuffer extends ByteArrayOutputStream {
+
+        void truncate(int size) {
+            count = size;
+        }
+    }
 }
@@ -0,0 +1,502 @@
+/*
+ * #%L
+ * XDeltaEncoder
+ * %%
+ * Copyright (C) 2011 - 2012 Frantisek Mantlik <frantisek at mantlik.cz>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package com.nothome.delta;
+
+import java.io.File;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Checksum table kept off the Java heap in a memory mapped file.
+ * <p>
+ * The layout is the same as in {@link ChecksumIndex}: power-of-two capacity,
+ * linear probing, load factor 1/2. Each slot takes 8 bytes (int key, int
+ * value + 1), so a zero filled file is an empty table and a new table needs no
+ * initialization. The file is mapped in regions of 1 GB, which allows tables
+ * larger than a single {@link MappedByteBuffer} can address. Pages are loaded
+ * and evicted by the operating system as needed.
+ * <p>
+ * The backing file is created in the given directory and deleted on
+ * {@link #clear()} or when the JVM exits. Tables mapped from a saved index by
+ * {@link #read(RandomAccessFile, File)} are read only and keep their file.
+ *
+ * @author kylestev
+ * @version $Id: $Id
+ */
+public class MappedChecksumIndex implements ChecksumTable, Serializable {
+
+    static final int SLOT_BYTES = 8;
+    static final int REGION_SHIFT = 27;
+    static final int REGION_SLOTS = 1 << REGION_SHIFT;
+    static final int REGION_MASK = REGION_SLOTS - 1;
+    private transient File directory;
+    private transient File file;
+    private transient MappedByteBuffer[] regions;
+    private transient boolean readOnly = false;
+    private int capacity;
+    private int mask;
+    private int size = 0;
+    private int threshold;
+
+    /**
+     * Creates an empty table in <code>directory</code>, growing as entries are
+     * added.
+     *
+     * @param directory a {@link java.io.File} object, null for the default
+     * temporary directory.
+     */
+    public MappedChecksumIndex(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Creates a table in <code>directory</code> able to hold
+     * <code>expectedEntries</code> without rehashing.
+     *
+     * @param directory a {@link java.io.File} object, null for the default
+     * temporary directory.
+     * @param expectedEntries a long.
+     * @throws java.io.IOException if any.
+     */
+    public MappedChecksumIndex(File directory, long expectedEntries) throws IOException {
+        this.directory = directory;
+        allocate(ChecksumIndex.capacityFor(expectedEntries));
+    }
+
+    private void allocate(int capacity) throws IOException {
+        file = File.createTempFile("checksums-", ".idx", directory);
+        file.deleteOnExit();
+        long length = (long) SLOT_BYTES * capacity;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+            FileChannel channel = raf.getChannel();
+            regions = new MappedByteBuffer[(int) ((capacity + (long) REGION_MASK) >> REGION_SHIFT)];
+            for (int i = 0; i < regions.length; i++) {
+                long pos = (long) i * REGION_SLOTS * SLOT_BYTES;
+                regions[i] = channel.map(FileChannel.MapMode.READ_WRITE, pos,
+                        Math.min((long) REGION_SLOTS * SLOT_BYTES, length - pos));
+            }
+        } finally {
+            // mappings stay valid after the channel is closed
+            raf.close();
+        }
+        this.capacity = capacity;
+        mask = capacity - 1;
+        threshold = capacity == ChecksumIndex.MAX_CAPACITY ? capacity - capacity / 16 : capacity / 2;
+    }
+
+    private void release() {
+        regions = null;
+        if ((file != null) && !readOnly && !file.delete()) {
+            file.deleteOnExit();
+        }
+        file = null;
+        readOnly = false;
+    }
+
+    /**
+     * Maps a table written by {@link ChecksumTable#write(DataOutput)} at the
+     * file pointer of <code>raf</code>, leaving the pointer after the table.
+     * The table is read only, the mapping stays valid after <code>raf</code>
+     * is closed.
+     *
+     * @param raf a {@link java.io.RandomAccessFile} object.
+     * @param file the file of <code>raf</code>.
+     * @return a {@link com.nothome.delta.MappedChecksumIndex} object.
+     * @throws java.io.IOException if any.
+     */
+    public static MappedChecksumIndex read(RandomAccessFile raf, File file) throws IOException {
+        MappedChecksumIndex table = new MappedChecksumIndex(file.getAbsoluteFile().getParentFile());
+        int capacity = raf.readInt();
+        int size = raf.readInt();
+        if ((capacity < 0) || (Integer.bitCount(capacity) > 1) || (size < 0) || (size > capacity)) {
+            throw new IOException("Invalid checksum table in " + file);
+        }
+        long pos = raf.getFilePointer();
+        long length = (long) SLOT_BYTES * capacity;
+        if (pos + length > raf.length()) {
+            throw new IOException("Truncated checksum table in " + file);
+        }
+        if (capacity > 0) {
+            FileChannel channel = raf.getChannel();
+            table.regions = new MappedByteBuffer[(int) ((capacity + (long) REGION_MASK) >> REGION_SHIFT)];
+            for (int i = 0; i < table.regions.length; i++) {
+                long offset = (long) i * REGION_SLOTS * SLOT_BYTES;
+                table.regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, pos + offset,
+                        Math.min((long) REGION_SLOTS * SLOT_BYTES, length - offset));
+            }
+            table.file = file;
+            table.readOnly = true;
+            table.capacity = capacity;
+            table.mask = capacity - 1;
+            table.size = size;
+            table.threshold = capacity == ChecksumIndex.MAX_CAPACITY ? capacity - capacity / 16 : capacity / 2;
+        }
+        raf.seek(pos + length);
+        return table;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void ensureCapacity(long expectedEntries) throws IOException {
+        int newCapacity = ChecksumIndex.capacityFor(expectedEntries);
+        if (regions == null) {
+            allocate(newCapacity);
+        } else if (newCapacity > capacity) {
+            rehash(newCapacity);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void put(int key, int value) throws IOException {
+        add(key, value, 1);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void add(int key, int value, int limit) throws IOException {
+        if (regions == null) {
+            allocate(ChecksumIndex.MIN_CAPACITY);
+        } else if (readOnly) {
+            readOnly = false;
+            copy();
+        }
+        int i = ChecksumIndex.slot(key, mask);
+        int found = 0;
+        while (true) {
+            MappedByteBuffer region = regions[i >>> REGION_SHIFT];
+            int p = (i & REGION_MASK) * SLOT_BYTES;
+            if (region.getInt(p + 4) == 0) {
+                if (size >= threshold) {
+                    if (capacity == ChecksumIndex.MAX_CAPACITY) {
+                        throw new IllegalStateException("Checksum index full (" + size + " entries).");
+                    }
+                    rehash(capacity << 1);
+                    add(key, value, limit);
+                    return;
+                }
+                region.putInt(p, key);
+                region.putInt(p + 4, value + 1);
+                size++;
+                return;
+            }
+            if ((region.getInt(p) == key) && (++found >= limit)) {
+                region.putInt(p + 4, value + 1);
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int get(int key) {
+        if (size == 0) {
+            return ChecksumIndex.EMPTY;
+        }
+        int i = ChecksumIndex.slot(key, mask);
+        while (true) {
+            MappedByteBuffer region = regions[i >>> REGION_SHIFT];
+            int p = (i & REGION_MASK) * SLOT_BYTES;
+            int v = region.getInt(p + 4);
+            if (v == 0) {
+                return ChecksumIndex.EMPTY;
+            }
+            if (region.getInt(p) == key) {
+                return v - 1;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getAll(int key, int[] found) {
+        if (size == 0) {
+            return 0;
+        }
+        int i = ChecksumIndex.slot(key, mask);
+        int n = 0;
+        while (n < found.length) {
+            MappedByteBuffer region = regions[i >>> REGION_SHIFT];
+            int p = (i & REGION_MASK) * SLOT_BYTES;
+            int v = region.getInt(p + 4);
+            if (v == 0) {
+                break;
+            }
+            if (region.getInt(p) == key) {
+                found[n++] = v - 1;
+            }
+            i = (i + 1) & mask;
+        }
+        return n;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int prefetch(int key) {
+        if (regions == null) {
+            return 0;
+        }
+        return value(ChecksumIndex.slot(key, mask));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean remove(int key, int value) throws IOException {
+        if (size == 0) {
+            return false;
+        }
+        int i = ChecksumIndex.slot(key, mask);
+        while (true) {
+            MappedByteBuffer region = regions[i >>> REGION_SHIFT];
+            int p = (i & REGION_MASK) * SLOT_BYTES;
+            int v = region.getInt(p + 4);
+            if (v == 0) {
+                return false;
+            }
+            if ((region.getInt(p) == key) && (v == value + 1)) {
+                delete(i);
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int removeValues(int from, int to) throws IOException {
+        if (size == 0) {
+            return 0;
+        }
+        int removed = 0;
+        // start behind an empty slot, entries are never moved behind it
+        int start = 0;
+        while (value(start) != 0) {
+            start++;
+        }
+        for (int n = 1; n <= capacity; n++) {
+            int i = (start + n) & mask;
+            int v;
+            while (((v = value(i)) > from) && (v <= to)) {
+                delete(i);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    private int value(int i) {
+        return regions[i >>> REGION_SHIFT].getInt((i & REGION_MASK) * SLOT_BYTES + 4);
+    }
+
+    /*
+     * Empties slot i, moving back the following entries of the cluster which
+     * would not be found behind the gap
+     */
+    private void delete(int i) throws IOException {
+        if (readOnly) {
+            readOnly = false;
+            copy();
+        }
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            MappedByteBuffer region = regions[j >>> REGION_SHIFT];
+            int p = (j & REGION_MASK) * SLOT_BYTES;
+            int v = region.getInt(p + 4);
+            if (v == 0) {
+                break;
+            }
+            int key = region.getInt(p);
+            if (((j - ChecksumIndex.slot(key, mask)) & mask) >= ((j - i) & mask)) {
+                MappedByteBuffer to = regions[i >>> REGION_SHIFT];
+                int q = (i & REGION_MASK) * SLOT_BYTES;
+                to.putInt(q, key);
+                to.putInt(q + 4, v);
+                i = j;
+            }
+        }
+        MappedByteBuffer region = regions[i >>> REGION_SHIFT];
+        int p = (i & REGION_MASK) * SLOT_BYTES;
+        region.putInt(p, 0);
+        region.putInt(p + 4, 0);
+        size--;
+    }
+
+    /*
+     * Replaces a read only mapping by a writable copy in a temporary file,
+     * slot positions are kept
+     */
+    private void copy() throws IOException {
+        MappedByteBuffer[] oldRegions = regions;
+        allocate(capacity);
+        for (int r = 0; r < regions.length; r++) {
+            ByteBuffer from = oldRegions[r].duplicate();
+            from.clear();
+            regions[r].put(from);
+            regions[r].clear();
+        }
+    }
+
+    private void rehash(int newCapacity) throws IOException {
+        MappedByteBuffer[] oldRegions = regions;
+        File oldFile = file;
+        boolean oldReadOnly = readOnly;
+        int oldCapacity = capacity;
+        readOnly = false;
+        allocate(newCapacity);
+        size = 0;
+        for (int j = 0; j < oldCapacity; j++) {
+            MappedByteBuffer region = oldRegions[j >>> REGION_SHIFT];
+            int p = (j & REGION_MASK) * SLOT_BYTES;
+            int v = region.getInt(p + 4);
+            if (v != 0) {
+                add(region.getInt(p), v - 1, Integer.MAX_VALUE);
+            }
+        }
+        if (!oldReadOnly && !oldFile.delete()) {
+            oldFile.deleteOnExit();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int maxSize() {
+        return ChecksumIndex.MAX_CAPACITY - ChecksumIndex.MAX_CAPACITY / 16;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * <p>capacity.</p>
+     *
+     * @return number of slots.
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * <p>Getter for the backing file.</p>
+     *
+     * @return a {@link java.io.File} object.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(regions == null ? 0 : capacity);
+        out.writeInt(regions == null ? 0 : size);
+        byte[] buf = new byte[1 << 16];
+        for (int i = 0; (regions != null) && (i < regions.length); i++) {
+            ByteBuffer region = regions[i].duplicate();
+            region.clear();
+            while (region.hasRemaining()) {
+                int n = Math.min(buf.length, region.remaining());
+                region.get(buf, 0, n);
+                out.write(buf, 0, n);
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public ChecksumTable newTable() {
+        return new MappedChecksumIndex(directory);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void clear() {
+        release();
+        size = 0;
+        capacity = 0;
+    }
+
+    /*
+     * Serialized form lists the entries only, the table is rebuilt in a new
+     * file on reading.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeObject(directory == null ? null : directory.getPath());
+        for (int j = 0; (regions != null) && (j < capacity); j++) {
+            MappedByteBuffer region = regions[j >>> REGION_SHIFT];
+            int p = (j & REGION_MASK) * SLOT_BYTES;
+            int v = region.getInt(p + 4);
+            if (v != 0) {
+                out.writeInt(region.getInt(p));
+                out.writeInt(v - 1);
+            }
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        String path = (String) in.readObject();
+        directory = path == null ? null : new File(path);
+        if ((directory != null) && !directory.isDirectory()) {
+            directory = null;
+        }
+        int entries = size;
+        size = 0;
+        allocate(Math.max(capacity, ChecksumIndex.MIN_CAPACITY));
+        for (int j = 0; j < entries; j++) {
+            int key = in.readInt();
+            add(key, in.readInt(), Integer.MAX_VALUE);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Returns a debug
+     * <code>String</code>.
+     */
+    @Override
+    public String toString() {
+        return "MappedChecksumIndex size=" + size + " capacity=" + capacity + " file=" + file;
+    }
+}
@@ -150,9 +150,13 @@ public class MultiBufferSeekableSource implements SeekableSource {
                 bufUsage.remove(currentBuf);
                 bufUsage.add(currentBuf);
             }
-            bb.put(currentBuf.buffer.get());
-            c++;
-            currentPos++;
+            int n = Math.min(bb.remaining(), currentBuf.buffer.remaining());
+            ByteBuffer src = currentBuf.buffer.duplicate();
+            src.limit(src.position() + n);
+            bb.put(src);
+            currentBuf.buffer.position(currentBuf.buffer.position() + n);
+            c += n;
+            currentPos += n;
         }
         return c;
     }
@@ -0,0 +1,51 @@
+/*
+ * #%L
+ * XDeltaEncoder
+ * %%
+ * Copyright (C) 2011 - 2012 Frantisek Mantlik <frantisek at mantlik.cz>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package com.nothome.delta;
+
+import java.io.IOException;
+
+/**
+ * A {@link DiffWriter} able to take back the most recently added data
+ * bytes, so that {@link Delta} can extend a copy backwards over them.
+ *
+ * @author kylestev
+ * @version $Id: $Id
+ */
+public interface RetractableDiffWriter extends DiffWriter {
+
+    /**
+     * Number of the most recently added data bytes that can still be
+     * retracted, i.e. bytes added since the last copy and not yet written.
+     *
+     * @return a int.
+     */
+    public int retractable();
+
+    /**
+     * Removes the last <code>length</code> data bytes added. The caller
+     * re-adds them as part of a copy.
+     *
+     * @param length a int not greater than {@link #retractable()}.
+     * @throws java.io.IOException if any.
+     */
+    public void retractData(int length) throws IOException;
+}
@@ -0,0 +1,233 @@
+/*
+ * #%L
+ * XDeltaEncoder
+ * %%
+ * Copyright (C) 2011 - 2012 Frantisek Mantlik <frantisek at mantlik.cz>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package com.nothome.delta;
+
+/**
+ * Suffix array construction by induced sorting (SA-IS, Nong, Zhang and
+ * Chan), linear in time and needing little memory beyond the array itself.
+ *
+ * @author kylestev
+ * @version $Id: $Id
+ */
+public class SuffixArray {
+
+    private SuffixArray() {
+    }
+
+    /**
+     * Sorted start positions of all suffixes of <code>text</code>.
+     *
+     * @param text an array of byte.
+     * @return an array of int.
+     */
+    public static int[] build(byte[] text) {
+        int[] sa = new int[text.length];
+        sais(new ByteText(text), sa, text.length, 256);
+        return sa;
+    }
+
+    /*
+     * Symbols of a level of the recursion
+     */
+    private abstract static class Text {
+
+        abstract int get(int i);
+    }
+
+    private static final class ByteText extends Text {
+
+        private final byte[] text;
+
+        ByteText(byte[] text) {
+            this.text = text;
+        }
+
+        @Override
+        int get(int i) {
+            return text[i] & 0xff;
+        }
+    }
+
+    private static final class IntText extends Text {
+
+        private final int[] text;
+        private final int offset;
+
+        IntText(int[] text, int offset) {
+            this.text = text;
+            this.offset = offset;
+        }
+
+        @Override
+        int get(int i) {
+            return text[offset + i];
+        }
+    }
+
+    /*
+     * Sorts the suffixes of the n symbols of t, each below k, into sa.
+     * A virtual sentinel smaller than all symbols ends the text.
+     */
+    private static void sais(Text t, int[] sa, int n, int k) {
+        if (n == 0) {
+            return;
+        }
+        if (n == 1) {
+            sa[0] = 0;
+            return;
+        }
+        // S type suffixes are smaller than the following one
+        boolean[] stype = new boolean[n];
+        for (int i = n - 2; i >= 0; i--) {
+            int c = t.get(i);
+            int d = t.get(i + 1);
+            stype[i] = (c < d) || ((c == d) && stype[i + 1]);
+        }
+        int[] counts = new int[k];
+        for (int i = 0; i < n; i++) {
+            counts[t.get(i)]++;
+        }
+        int[] buckets = new int[k];
+
+        // sort LMS substrings by inducing from their unsorted positions
+        bucketEnds(counts, buckets);
+        java.util.Arrays.fill(sa, 0, n, -1);
+        for (int i = 1; i < n; i++) {
+            if (isLms(stype, i)) {
+                sa[--buckets[t.get(i)]] = i;
+            }
+        }
+        induce(t, sa, n, stype, counts, buckets);
+
+        // name the sorted LMS substrings
+        int n1 = 0;
+        for (int i = 0; i < n; i++) {
+            if (isLms(stype, sa[i])) {
+                sa[n1++] = sa[i];
+            }
+        }
+        java.util.Arrays.fill(sa, n1, n, -1);
+        int name = 0;
+        int prev = -1;
+        for (int i = 0; i < n1; i++) {
+            int pos = sa[i];
+            if ((prev == -1) || !equalLms(t, stype, n, pos, prev)) {
+                name++;
+                prev = pos;
+            }
+            sa[n1 + (pos >>> 1)] = name - 1;
+        }
+        for (int i = n - 1, j = n - 1; i >= n1; i--) {
+            if (sa[i] >= 0) {
+                sa[j--] = sa[i];
+            }
+        }
+
+        // sort the LMS suffixes, recursing if names are not unique
+        int s1 = n - n1;
+        if (name < n1) {
+            sais(new IntText(sa, s1), sa, n1, name);
+        } else {
+            for (int i = 0; i < n1; i++) {
+                sa[sa[s1 + i]] = i;
+            }
+        }
+
+        // induce all suffixes from the sorted LMS suffixes
+        for (int i = 1, j = 0; i < n; i++) {
+            if (isLms(stype, i)) {
+                sa[s1 + j++] = i;
+            }
+        }
+        for (int i = 0; i < n1; i++) {
+            sa[i] = sa[s1 + sa[i]];
+        }
+        java.util.Arrays.fill(sa, n1, n, -1);
+        bucketEnds(counts, buckets);
+        for (int i = n1 - 1; i >= 0; i--) {
+            int j = sa[i];
+            sa[i] = -1;
+            sa[--buckets[t.get(j)]] = j;
+        }
+        induce(t, sa, n, stype, counts, buckets);
+    }
+
+    private static boolean isLms(boolean[] stype, int i) {
+        return (i > 0) && stype[i] && !stype[i - 1];
+    }
+
+    /*
+     * Whether the LMS substrings at a and b are equal, the one reaching the
+     * sentinel is unique
+     */
+    private static boolean equalLms(Text t, boolean[] stype, int n, int a, int b) {
+        for (int d = 0;; d++) {
+            if ((a + d == n) || (b + d == n)) {
+                return false;
+            }
+            if ((t.get(a + d) != t.get(b + d)) || (stype[a + d] != stype[b + d])) {
+                return false;
+            }
+            if ((d > 0) && (isLms(stype, a + d) || isLms(stype, b + d))) {
+                return isLms(stype, a + d) && isLms(stype, b + d);
+            }
+        }
+    }
+
+    /*
+     * Induces L type suffixes left to right, then S type right to left
+     */
+    private static void induce(Text t, int[] sa, int n, boolean[] stype, int[] counts, int[] buckets) {
+        bucketStarts(counts, buckets);
+        // the suffix before the sentinel is L type and comes first
+        sa[buckets[t.get(n - 1)]++] = n - 1;
+        for (int i = 0; i < n; i++) {
+            int j = sa[i] - 1;
+            if ((j >= 0) && !stype[j]) {
+                sa[buckets[t.get(j)]++] = j;
+            }
+        }
+        bucketEnds(counts, buckets);
+        for (int i = n - 1; i >= 0; i--) {
+            int j = sa[i] - 1;
+            if ((j >= 0) && stype[j]) {
+                sa[--buckets[t.get(j)]] = j;
+            }
+        }
+    }
+
+    private static void bucketStarts(int[] counts, int[] buckets) {
+        int sum = 0;
+        for (int i = 0; i < counts.length; i++) {
+            buckets[i] = sum;
+            sum += counts[i];
+        }
+    }
+
+    private static void bucketEnds(int[] counts, int[] buckets) {
+        int sum = 0;
+        for (int i = 0; i < counts.length; i++) {
+            sum += counts[i];
+            buckets[i] = sum;
+        }
+    }
+}
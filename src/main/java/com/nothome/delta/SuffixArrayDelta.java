@@ -0,0 +1,213 @@
+/*
+ * #%L
+ * XDeltaEncoder
+ * %%
+ * Copyright (C) 2011 - 2012 Frantisek Mantlik <frantisek at mantlik.cz>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package com.nothome.delta;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Alternative to {@link Delta} for small and medium files, where the size
+ * of the delta matters more than speed. The source is indexed by a
+ * {@link SuffixArray}, so the longest match at each target position is
+ * found by binary search as in bsdiff, including short and unaligned
+ * matches which chunk hashing misses.
+ * <p>
+ * Source and target are held in memory; the index needs four bytes per
+ * source byte, about as much again while it is built.
+ *
+ * @author kylestev
+ * @version $Id: $Id
+ */
+public class SuffixArrayDelta {
+
+    /**
+     * Files up to this size are encoded with a suffix array by default,
+     * larger ones take too long to index.
+     */
+    public static final long DEFAULT_MAX_SIZE = 64L << 20;
+    /**
+     * Heap bytes needed to encode sourceLength bytes of source against
+     * targetLength bytes of target, both arrays included.
+     *
+     * @param sourceLength a long.
+     * @param targetLength a long.
+     * @return a long.
+     */
+    public static long memoryFor(long sourceLength, long targetLength) {
+        return 6 * sourceLength + 2 * targetLength;
+    }
+
+    /** Constant <code>DEFAULT_MIN_MATCH=8</code> */
+    public static final int DEFAULT_MIN_MATCH = 8;
+    private int minMatch = DEFAULT_MIN_MATCH;
+    private ByteBuffer source;
+    private ByteBuffer target;
+    private int[] suffixes;
+    private int matchOffset;
+    /**
+     * Target bytes copied from source.
+     */
+    public long found = 0;
+
+    /**
+     * Shortest match written as a copy, shorter ones are written as data.
+     *
+     * @param minMatch a int.
+     */
+    public void setMinMatch(int minMatch) {
+        if (minMatch < 1) {
+            throw new IllegalArgumentException("Invalid match length");
+        }
+        this.minMatch = minMatch;
+    }
+
+    /**
+     * <p>Getter for the field <code>minMatch</code>.</p>
+     *
+     * @return a int.
+     */
+    public int getMinMatch() {
+        return minMatch;
+    }
+
+    /**
+     * Compares the source bytes with target bytes, returning GDIFF output.
+     *
+     * @param source an array of byte.
+     * @param target an array of byte.
+     * @return an array of byte.
+     * @throws java.io.IOException if any.
+     */
+    public byte[] compute(byte[] source, byte[] target) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        compute(source, target, new GDiffWriter(os), true);
+        return os.toByteArray();
+    }
+
+    /**
+     * Compares the source bytes with target input, writing to output.
+     *
+     * @param source an array of byte.
+     * @param target a {@link java.io.InputStream} object, read to the end.
+     * @param output a {@link com.nothome.delta.DiffWriter} object.
+     * @param closeOutput a boolean.
+     * @throws java.io.IOException if any.
+     */
+    public void compute(byte[] source, InputStream target, DiffWriter output, boolean closeOutput) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        byte[] buf = new byte[1 << 16];
+        int n;
+        while ((n = target.read(buf)) > 0) {
+            os.write(buf, 0, n);
+        }
+        compute(source, os.toByteArray(), output, closeOutput);
+    }
+
+    /**
+     * Compares the source bytes with target bytes, writing to output.
+     * Matches are taken greedily, except that a match is dropped for one
+     * starting a byte later which is longer by more than that byte.
+     *
+     * @param source an array of byte.
+     * @param target an array of byte.
+     * @param output a {@link com.nothome.delta.DiffWriter} object.
+     * @param closeOutput a boolean.
+     * @throws java.io.IOException if any.
+     */
+    public void compute(byte[] source, byte[] target, DiffWriter output, boolean closeOutput) throws IOException {
+        this.source = ByteBuffer.wrap(source);
+        this.target = ByteBuffer.wrap(target);
+        suffixes = SuffixArray.build(source);
+        found = 0;
+        int pos = 0;
+        int match = longestMatch(pos);
+        int offset = matchOffset;
+        while (pos < target.length) {
+            if (match < minMatch) {
+                output.addData(target[pos++]);
+                match = longestMatch(pos);
+                offset = matchOffset;
+                continue;
+            }
+            int next = longestMatch(pos + 1);
+            if (next > match + 1) {
+                output.addData(target[pos++]);
+                match = next;
+                offset = matchOffset;
+                continue;
+            }
+            output.addCopy(offset, match);
+            found += match;
+            pos += match;
+            match = longestMatch(pos);
+            offset = matchOffset;
+        }
+        suffixes = null;
+        if (closeOutput) {
+            output.close();
+        }
+    }
+
+    /*
+     * Length of the longest source match of the target at pos, its source
+     * offset is left in matchOffset
+     */
+    private int longestMatch(int pos) {
+        int len = target.limit() - pos;
+        if ((len <= 0) || (suffixes.length == 0)) {
+            return 0;
+        }
+        // binary search for the suffixes enclosing the target
+        int lo = 0;
+        int hi = suffixes.length - 1;
+        while (hi - lo > 1) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(suffixes[mid], pos, len) < 0) {
+                lo = mid;
+            } else {
+                hi = mid;
+            }
+        }
+        int a = matchLength(suffixes[lo], pos, len);
+        int b = matchLength(suffixes[hi], pos, len);
+        matchOffset = a >= b ? suffixes[lo] : suffixes[hi];
+        return Math.max(a, b);
+    }
+
+    private int matchLength(int offset, int pos, int len) {
+        return Delta.mismatch(source, offset, target, pos, Math.min(source.limit() - offset, len));
+    }
+
+    /*
+     * Order of the source suffix at offset and the target at pos
+     */
+    private int compare(int offset, int pos, int len) {
+        int n = Math.min(source.limit() - offset, len);
+        int same = Delta.mismatch(source, offset, target, pos, n);
+        if (same == n) {
+            return n < len ? -1 : 0;
+        }
+        return (source.get(offset + same) & 0xff) - (target.get(pos + same) & 0xff);
+    }
+}
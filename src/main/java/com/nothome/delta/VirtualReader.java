@@ -0,0 +1,103 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.nothome.delta;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * <p>Reads instructions written by {@link VirtualWriter}.</p>
+ *
+ * Each instruction is read as its op followed by its fields: readOp() 1,
+ * readOffset(), readLength() for a copy, readOp() 2, readLength() for data
+ * and readOp() 3 at the end.
+ *
+ * @author fm
+ * @version $Id: $Id
+ */
+public class VirtualReader {
+
+    private final InputStream input;
+    private long copyEnd = 0;
+    private long offset = -1;
+
+    /**
+     * <p>Constructor for VirtualReader.</p>
+     *
+     * @param is a buffered {@link java.io.InputStream} object.
+     */
+    public VirtualReader(InputStream is) {
+        this.input = is;
+    }
+
+    /**
+     * Reads the next op.
+     *
+     * @return 1 for copy, 2 for data, 3 for end
+     * @throws java.io.IOException if any.
+     */
+    public byte readOp() throws IOException {
+        int op = input.read();
+        if (op < 0) {
+            throw new EOFException();
+        }
+        return (byte) op;
+    }
+
+    /**
+     * Reads the source offset of a copy.
+     *
+     * @return a long.
+     * @throws java.io.IOException if any.
+     */
+    public long readOffset() throws IOException {
+        long delta = readVarLong();
+        offset = copyEnd + ((delta >>> 1) ^ -(delta & 1));
+        return offset;
+    }
+
+    /**
+     * Reads the length of a copy or data.
+     *
+     * @return an int.
+     * @throws java.io.IOException if any.
+     */
+    public int readLength() throws IOException {
+        long length = readVarLong();
+        if ((length < 0) || (length > Integer.MAX_VALUE)) {
+            throw new IOException("Invalid length " + length);
+        }
+        if (offset >= 0) {
+            copyEnd = offset + length;
+            offset = -1;
+        }
+        return (int) length;
+    }
+
+    /**
+     * <p>close.</p>
+     *
+     * @throws java.io.IOException if any.
+     */
+    public void close() throws IOException {
+        input.close();
+    }
+
+    private long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = input.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Invalid varint");
+    }
+}
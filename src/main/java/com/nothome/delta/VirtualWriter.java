@@ -13,11 +13,13 @@ import java.nio.ByteBuffer;
  * <p>VirtualWriter class.</p>
  *
  * @author fm simple instructions writer Instructions: byte 1=copy_sourcedata
- * long sourceoffset int sourcelength byte 2=add_targetdata int targetlength
- * byte 3=end
+ * varlong sourceoffset varint sourcelength byte 2=add_targetdata varint
+ * targetlength byte 3=end. Source offsets are stored zigzag encoded relative
+ * to the end of the previous copy, see {@link VirtualReader}. Copies of
+ * adjacent source ranges are merged into one.
  * @version $Id: $Id
  */
-public class VirtualWriter implements DiffWriter {
+public class VirtualWriter implements RetractableDiffWriter {
 
     private DataOutputStream output = null;
     private long dataLength;
@@ -29,6 +31,10 @@ public class VirtualWriter implements DiffWriter {
     private boolean debugMode = false;
     private ByteBuffer buffer;
     private long position = 0;
+    private long copyEnd = 0;
+    // copy not yet written, merged with a following adjacent copy
+    private long copyOffset = 0;
+    private long copyLength = 0;
 
     /**
      * <p>Constructor for VirtualWriter.</p>
@@ -91,10 +97,14 @@ public class VirtualWriter implements DiffWriter {
             filteredData += length;
             return;
         }
+        if ((dataLength == 0) && (copyLength > 0) && (offset == copyOffset + copyLength)
+                && (copyLength + length <= Integer.MAX_VALUE)) {
+            copyLength += length;
+            return;
+        }
         writeData();
-        output.writeByte(1);
-        output.writeLong(offset);
-        output.writeInt(length);
+        copyOffset = offset;
+        copyLength = length;
     }
 
     /** {@inheritDoc} */
@@ -111,6 +121,30 @@ public class VirtualWriter implements DiffWriter {
         totalLength++;
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * Nothing can be retracted in debug mode, the target bytes have already
+     * been checked.
+     */
+    @Override
+    public int retractable() {
+        if (debugMode) {
+            return 0;
+        }
+        return (int) Math.min(dataLength, Integer.MAX_VALUE);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void retractData(int length) throws IOException {
+        if ((length < 0) || (length > retractable())) {
+            throw new IOException("Cannot retract " + length + " data bytes");
+        }
+        dataLength -= length;
+        totalLength -= length;
+    }
+
     /** {@inheritDoc} */
     @Override
     public void flush() throws IOException {
@@ -131,17 +165,32 @@ public class VirtualWriter implements DiffWriter {
     }
 
     private void writeData() throws IOException {
+        if (copyLength > 0) {
+            output.writeByte(1);
+            long delta = copyOffset - copyEnd;
+            writeVarLong((delta << 1) ^ (delta >> 63));
+            writeVarLong(copyLength);
+            copyEnd = copyOffset + copyLength;
+            copyLength = 0;
+        }
         while (dataLength >= Integer.MAX_VALUE) {
             int length = Integer.MAX_VALUE;
             output.writeByte(2);
-            output.writeInt(length);
+            writeVarLong(length);
             dataLength -= length;
         }
         if (dataLength > 0) {
             output.writeByte(2);
-            output.writeInt((int) dataLength);
+            writeVarLong(dataLength);
             dataLength = 0;
         }
     }
 
+    private void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            output.writeByte((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        output.writeByte((int) value);
+    }
 }
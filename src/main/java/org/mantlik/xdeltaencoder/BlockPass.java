@@ -0,0 +1,285 @@
+/*
+ * #%L
+ * XDeltaEncoder
+ * %%
+ * Copyright (C) 2011 - 2012 Frantisek Mantlik <frantisek at mantlik.cz>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.mantlik.xdeltaencoder;
+
+import com.nothome.delta.Delta;
+import com.nothome.delta.SeekableSource;
+import com.nothome.delta.VirtualReader;
+import com.nothome.delta.VirtualWriter;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One source block of a parallel pass: refines the data ranges of a virtual
+ * op log against the block and writes a new op log. Op logs of blocks
+ * matched at the same time are combined by {@link #merge(File[], File)}.
+ *
+ * @author fm
+ */
+class BlockPass implements Callable<Long> {
+
+    private final Delta processor;
+    private final SeekableSource block;
+    private final long position;
+    private final File ops;
+    private final InputStream target;
+    private final File output;
+    private final int codec;
+    private long passedThrough = 0;
+
+    /**
+     * @param processor delta with settings of the pass, used by this block only
+     * @param block source block
+     * @param position offset of block in source
+     * @param ops op log of the previous pass
+     * @param target whole target, closed when done
+     * @param output op log to write
+     * @param codec {@link OpLogCodec} of op logs
+     */
+    BlockPass(Delta processor, SeekableSource block, long position, File ops, InputStream target, File output,
+            int codec) {
+        this.processor = processor;
+        this.block = block;
+        this.position = position;
+        this.ops = ops;
+        this.target = target;
+        this.output = output;
+        this.codec = codec;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @return bytes matched against the block
+     */
+    public Long call() throws IOException {
+        VirtualReader vinp = OpLogCodec.reader(ops, codec);
+        LimitInputStream ttStream = new LimitInputStream(target);
+        VirtualWriter ddStream = new VirtualWriter(OpLogCodec.output(output, codec));
+        processor.setKeepSource(true);
+        processor.found = 0;
+        int chs = processor.getChunkSize();
+        try {
+            long done = 0;
+            byte op = vinp.readOp();
+            while (op != 3) {
+                if (op == 1) {  // copy pass through
+                    long offs = vinp.readOffset();
+                    int length = vinp.readLength();
+                    ddStream.addCopy(offs, length);
+                    passedThrough += length;
+                    long skipped = 0;
+                    while (skipped < length) {
+                        skipped += ttStream.skip(length - skipped);
+                    }
+                    done += length;
+                } else if (op == 2) {
+                    int length = vinp.readLength();
+                    done += length;
+                    if (length <= chs) {
+                        for (int i = 0; i < length; i++) {
+                            ddStream.addData((byte) ttStream.read());
+                        }
+                    } else {
+                        ttStream.setLimit(length);
+                        processor.compute(block, ttStream, ddStream, position, done - length, false);
+                        ttStream.setLimit(-1);
+                    }
+                } else {
+                    throw new IOException("Unknown operation " + op + " in " + ops);
+                }
+                op = vinp.readOp();
+            }
+        } finally {
+            vinp.close();
+            ttStream.close();
+            ddStream.close();
+            processor.clearSource();
+        }
+        return processor.found;
+    }
+
+    /**
+     * <p>Getter for the field <code>passedThrough</code>.</p>
+     *
+     * @return bytes copied already in the op log of the previous pass
+     */
+    long getPassedThrough() {
+        return passedThrough;
+    }
+
+    /**
+     * Runs blocks matched at the same time, each in its own thread, and
+     * merges their op logs into output. The op logs of the blocks are
+     * deleted and their heap released.
+     *
+     * @param passes blocks of one pass
+     * @param output merged op log
+     * @param codec {@link OpLogCodec} of op logs
+     * @return bytes copied in the merged op log
+     * @throws IOException if a block fails
+     */
+    static long run(BlockPass[] passes, File output, int codec) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(passes.length);
+        File[] logs = new File[passes.length];
+        try {
+            List<Future<Long>> results = new ArrayList<Future<Long>>();
+            for (int i = 0; i < passes.length; i++) {
+                logs[i] = passes[i].output;
+                results.add(executor.submit(passes[i]));
+            }
+            for (Future<Long> result : results) {
+                result.get();
+            }
+            return merge(logs, output, codec);
+        } catch (InterruptedException ex) {
+            throw new IOException("Interrupted", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        } finally {
+            executor.shutdownNow();
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            for (File log : logs) {
+                if (log != null) {
+                    OpLogCodec.delete(log);
+                }
+            }
+        }
+    }
+
+    /**
+     * Merges op logs covering the same target. At each target position the
+     * copy reaching farthest is taken, data remains only where no log has a
+     * copy.
+     *
+     * @param logs op logs of one pass
+     * @param output merged op log
+     * @param codec {@link OpLogCodec} of op logs
+     * @return bytes copied in the merged op log
+     * @throws IOException if the logs differ in target length
+     */
+    static long merge(File[] logs, File output, int codec) throws IOException {
+        int n = logs.length;
+        VirtualReader[] inputs = new VirtualReader[n];
+        byte[] ops = new byte[n];
+        long[] offsets = new long[n];
+        long[] starts = new long[n];
+        long[] ends = new long[n];
+        VirtualWriter ddStream = new VirtualWriter(OpLogCodec.output(output, codec));
+        long copied = 0;
+        try {
+            for (int i = 0; i < n; i++) {
+                inputs[i] = OpLogCodec.reader(logs[i], codec);
+            }
+            long pos = 0;
+            while (true) {
+                int best = -1;
+                long next = Long.MAX_VALUE;
+                int ended = 0;
+                for (int i = 0; i < n; i++) {
+                    while ((ops[i] != 3) && (ends[i] <= pos)) {
+                        readOp(inputs[i], i, ops, offsets, starts, ends);
+                    }
+                    if (ops[i] == 3) {
+                        ended++;
+                        continue;
+                    }
+                    if ((ops[i] == 1) && ((best < 0) || (ends[i] > ends[best]))) {
+                        best = i;
+                    }
+                    next = Math.min(next, ends[i]);
+                }
+                if (ended > 0) {
+                    for (int i = 0; i < n; i++) {
+                        // a copy of another log may have run past the end of a shorter one
+                        if ((ops[i] != 3) || (ends[i] != pos)) {
+                            throw new IOException("Op logs of different target length at " + pos);
+                        }
+                    }
+                    break;
+                }
+                if (best >= 0) {
+                    long length = ends[best] - pos;
+                    long offset = offsets[best] + pos - starts[best];
+                    while (length > 0) {
+                        int len = (int) Math.min(length, Integer.MAX_VALUE);
+                        ddStream.addCopy(offset, len);
+                        offset += len;
+                        length -= len;
+                    }
+                    copied += ends[best] - pos;
+                    pos = ends[best];
+                } else {
+                    for (long i = pos; i < next; i++) {
+                        ddStream.addData((byte) 0);  // real data are not important for virtual writer
+                    }
+                    pos = next;
+                }
+            }
+        } finally {
+            for (int i = 0; i < n; i++) {
+                if (inputs[i] != null) {
+                    inputs[i].close();
+                }
+            }
+            ddStream.close();
+        }
+        return copied;
+    }
+
+    private static void readOp(VirtualReader input, int i, byte[] ops, long[] offsets,
+            long[] starts, long[] ends) throws IOException {
+        byte op;
+        try {
+            op = input.readOp();
+        } catch (EOFException ex) {
+            throw new IOException("Truncated op log", ex);
+        }
+        starts[i] = ends[i];
+        if (op == 1) {
+            offsets[i] = input.readOffset();
+            ends[i] = starts[i] + input.readLength();
+        } else if (op == 2) {
+            ends[i] = starts[i] + input.readLength();
+        } else if (op != 3) {
+            throw new IOException("Unknown operation " + op);
+        }
+        ops[i] = op;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * #%L
+ * XDeltaEncoder
+ * %%
+ * Copyright (C) 2011 - 2012 Frantisek Mantlik <frantisek at mantlik.cz>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.mantlik.xdeltaencoder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Reads the next source block in a background thread while the current one
+ * is matched, so that disk and CPU work overlap between passes.
+ *
+ * @author fm
+ */
+class BlockPrefetcher {
+
+    private final File file;
+    private Thread thread;
+    private long position;
+    private byte[] buffer;
+    private int length;
+    private IOException error;
+
+    BlockPrefetcher(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads up to <code>buffer.length</code> bytes of file from position.
+     *
+     * @return number of bytes read
+     */
+    static int read(File file, long position, byte[] buffer) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(position);
+            int length = 0;
+            int i = 0;
+            while ((i >= 0) && (length < buffer.length)) {
+                i = raf.read(buffer, length, buffer.length - length);
+                if (i > 0) {
+                    length += i;
+                }
+            }
+            return length;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Starts reading the block at position into buffer, which must not be
+     * used until it is returned by {@link #take(long)} or {@link #cancel()}.
+     */
+    void start(final long position, final byte[] buffer) {
+        cancel();
+        this.position = position;
+        this.buffer = buffer;
+        length = 0;
+        error = null;
+        thread = new Thread(new Runnable() {
+
+            public void run() {
+                try {
+                    length = read(file, position, buffer);
+                } catch (IOException ex) {
+                    error = ex;
+                }
+            }
+        }, "Block prefetch");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Waits for the block at position.
+     *
+     * @return number of bytes read into the buffer passed to start, or -1 if
+     * another block was prefetched
+     */
+    int take(long position) throws IOException {
+        if ((thread == null) || (this.position != position)) {
+            cancel();
+            return -1;
+        }
+        join();
+        if (error != null) {
+            throw error;
+        }
+        return length;
+    }
+
+    /**
+     * Waits for a running read to finish and releases its buffer.
+     */
+    void cancel() {
+        if (thread != null) {
+            join();
+        }
+    }
+
+    private void join() {
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        thread = null;
+        buffer = null;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
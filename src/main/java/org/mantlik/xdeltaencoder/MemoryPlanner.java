@@ -0,0 +1,266 @@
+/*
+ * #%L
+ * XDeltaEncoder
+ * %%
+ * Copyright (C) 2011 - 2012 Frantisek Mantlik <frantisek at mantlik.cz>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.mantlik.xdeltaencoder;
+
+import com.nothome.delta.BucketChecksumIndex;
+import com.nothome.delta.ChecksumFilter;
+import com.nothome.delta.ChecksumIndex;
+import java.text.DecimalFormat;
+
+/**
+ * Divides a declared memory budget between source blocks, their checksum
+ * indexes, op logs and the target block before encoding starts, so that
+ * sizes follow from the budget rather than from running out of heap.
+ *
+ * <p>Of the budget a reserve for stream buffers and the JVM is kept, op logs
+ * and the target block are taken next. Source blocks get at most half of
+ * the rest and the indexes half of what the blocks leave; the other half is
+ * headroom for garbage collection.</p>
+ *
+ * <p>The index memory of a chunk counts its table slots in the layout
+ * chosen, its filter bits and, for indexes confirming 64 bit hashes, its
+ * tag, with tables and filters rounded up to powers of two as they are
+ * allocated.</p>
+ *
+ * @author fm
+ */
+class MemoryPlanner {
+
+    /** Heap kept for stream buffers and the JVM itself */
+    static final long RESERVE = 64L * 1024 * 1024;
+    /** Largest byte array a source block is read into */
+    static final long MAX_BLOCKSIZE = Integer.MAX_VALUE - 8;
+    /** Heap bytes of the tag of a chunk confirming 64 bit hashes */
+    static final int TAG_BYTES = 4;
+    private static final long MB = 1024 * 1024;
+    private final long budget;
+    private final int minChunkSize;
+    private final boolean indexOnHeap;
+    private final boolean bucketIndex;
+    private final boolean checksumFilter;
+    private long blockSize;
+    private long targetBlockSize;
+    private int parallelBlocks = 1;
+    private boolean prefetch = false;
+    private long opLogMemory;
+    private long indexMemory;
+    private long sourceLength;
+
+    /**
+     * @param budget bytes of memory for encoding
+     * @param minChunkSize smallest chunk size of an index
+     * @param indexOnHeap false if indexes are kept in memory mapped files
+     * @param bucketIndex true if tables on heap are bucketed
+     * @param checksumFilter true if a filter is kept in front of indexes
+     */
+    MemoryPlanner(long budget, int minChunkSize, boolean indexOnHeap, boolean bucketIndex,
+            boolean checksumFilter) {
+        this.budget = budget;
+        this.minChunkSize = minChunkSize;
+        this.indexOnHeap = indexOnHeap;
+        this.bucketIndex = bucketIndex;
+        this.checksumFilter = checksumFilter;
+    }
+
+    /**
+     * Plans an encoding.
+     *
+     * @param sourceLength bytes of source
+     * @param blockSize largest source block processed in one pass
+     * @param targetBlockSize target block size, 0 if target is not split
+     * @param parallelBlocks source blocks wanted at once
+     * @param sourceInMemory true if source blocks are read to heap
+     * @param opLogMemory bytes of op logs kept in memory, -1 for 1/16 of budget
+     */
+    void plan(long sourceLength, long blockSize, long targetBlockSize, int parallelBlocks,
+            boolean sourceInMemory, long opLogMemory) {
+        this.sourceLength = sourceLength;
+        long reserve = Math.min(RESERVE, budget / 8);
+        this.opLogMemory = (opLogMemory < 0) ? budget / 16 : Math.min(opLogMemory, budget / 4);
+        this.targetBlockSize = Math.min(targetBlockSize, Math.max(budget / 4, MB));
+        long rest = Math.max(budget - reserve - this.opLogMemory - this.targetBlockSize, 0);
+        long size = Math.min(blockSize, sourceLength);
+        if (sourceInMemory) {
+            size = Math.min(size, MAX_BLOCKSIZE);
+            long blocks = (sourceLength + Math.max(size, 1) - 1) / Math.max(size, 1);
+            this.parallelBlocks = (int) Math.max(1, Math.min(parallelBlocks, blocks));
+            long cap = rest / 2 / this.parallelBlocks;
+            if (size > cap) {
+                // whole megabytes, but not below one whatever the budget
+                size = Math.max(cap / MB * MB, Math.min(size, MB));
+            }
+            // a second buffer for the next block while blocks are read one at a time
+            prefetch = (this.parallelBlocks == 1) && (size < sourceLength) && (2 * size <= rest / 2);
+            long blockMemory = (this.parallelBlocks + (prefetch ? 1 : 0)) * size;
+            indexMemory = (rest - blockMemory) / 2;
+        } else {
+            indexMemory = rest / 2;
+        }
+        this.blockSize = Math.max(size, 1);
+    }
+
+    /**
+     * Chunk size for indexes over size bytes of source, all blocks of a pass
+     * together.
+     *
+     * @param size a long.
+     * @return an int.
+     */
+    int chunkSize(long size) {
+        return chunkSize(size, false);
+    }
+
+    /**
+     * Smallest chunk size not below the minimum whose index over size bytes
+     * of source fits into the index memory.
+     *
+     * @param size bytes of source, all blocks of a pass together
+     * @param tagged true if the index confirms 64 bit hashes by tags
+     * @return an int.
+     */
+    int chunkSize(long size, boolean tagged) {
+        size = Math.min(size, sourceLength);
+        // nominal bytes per chunk, a bucket of 64 bytes holds about six chunks
+        int perChunk = (indexOnHeap ? (bucketIndex ? 11 : ChecksumIndex.BYTES_PER_ENTRY) : 0)
+                + (checksumFilter ? ChecksumFilter.BITS_PER_ENTRY / 8 : 0) + (tagged ? TAG_BYTES : 0);
+        if (perChunk == 0) {
+            // off-heap index segments are limited by disk only
+            return minChunkSize;
+        }
+        long chunks = Math.max(indexMemory / perChunk, 1);
+        long chunkSize = Math.max((size + chunks - 1) / chunks, minChunkSize);
+        // tables and filters are powers of two, step up until the real size fits
+        while ((chunkSize < Integer.MAX_VALUE) && (indexMemoryFor(size / chunkSize, tagged) > indexMemory)
+                && (size / chunkSize > 512)) {
+            chunkSize += Math.max(chunkSize / 16, 1);
+        }
+        return (int) Math.min(chunkSize, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Heap bytes of an index of chunks entries.
+     *
+     * @param chunks a long.
+     * @param tagged true if the index confirms 64 bit hashes by tags
+     * @return a long.
+     */
+    long indexMemoryFor(long chunks, boolean tagged) {
+        long memory = 0;
+        if (indexOnHeap) {
+            memory += bucketIndex ? BucketChecksumIndex.memoryFor(chunks) : ChecksumIndex.memoryFor(chunks);
+        }
+        if (checksumFilter) {
+            memory += ChecksumFilter.memoryFor(chunks);
+        }
+        if (tagged) {
+            memory += (long) TAG_BYTES * Math.max(chunks + 1, 1024);
+        }
+        return memory;
+    }
+
+    /**
+     * <p>Getter for the field <code>budget</code>.</p>
+     *
+     * @return a long.
+     */
+    long getBudget() {
+        return budget;
+    }
+
+    /**
+     * <p>Getter for the field <code>blockSize</code>.</p>
+     *
+     * @return a long.
+     */
+    long getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * <p>Getter for the field <code>targetBlockSize</code>.</p>
+     *
+     * @return a long.
+     */
+    long getTargetBlockSize() {
+        return targetBlockSize;
+    }
+
+    /**
+     * <p>Getter for the field <code>parallelBlocks</code>.</p>
+     *
+     * @return an int.
+     */
+    int getParallelBlocks() {
+        return parallelBlocks;
+    }
+
+    /**
+     * @return true if the next source block fits beside the current one
+     */
+    boolean isPrefetch() {
+        return prefetch;
+    }
+
+    /**
+     * <p>Getter for the field <code>opLogMemory</code>.</p>
+     *
+     * @return a long.
+     */
+    long getOpLogMemory() {
+        return opLogMemory;
+    }
+
+    /**
+     * <p>Getter for the field <code>indexMemory</code>.</p>
+     *
+     * @return bytes for the indexes of all blocks of a pass
+     */
+    long getIndexMemory() {
+        return indexMemory;
+    }
+
+    @Override
+    public String toString() {
+        DecimalFormat df = new DecimalFormat("0.00");
+        StringBuilder sb = new StringBuilder("Memory plan: budget ").append(df.format(budget / 1024d / 1024d))
+                .append(" mb, ").append(parallelBlocks).append(" x ").append(df.format(blockSize / 1024d / 1024d))
+                .append(" mb source block");
+        if (prefetch) {
+            sb.append(" + prefetch");
+        }
+        long size = Math.min(parallelBlocks * blockSize, sourceLength);
+        int chunkSize = chunkSize(size);
+        long chunks = Math.max(size / chunkSize, 1);
+        sb.append(", index ").append(df.format(indexMemory / 1024d / 1024d)).append(" mb (chunk size ")
+                .append(chunkSize).append(", ").append(df.format(1d * indexMemoryFor(chunks, false) / chunks))
+                .append(" bytes per chunk");
+        if (!indexOnHeap) {
+            sb.append(" on heap");
+        }
+        sb.append(")");
+        if (targetBlockSize > 0) {
+            sb.append(", target block ").append(df.format(targetBlockSize / 1024d / 1024d)).append(" mb");
+        }
+        sb.append(", op logs ").append(df.format(opLogMemory / 1024d / 1024d)).append(" mb.");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * #%L
+ * XDeltaEncoder
+ * %%
+ * Copyright (C) 2011 - 2012 Frantisek Mantlik <frantisek at mantlik.cz>
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package org.mantlik.xdeltaencoder;
+
+import com.nothome.delta.VirtualReader;
+import com.nothome.delta.VirtualWriter;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compression of the virtual op logs (.vdiff temporary files) written by
+ * {@link VirtualWriter} between passes. Within a memory limit op logs are
+ * kept in heap instead of their files and written to the file only when
+ * the limit is exceeded.
+ *
+ * @author fm
+ */
+final class OpLogCodec {
+
+    /** Op log stored as written */
+    static final int NONE = 0;
+    /** Huffman coding only, no string matching */
+    static final int FAST = 1;
+    /** Deflate at default level */
+    static final int GZIP = 2;
+    static final String[] NAMES = {"none", "fast", "gzip"};
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final int MEMORY_BUFFER_SIZE = 64 * 1024;
+    private static final HashMap<File, MemoryLog> memoryLogs = new HashMap<File, MemoryLog>();
+    private static long memoryLimit = 0;
+    private static long memoryUsed = 0;
+
+    private OpLogCodec() {
+    }
+
+    /**
+     * @return codec of name or -1 if unknown
+     */
+    static int forName(String name) {
+        for (int i = 0; i < NAMES.length; i++) {
+            if (NAMES[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Sets bytes of heap for op logs, 0 keeps all op logs in files.
+     */
+    static synchronized void setMemoryLimit(long limit) {
+        memoryLimit = limit;
+    }
+
+    /**
+     * @return true if the last op log written to file is in heap
+     */
+    static synchronized boolean inMemory(File file) {
+        return memoryLogs.containsKey(file);
+    }
+
+    /**
+     * Releases heap of the op log written to file.
+     */
+    static synchronized void discard(File file) {
+        MemoryLog log = memoryLogs.remove(file);
+        if (log != null) {
+            log.release();
+        }
+    }
+
+    /**
+     * Releases heap of the op log written to file and deletes the file.
+     *
+     * @return true if nothing of the op log is left
+     */
+    static boolean delete(File file) {
+        discard(file);
+        return !file.exists() || file.delete();
+    }
+
+    /**
+     * @return number of op logs in heap
+     */
+    static synchronized int memoryLogCount() {
+        return memoryLogs.size();
+    }
+
+    /**
+     * @return stream for a {@link VirtualWriter} writing file
+     */
+    static DataOutputStream output(File file, int codec) throws IOException {
+        discard(file);
+        synchronized (OpLogCodec.class) {
+            if (memoryUsed + MEMORY_BUFFER_SIZE <= memoryLimit) {
+                MemoryLog log = new MemoryLog(file, codec);
+                memoryLogs.put(file, log);
+                return new DataOutputStream(log);
+            }
+        }
+        return new DataOutputStream(new BufferedOutputStream(fileOutput(file, codec), BUFFER_SIZE));
+    }
+
+    private static OutputStream fileOutput(File file, int codec) throws IOException {
+        OutputStream os = new FileOutputStream(file);
+        if (codec == FAST) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            deflater.setStrategy(Deflater.HUFFMAN_ONLY);
+            os = new DeflaterOutputStream(os, deflater, BUFFER_SIZE) {
+
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    def.end();
+                }
+            };
+        } else if (codec == GZIP) {
+            os = new GZIPOutputStream(os, BUFFER_SIZE);
+        }
+        return os;
+    }
+
+    /**
+     * @return reader of an op log written to {@link #output(File, int)}
+     */
+    static VirtualReader reader(File file, int codec) throws IOException {
+        synchronized (OpLogCodec.class) {
+            MemoryLog log = memoryLogs.get(file);
+            if (log != null) {
+                return new VirtualReader(new ByteArrayInputStream(log.buffer, 0, log.count));
+            }
+        }
+        InputStream is = new FileInputStream(file);
+        if (codec == FAST) {
+            is = new InflaterInputStream(new BufferedInputStream(is, BUFFER_SIZE), new Inflater(), BUFFER_SIZE) {
+
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    inf.end();
+                }
+            };
+        } else if (codec == GZIP) {
+            is = new GZIPInputStream(new BufferedInputStream(is, BUFFER_SIZE), BUFFER_SIZE);
+        }
+        return new VirtualReader(new BufferedInputStream(is, BUFFER_SIZE));
+    }
+
+    /*
+     * Op log in heap, moved to its file with the codec when growing it would
+     * exceed the memory limit
+     */
+    private static class MemoryLog extends OutputStream {
+
+        private final File file;
+        private final int codec;
+        private byte[] buffer;
+        private int count = 0;
+        private OutputStream spill = null;
+
+        MemoryLog(File file, int codec) {
+            this.file = file;
+            this.codec = codec;
+            buffer = new byte[MEMORY_BUFFER_SIZE];
+            memoryUsed += buffer.length;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if ((spill == null) && (count == buffer.length) && !grow(count + 1)) {
+                spill();
+            }
+            if (spill != null) {
+                spill.write(b);
+            } else {
+                buffer[count++] = (byte) b;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if ((spill == null) && (len > buffer.length - count) && !grow((long) count + len)) {
+                spill();
+            }
+            if (spill != null) {
+                spill.write(b, off, len);
+            } else {
+                System.arraycopy(b, off, buffer, count, len);
+                count += len;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (spill != null) {
+                spill.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (spill != null) {
+                spill.close();
+            }
+        }
+
+        private boolean grow(long size) {
+            long length = Math.max(size, 2L * buffer.length);
+            synchronized (OpLogCodec.class) {
+                if ((length > Integer.MAX_VALUE - 8) || (memoryUsed + length - buffer.length > memoryLimit)) {
+                    return false;
+                }
+                memoryUsed += length - buffer.length;
+            }
+            buffer = Arrays.copyOf(buffer, (int) length);
+            return true;
+        }
+
+        private void spill() throws IOException {
+            spill = new BufferedOutputStream(fileOutput(file, codec), BUFFER_SIZE);
+            spill.write(buffer, 0, count);
+            discard(file);
+        }
+
+        /*
+         * called with OpLogCodec locked
+         */
+        private void release() {
+            if (buffer != null) {
+                memoryUsed -= buffer.length;
+                buffer = null;
+            }
+        }
+    }
+}
@@ -50,6 +50,9 @@ public class XDeltaEncoder {
     static final int MAXTICKS = 6;
     static final int PREPARATION_CHUNK_FACTOR = 20;
     static final int PREPARATION_BLOCK_FACTOR = 2;
+    // options of Delta and of the passes, not used by SuffixArrayDelta
+    static final String[] PASS_OPTIONS = {"-s", "-t", "-b", "-f", "-c", "-mc", "-lz", "-cdc", "-bi", "-nf",
+        "-pd", "-mi", "-pb", "-om", "-oc"};
     private static File source = null;
     private static boolean randomDataSource = false; // test data
     private static long sourceLength = 0; // test data length
@@ -76,7 +79,6 @@ public class XDeltaEncoder {
     private static long verifyDataSeed = (new Random()).nextLong();
     private static int chunksize;
     private static int min_chunksize = 5;
-    private static long chunkFactor = 10;
     private static boolean xdiff = false;
     private static boolean useReverseDelta = false;
     private static File reverseDelta = null;
@@ -97,6 +99,24 @@ public class XDeltaEncoder {
     private static boolean debugMode = false;
     private static SeekableSource debugSource = null;
     private static String restoreChecksumFile = null;
+    private static File indexDirectory = null;
+    private static int maxCandidates = 1;
+    private static boolean checksumFilter = true;
+    private static boolean bucketIndex = false;
+    private static int prefetchDistance = 0;
+    private static int lazyLevel = 0;
+    private static int contentDefinedChunkSize = 0;
+    private static boolean multiResolution = false;
+    private static long suffixArrayLimit = SuffixArrayDelta.DEFAULT_MAX_SIZE;
+    private static String passOptions = "";
+    private static boolean appendOnly = false;
+    private static int blockModeSize = 0;
+    private static boolean blockRefine = false;
+    private static int parallelBlocks = 1;
+    private static int opLogCodec = OpLogCodec.FAST;
+    private static long opLogMemory = -1;
+    private static long memoryBudget = 0;
+    private static MemoryPlanner memoryPlan = null;
 
     ;
 
@@ -105,6 +125,13 @@ public class XDeltaEncoder {
      * files
      */
     private static void encodeVirtualFile(long blksize) throws FileNotFoundException, IOException, ClassNotFoundException {
+        memoryPlan = new MemoryPlanner(memoryBudget(), min_chunksize, indexDirectory == null, bucketIndex,
+                checksumFilter);
+        memoryPlan.plan(sourceLength, blksize, targetBlockSize, parallelBlocks, sourceInMemory, opLogMemory);
+        System.out.println(memoryPlan);
+        blksize = memoryPlan.getBlockSize();
+        targetBlockSize = (int) memoryPlan.getTargetBlockSize();
+        OpLogCodec.setMemoryLimit(memoryPlan.getOpLogMemory());
         if (autocode) {
             targetFile = new MultiBufferSeekableSource(new RandomAccessFile(target, "r"), 100 * 1024, 500);
         }
@@ -118,14 +145,47 @@ public class XDeltaEncoder {
             status.blocksize = blksize;
             status.sourcepos = 0;
             status.targetblocksize = targetBlockSize;
+            status.codec = opLogCodec;
             status.preparation_pass = do_preparation_pass && (sourceLength > blksize);
         }
         if (status.targetblocksize > 0) {
             targetBuffer = ByteBuffer.allocateDirect(targetBlockSize);
             targetChannel = new FileInputStream(target).getChannel();
         }
+        long prefix = 0;
+        long suffix = 0;
+        boolean appendTail = false;
+        if ((status.pass == 0) && !autocode && !randomDataSource && !(status.targetblocksize > 0)) {
+            // identical head and tail are copied without hashing
+            FileInputStream sis = new FileInputStream(source);
+            FileInputStream tis = new FileInputStream(target);
+            try {
+                prefix = AffixMatcher.commonPrefix(sis.getChannel(), tis.getChannel());
+                suffix = AffixMatcher.commonSuffix(sis.getChannel(), tis.getChannel(),
+                        Math.min(sourceLength, target.length()) - prefix);
+            } finally {
+                sis.close();
+                tis.close();
+            }
+            // only the changed tail of an appended source is indexed
+            appendTail = appendOnly && AffixMatcher.isAppended(sourceLength, prefix, status.blocksize);
+            if (appendTail) {
+                suffix = 0;
+                status.preparation_pass = false;
+                System.out.println("Target starts with " + prefix + " bytes of source, "
+                        + (sourceLength - prefix) + " bytes of source changed.");
+            } else if ((prefix > 0) || (suffix > 0)) {
+                System.out.println("Common prefix " + prefix + " bytes, common suffix " + suffix + " bytes.");
+            }
+        }
         ByteBuffer bb = null;
         boolean origSourceInMemory = sourceInMemory;
+        if (multiResolution && (status.pass == 0) && !(status.targetblocksize > 0)) {
+            // a single pass over the whole source replaces preparation and block passes
+            status.preparation_pass = false;
+            status.blocksize = sourceLength;
+            sourceInMemory = false;
+        }
         if (status.preparation_pass) {
             status.blocksize = sourceLength;
             sourceInMemory = false;
@@ -192,7 +252,12 @@ public class XDeltaEncoder {
                 if (asource == null && bsource == null) {
                     status.sourcesize = 0;
 
-                    if (!sourceInMemory) {
+                    if (appendTail) {
+                        asource = new RandomAccessFileSeekableSource(new RandomAccessFile(source, "r"),
+                                prefix, sourceLength - prefix);
+                        status.sourcesize = sourceLength - prefix;
+                        status.sourcepos = prefix;
+                    } else if (!sourceInMemory) {
                         if (randomDataSource) {
                             asource = new RandomDataSeekableSource(randomDataSeed, sourceLength);
                         } else if (autocode) {
@@ -204,60 +269,40 @@ public class XDeltaEncoder {
                         }
                         status.sourcesize = sourceLength;
                     } else {
-                        while (bb == null) {
-                            try {
-                                if (bb == null) {
-                                    bb = ByteBuffer.wrap(new byte[(int) status.blocksize]);
-                                }
-                                bb.clear();
-                                if (randomDataSource) {
-                                    SeekableSource ss = new RandomDataSeekableSource(randomDataSeed, sourceLength);
-                                    ss.seek(0);
-                                    status.sourcesize = ss.read(bb);
-                                } else if (autocode) {
-                                    targetFile.seek(0);
-                                    status.sourcesize = targetFile.read(bb);
-                                } else {
-                                    RandomAccessFile raf = new RandomAccessFile(source, "r");
-                                    raf.seek(0);
-                                    status.sourcesize = 0;
-                                    int i = 0;
-                                    while ((i >= 0) && (status.sourcesize < status.blocksize)) {
-                                        i = raf.read(bb.array(), (int) status.sourcesize, (int) (status.blocksize - status.sourcesize));
-                                        if (i > 0) {
-                                            status.sourcesize += i;
-                                        }
-                                        //System.out.println("Reading source " + (sourcesize / 1024 / 1024) + " mb     \r");
-                                    }
-                                    raf.close();
-                                }
-                                bb.limit((int) status.sourcesize);
-                                bb.rewind();
-                                bsource = new ByteBufferSeekableSource(bb);
-                            } catch (OutOfMemoryError e) {
-                                bb = null;
-                                System.gc();
-                                status.blocksize -= status.blocksize / 4;
-                                try {
-                                    Thread.sleep(1000);
-                                } catch (InterruptedException ex) {
-                                }
-                                System.out.println("Not enough memory. Block size changed to " + status.blocksize + ".");
-                            }
+                        // the block size is planned to fit, see MemoryPlanner
+                        bb = ByteBuffer.wrap(new byte[(int) status.blocksize]);
+                        if (randomDataSource) {
+                            SeekableSource ss = new RandomDataSeekableSource(randomDataSeed, sourceLength);
+                            ss.seek(0);
+                            status.sourcesize = ss.read(bb);
+                        } else if (autocode) {
+                            targetFile.seek(0);
+                            status.sourcesize = targetFile.read(bb);
+                        } else {
+                            status.sourcesize = BlockPrefetcher.read(source, 0, bb.array());
                         }
+                        bb.limit((int) status.sourcesize);
+                        bb.rewind();
+                        bsource = new ByteBufferSeekableSource(bb);
                     }
-                    Runtime.getRuntime().gc();
-                    long freeMemory = Runtime.getRuntime().maxMemory() - Runtime.getRuntime().freeMemory()
-                            + Runtime.getRuntime().totalMemory();
-                    chunksize = Math.max((int) (status.blocksize * chunkFactor / freeMemory), min_chunksize);
+                    chunksize = indexChunkSize(status.blocksize);
 
+                    if (multiResolution && (status.blocksize == sourceLength)) {
+                        // fine chunks as for a source block, regions are indexed while memory lasts
+                        chunksize = indexChunkSize(blksize);
+                        preprocessor.setCoarseChunkSize(5 * chunksize + 3000);
+                        preprocessor.setFineIndexMemory(memoryPlan.getIndexMemory());
+                    }
                     if (status.preparation_pass) {
-                        chunksize = 5 * chunksize + 3000;
+                        // chunks of the preparation pass carry tags of their 64 bit hashes
+                        chunksize = 5 * Math.max(chunksize, memoryPlan.chunkSize(status.blocksize, true)) + 3000;
                         preprocessor.acceptHash = true;
-                        preprocessor.setDuplicateChecksum(true);
+                        preprocessor.setHash64(true);
+                        preprocessor.setStrongFingerprint(true);
                     }
 
                     preprocessor.setChunkSize(chunksize);
+                    preprocessor.setSourceSizeHint(Math.min(status.blocksize, sourceLength - status.sourcepos));
                     System.out.println("Chunk size changed to " + chunksize + ".");
                 } else {
                     chunksize = preprocessor.getChunkSize();
@@ -269,7 +314,10 @@ public class XDeltaEncoder {
                 } else if (status.targetblocksize > 0) {
                     is = new ByteBufferBackedInputStream(targetBuffer);
                 } else {
-                    is = new BufferedInputStream(new FileInputStream(target), 1024 * 1024 * 32);
+                    FileInputStream tis = new FileInputStream(target);
+                    tis.getChannel().position(prefix);
+                    is = new BufferedInputStream(new BoundedInputStream(tis, target.length() - prefix - suffix),
+                            1024 * 1024 * 32);
                 }
                 if (debugMode && !autocode && !(status.targetblocksize > 0)) {
                     System.out.println("Debug check mode started.");
@@ -277,42 +325,59 @@ public class XDeltaEncoder {
                         debugSource = new RandomAccessFileSeekableSource(new RandomAccessFile(source, "r"), 0, source.length());
                     }
                     InputStream tt = new BufferedInputStream(new FileInputStream(target), 1024 * 1024 * 32);
-                    ddStream = new VirtualWriter(new DataOutputStream(new BufferedOutputStream(
-                            new GZIPOutputStream(new FileOutputStream(status.tempFile1), 1024 * 1024))),
+                    ddStream = new VirtualWriter(OpLogCodec.output(status.tempFile1, status.codec),
                             debugSource, tt);
                 } else {
-                    ddStream = new VirtualWriter(new DataOutputStream(new BufferedOutputStream(
-                            new GZIPOutputStream(new FileOutputStream(status.tempFile1), 1024 * 1024))));
+                    ddStream = new VirtualWriter(OpLogCodec.output(status.tempFile1, status.codec));
                 }
                 preprocessor.targetsize = target.length();
-                boolean write_checksums = true;
-                if (!preprocessor.hasSource() && (restoreChecksumFile != null) && new File(restoreChecksumFile).exists()) {
-                    write_checksums = false;  // do not owerwrite existing checksums
+                // checksums of the source tail are not saved
+                boolean write_checksums = !appendTail;
+                if (!appendTail && !preprocessor.hasSource() && (restoreChecksumFile != null)
+                        && new File(restoreChecksumFile).exists()) {
                     System.out.println("Reading checksums from " + restoreChecksumFile + ".");
+                    boolean restored;
                     if (sourceInMemory) {
-                        preprocessor.readChecksums(restoreChecksumFile, bsource);
+                        restored = preprocessor.readChecksums(restoreChecksumFile, bsource, true);
                     } else {
-                        preprocessor.readChecksums(restoreChecksumFile, asource);
+                        restored = preprocessor.readChecksums(restoreChecksumFile, asource, true);
                     }
-                    System.out.println("Chunksize set to " + preprocessor.getChunkSize() + " from " + restoreChecksumFile + ".");
-                }
-                while (!computed) {
-                    try {
-                        if (sourceInMemory) {
-                            preprocessor.compute(bsource, is, ddStream, 0, 0, true);
-                        } else {
-                            preprocessor.compute(asource, is, ddStream, 0, 0, true);
+                    if (restored) {
+                        // write back only an index brought up to date with the source
+                        write_checksums = preprocessor.isChecksumsUpdated();
+                        System.out.println("Chunksize set to " + preprocessor.getChunkSize() + " from " + restoreChecksumFile + ".");
+                        if (write_checksums) {
+                            System.out.println("Checksums updated for changed or appended source data.");
                         }
-                        preprocessor.setKeepSource(true);
+                    } else {
+                        System.out.println("Checksums in " + restoreChecksumFile + " do not match the source, computing new ones.");
+                    }
+                }
+                if (appendTail) {
+                    AffixMatcher.encodeAppended(preprocessor, asource, prefix, sourceLength - prefix, is, ddStream);
+                    computed = true;
+                } else {
+                    AffixMatcher.addCopy(ddStream, 0, prefix);
+                    if (prefix + suffix == target.length()) {
+                        // nothing left to match
                         computed = true;
-                    } catch (OutOfMemoryError ex) {
-                        chunksize = 1 + (int) ((1.2d * status.sourcesize / preprocessor.getCheksumPos()) * chunksize);
-                        chunkFactor = (int) (1.2d * chunkFactor * status.sourcesize / preprocessor.getCheksumPos());
-                        System.out.println("Not enough memory. Chunk size changed to " + chunksize + ".");
-                        preprocessor.setKeepSource(false);
-                        preprocessor.setChunkSize(chunksize);
+                        write_checksums = false;
                     }
                 }
+                if (!computed) {
+                    if (sourceInMemory) {
+                        preprocessor.compute(bsource, is, ddStream, 0, 0, false);
+                    } else {
+                        preprocessor.compute(asource, is, ddStream, 0, 0, false);
+                    }
+                    preprocessor.setKeepSource(true);
+                }
+                AffixMatcher.addCopy(ddStream, sourceLength - suffix, suffix);
+                preprocessor.found += prefix + suffix;
+                if (!autocode) {
+                    is.close();
+                }
+                ddStream.close();
                 if ((status.targetpass == 0) && (restoreChecksumFile != null) && write_checksums) {
                     System.out.println("Writing checksums to " + restoreChecksumFile + ".                   ");
                     preprocessor.writeChecksums(restoreChecksumFile);
@@ -333,6 +398,7 @@ public class XDeltaEncoder {
                     System.out.println("Total output length = " + totalLength + " target length = " + targetlength);
                     return;
                 }
+                System.out.println(preprocessor.getLookupStatistics() + ".                    ");
                 status.pass++;
                 status.sourcepos += status.sourcesize;
                 status.write();
@@ -344,6 +410,7 @@ public class XDeltaEncoder {
             process_passes(status, interrupted, blksize, origSourceInMemory);
             // write result
             writePassResults(status, status.tempFile1, output, status.targetpass);
+            OpLogCodec.discard(status.tempFile1);
             status.tempFile1.renameTo(new File(delta.getAbsolutePath() + "." + status.targetpass));
             status.pass = 0;
             status.sourcepos = 0;
@@ -382,6 +449,9 @@ public class XDeltaEncoder {
         long blocks_map_start = 0;
         boolean under_threshold = false;
         ByteBuffer bb = null;
+        // second block buffer filled by the prefetcher while bb is matched
+        byte[] spare = null;
+        BlockPrefetcher prefetcher = new BlockPrefetcher(source);
         SeekableSource asource = null, bsource = null;
         DiffWriter ddStream = null;
         mainprocessor.setKeepSource(true);
@@ -443,12 +513,11 @@ public class XDeltaEncoder {
                 bsource = null;
                 asource = null;
                 bb = null;
+                prefetcher.cancel();
+                spare = null;
                 System.gc();
                 if (status.targetpass == 0) {
-                    chunkFactor = 10;
-                    long freeMemory = Runtime.getRuntime().maxMemory() - Runtime.getRuntime().freeMemory()
-                            + Runtime.getRuntime().totalMemory();
-                    chunksize = Math.max((int) (status.blocksize * chunkFactor / freeMemory), min_chunksize);
+                    chunksize = indexChunkSize(status.blocksize);
                     mainprocessor.setChunkSize(chunksize);
                     System.out.println("Chunk size changed to " + chunksize + ".                                ");
                 } else {
@@ -459,8 +528,16 @@ public class XDeltaEncoder {
             fits = 0;
             mainprocessor.found = 0;
             preparation_data = 0;
-            DataInputStream vinp = new DataInputStream(new GZIPInputStream(
-                    new BufferedInputStream(new FileInputStream(status.tempFile1)), 1024 * 1024));
+            if ((memoryPlan.getParallelBlocks() > 1) && !status.preparation_pass && !do_preparation_pass
+                    && sourceInMemory && !autocode && !debugMode) {
+                ttStream.close();
+                long[] parallel = processParallelPass(status);
+                fits = parallel[0];
+                mainprocessor.found = parallel[1];
+                status.write();
+                continue;
+            }
+            VirtualReader vinp = OpLogCodec.reader(status.tempFile1, status.codec);
             int length = 0;
             long offs = 0;
             int chs = mainprocessor.getChunkSize();
@@ -472,11 +549,11 @@ public class XDeltaEncoder {
                     blocks_map_blocksize = status.sourcesize;
                     int no_of_blocks = (int) Math.ceil((0d + sourceLength - blocks_map_start) / blocks_map_blocksize);
                     blocks_map = new long[no_of_blocks + 1];
-                    byte op = vinp.readByte();
+                    byte op = vinp.readOp();
                     while (op != 3) {
                         if (op == 1) {
-                            offs = vinp.readLong();
-                            length = vinp.readInt();
+                            offs = vinp.readOffset();
+                            length = vinp.readLength();
                             // process found block
                             int start_block = (int) Math.floor((0d + offs - blocks_map_start) / blocks_map_blocksize);
                             int end_block = (int) Math.floor((0d + offs - blocks_map_start + length - 1) / blocks_map_blocksize);
@@ -489,9 +566,9 @@ public class XDeltaEncoder {
                             }
                         }
                         if (op == 2) {
-                            length = vinp.readInt(); // ignore
+                            length = vinp.readLength(); // ignore
                         }
-                        op = vinp.readByte();
+                        op = vinp.readOp();
                     }
                     System.out.print("Passes to process: ");
                     for (int i = 0; i < blocks_map.length; i++) {
@@ -502,8 +579,7 @@ public class XDeltaEncoder {
                     }
                     System.out.println();
                     vinp.close();
-                    vinp = new DataInputStream(new GZIPInputStream(
-                            new BufferedInputStream(new FileInputStream(status.tempFile1)), 1024 * 1024));
+                    vinp = OpLogCodec.reader(status.tempFile1, status.codec);
                 }
                 int block = (int) Math.floor((0d + status.sourcepos - blocks_map_start) / blocks_map_blocksize);
                 if ((blocks_map[block] < block_threshold) && (blocks_map[block] <= (preprocessor.found / 10d))) {
@@ -518,13 +594,12 @@ public class XDeltaEncoder {
                 } else {
                     System.out.print("Pass " + status.pass + " Preprocessing block delta...                     \r");
                 }
-                DiffWriter ddStream2 = new VirtualWriter(new DataOutputStream(
-                        new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(status.tempFile3)), 10000000)));
-                byte op = vinp.readByte();
+                DiffWriter ddStream2 = new VirtualWriter(OpLogCodec.output(status.tempFile3, status.codec));
+                byte op = vinp.readOp();
                 while (op != 3) {
                     if (op == 1) {  // copy pass through
-                        offs = vinp.readLong();
-                        length = vinp.readInt();
+                        offs = vinp.readOffset();
+                        length = vinp.readLength();
                         fits += length;
                         if (do_preparation_pass && (offs >= status.sourcepos && offs < (status.sourcepos + status.sourcesize))) {
                             op = 4;
@@ -534,7 +609,7 @@ public class XDeltaEncoder {
                     }
                     if ((op == 2) || (op == 4)) {
                         if (op == 2) {
-                            length = vinp.readInt();
+                            length = vinp.readLength();
                         } else {
                             preparation_data += length;
                         }
@@ -544,7 +619,7 @@ public class XDeltaEncoder {
                         }
 
                     }
-                    op = vinp.readByte();
+                    op = vinp.readOp();
                 }
                 ddStream2.close();
                 vinp.close();
@@ -555,10 +630,10 @@ public class XDeltaEncoder {
                     under_threshold = true;
                     continue;
                 }
-                vinp = new DataInputStream(new GZIPInputStream(
-                        new BufferedInputStream(new FileInputStream(status.tempFile3)), 1024 * 1024));
+                vinp = OpLogCodec.reader(status.tempFile3, status.codec);
             }
             mainprocessor.clearSource();
+            mainprocessor.setSourceSizeHint(Math.min(status.blocksize, sourceLength - status.sourcepos));
             if (!sourceInMemory) {
                 if (randomDataSource) {
                     asource = new RandomDataSeekableSource(randomDataSeed, sourceLength);
@@ -569,49 +644,41 @@ public class XDeltaEncoder {
                 }
                 status.sourcesize = sourceLength;
             }
-            boolean read = false;
             if (sourceInMemory) {
-                while (!read) {
-                    try {
-                        if (bb == null) {
-                            bb = ByteBuffer.wrap(new byte[(int) status.blocksize]);
-                        }
-                        bb.clear();
-                        if (randomDataSource) {
-                            SeekableSource ss = new RandomDataSeekableSource(randomDataSeed, sourceLength);
-                            ss.seek(status.sourcepos);
-                            status.sourcesize = ss.read(bb);
-                        } else if (autocode) {
-                            targetFile.seek(status.sourcepos);
-                            status.sourcesize = targetFile.read(bb);
-                        } else {
-                            RandomAccessFile raf = new RandomAccessFile(source, "r");
-                            raf.seek(status.sourcepos);
-                            status.sourcesize = 0;
-                            int i = 0;
-                            while ((i >= 0) && (status.sourcesize < status.blocksize)) {
-                                i = raf.read(bb.array(), (int) status.sourcesize, (int) (status.blocksize - status.sourcesize));
-                                if (i > 0) {
-                                    status.sourcesize += i;
-                                }
-                                //System.out.println("Reading source " + (sourcesize / 1024 / 1024) + " mb     \r");
-                            }
-                            raf.close();
-                        }
-                        bb.limit((int) status.sourcesize);
-                        bb.rewind();
-                        bsource = new ByteBufferSeekableSource(bb);
-
-                        read = true;
-                    } catch (OutOfMemoryError e) {
-                        bb = null;
-                        System.gc();
-                        status.blocksize -= status.blocksize / 4;
-                        try {
-                            Thread.sleep(1000);
-                        } catch (InterruptedException ex) {
-                        }
-                        System.out.println("Not enough memory. Block size changed to " + status.blocksize + ".");
+                if (bb == null) {
+                    bb = ByteBuffer.wrap(new byte[(int) status.blocksize]);
+                }
+                bb.clear();
+                if (randomDataSource) {
+                    SeekableSource ss = new RandomDataSeekableSource(randomDataSeed, sourceLength);
+                    ss.seek(status.sourcepos);
+                    status.sourcesize = ss.read(bb);
+                } else if (autocode) {
+                    targetFile.seek(status.sourcepos);
+                    status.sourcesize = targetFile.read(bb);
+                } else {
+                    int prefetched = prefetcher.take(status.sourcepos);
+                    if (prefetched >= 0) {
+                        // read in background during the previous pass
+                        byte[] array = spare;
+                        spare = bb.array();
+                        bb = ByteBuffer.wrap(array);
+                        status.sourcesize = prefetched;
+                    } else {
+                        status.sourcesize = BlockPrefetcher.read(source, status.sourcepos, bb.array());
+                    }
+                }
+                bb.limit((int) status.sourcesize);
+                bb.rewind();
+                bsource = new ByteBufferSeekableSource(bb);
+                long next = status.sourcepos + status.sourcesize;
+                if (!randomDataSource && !autocode && (next < sourceLength)) {
+                    // double buffering only if the plan leaves room for the second buffer
+                    if ((spare == null) && memoryPlan.isPrefetch() && (status.blocksize <= memoryPlan.getBlockSize())) {
+                        spare = new byte[(int) status.blocksize];
+                    }
+                    if (spare != null) {
+                        prefetcher.start(next, spare);
                     }
                 }
             }
@@ -621,23 +688,21 @@ public class XDeltaEncoder {
                     debugSource = new RandomAccessFileSeekableSource(new RandomAccessFile(source, "r"), 0, source.length());
                 }
                 InputStream tt = new BufferedInputStream(new FileInputStream(target), 1024 * 1024 * 32);
-                ddStream = new VirtualWriter(new DataOutputStream(new BufferedOutputStream(
-                        new GZIPOutputStream(new FileOutputStream(status.tempFile2), 1024 * 1024))),
+                ddStream = new VirtualWriter(OpLogCodec.output(status.tempFile2, status.codec),
                         debugSource, tt);
             } else {
-                ddStream = new VirtualWriter(new DataOutputStream(new BufferedOutputStream(
-                        new GZIPOutputStream(new FileOutputStream(status.tempFile2), 1024 * 1024))));
+                ddStream = new VirtualWriter(OpLogCodec.output(status.tempFile2, status.codec));
             }
-            byte op = vinp.readByte();
+            byte op = vinp.readOp();
             long done = 0;
             interrupted = false;
             length = 0;
             offs = 0;
             fits = 0;
-            while ((op != 3) && !interrupted) {
+            while (op != 3) {
                 if (op == 1) {  // copy pass through
-                    offs = vinp.readLong();
-                    length = vinp.readInt();
+                    offs = vinp.readOffset();
+                    length = vinp.readLength();
                     //System.out.println("Copy " + length + " bytes from " + offs);
                     ddStream.addCopy(offs, length);
                     int skipped = 0;
@@ -648,7 +713,7 @@ public class XDeltaEncoder {
                     done += length;
                 }
                 if ((op == 2)) {
-                    length = vinp.readInt();
+                    length = vinp.readLength();
                     done += length;
                     if ((length <= chs) || (autocode && (done < status.sourcepos))) {
                         //System.out.println("Passthrough " + len + " bytes");
@@ -657,26 +722,14 @@ public class XDeltaEncoder {
                         }
                     } else {
                         ttStream.setLimit(length);
-                        try {
-                            if (sourceInMemory) {
-                                mainprocessor.compute(bsource, ttStream, ddStream, status.sourcepos, done - length, false);
-                            } else {
-                                mainprocessor.compute(asource, ttStream, ddStream, status.sourcepos, done - length, false);
-                            }
-                        } catch (OutOfMemoryError ex) {
-                            chunksize = 1 + (int) ((1.2d * status.sourcesize / mainprocessor.getCheksumPos()) * chunksize);
-                            chunkFactor = (int) (1.2d * chunkFactor * status.sourcesize / mainprocessor.getCheksumPos());
-                            System.out.println("Not enough memory. Chunk size changed to " + chunksize + ".");
-                            mainprocessor.setChunkSize(chunksize);
-                            interrupted = true;
-                            status.pass--;
+                        if (sourceInMemory) {
+                            mainprocessor.compute(bsource, ttStream, ddStream, status.sourcepos, done - length, false);
+                        } else {
+                            mainprocessor.compute(asource, ttStream, ddStream, status.sourcepos, done - length, false);
                         }
                         ttStream.setLimit(-1);
                     }
                 }
-                if (interrupted) {
-                    continue;
-                }
                 if (ddStream.getClass().equals(VirtualWriter.class)) {
                     totalLength = ((VirtualWriter) ddStream).totalLength;
                 } else {
@@ -692,7 +745,7 @@ public class XDeltaEncoder {
                     }
                     return;
                 }
-                op = vinp.readByte();
+                op = vinp.readOp();
                 if ((System.currentTimeMillis() - lastdisptime) > 1000) {
                     lastdisptime = System.currentTimeMillis();
                     filteredData = 0;
@@ -718,29 +771,28 @@ public class XDeltaEncoder {
             ddStream.close();
 
             ttStream.close();
-            if (!interrupted) {
-                if (ddStream.getClass().equals(VirtualWriter.class)) {
-                    totalLength = ((VirtualWriter) ddStream).totalLength;
-                } else {
-                    totalLength = ((GDiffWriter) ddStream).totalLength;
-                }
-                long targetlength = target.length();
-                if (status.targetblocksize > 0) {
-                    targetBuffer.rewind();
-                    targetlength = targetBuffer.remaining();
-                }
-                if (totalLength != targetlength) {
-                    System.out.println("Target length mismatch.");
-                    System.out.println("Total output length = " + totalLength + " target length = " + targetlength);
-                    return;
-                }
-                status.sourcepos += status.sourcesize;
-                File file = status.tempFile1;
-                status.tempFile1 = status.tempFile2;
-                status.tempFile2 = file;
+            if (ddStream.getClass().equals(VirtualWriter.class)) {
+                totalLength = ((VirtualWriter) ddStream).totalLength;
+            } else {
+                totalLength = ((GDiffWriter) ddStream).totalLength;
+            }
+            long targetlength = target.length();
+            if (status.targetblocksize > 0) {
+                targetBuffer.rewind();
+                targetlength = targetBuffer.remaining();
             }
+            if (totalLength != targetlength) {
+                System.out.println("Target length mismatch.");
+                System.out.println("Total output length = " + totalLength + " target length = " + targetlength);
+                return;
+            }
+            status.sourcepos += status.sourcesize;
+            File file = status.tempFile1;
+            status.tempFile1 = status.tempFile2;
+            status.tempFile2 = file;
             status.write();
         }
+        prefetcher.cancel();
         if (status.targetblocksize > 0) {
             if (!under_threshold) {
                 System.out.println(
@@ -755,13 +807,8 @@ public class XDeltaEncoder {
                     + " % done, found " + df.format((totalfounds + fits + mainprocessor.found) / 1024d / 1024d) + " mb.");
         }
         totalfounds += fits + mainprocessor.found;
-        if (status.tempFile2.exists()) {
-            status.tempFile2.delete();
-        }
-
-        if (status.tempFile3.exists()) {
-            status.tempFile3.delete();
-        }
+        OpLogCodec.delete(status.tempFile2);
+        OpLogCodec.delete(status.tempFile3);
         File statusFile = new File(status.statusFileName);
         if (statusFile.exists()) {
             statusFile.delete();
@@ -773,6 +820,105 @@ public class XDeltaEncoder {
         System.gc();
     }
 
+    /*
+     * One pass over up to parallelBlocks source blocks held in memory at once,
+     * each matched by its own thread against the data ranges of tempFile1.
+     * The op logs of the blocks are merged into tempFile2. Returns bytes
+     * passed through and newly found.
+     */
+    private static long[] processParallelPass(Status status) throws IOException {
+        long remaining = sourceLength - status.sourcepos;
+        int k = (int) Math.min(memoryPlan.getParallelBlocks(), (remaining + status.blocksize - 1) / status.blocksize);
+        BlockPass[] passes = new BlockPass[k];
+        File[] logs = new File[k];
+        long groupsize = 0;
+        try {
+            SeekableSource[] sources = new SeekableSource[k];
+            long[] lengths = new long[k];
+            for (int i = 0; i < k; i++) {
+                long pos = status.sourcepos + groupsize;
+                ByteBuffer bb = ByteBuffer.wrap(new byte[(int) Math.min(status.blocksize, sourceLength - pos)]);
+                if (randomDataSource) {
+                    SeekableSource ss = new RandomDataSeekableSource(randomDataSeed, sourceLength);
+                    ss.seek(pos);
+                    bb.limit(ss.read(bb));
+                } else {
+                    bb.limit(BlockPrefetcher.read(source, pos, bb.array()));
+                }
+                bb.rewind();
+                sources[i] = new ByteBufferSeekableSource(bb);
+                lengths[i] = bb.limit();
+                groupsize += lengths[i];
+            }
+            int chs = Math.max(mainprocessor.getChunkSize(), indexChunkSize(groupsize));
+            if (status.targetblocksize > 0) {
+                System.out.print("Pass " + status.targetpass + "." + status.pass);
+            } else {
+                System.out.print("Pass " + status.pass);
+            }
+            System.out.println(" matching " + k + " blocks in parallel, chunk size " + chs + ".");
+            long pos = status.sourcepos;
+            for (int i = 0; i < k; i++) {
+                Delta processor = new Delta();
+                processor.setChunkSize(chs);
+                processor.setIndexDirectory(indexDirectory);
+                processor.setChecksumFilter(checksumFilter);
+                processor.setMaxCandidates(maxCandidates);
+                processor.setBucketIndex(bucketIndex);
+                processor.setPrefetchDistance(prefetchDistance);
+                processor.setLazyLevel(lazyLevel);
+                processor.setContentDefinedChunkSize(contentDefinedChunkSize);
+                processor.setSourceSizeHint(lengths[i]);
+                logs[i] = File.createTempFile("tempb-", ".vdiff", new File("."));
+                passes[i] = new BlockPass(processor, sources[i], pos, status.tempFile1, targetStream(status),
+                        logs[i], status.codec);
+                pos += lengths[i];
+            }
+            long copied = BlockPass.run(passes, status.tempFile2, status.codec);
+            long fits = passes[0].getPassedThrough();
+            status.sourcepos += groupsize;
+            File file = status.tempFile1;
+            status.tempFile1 = status.tempFile2;
+            status.tempFile2 = file;
+            return new long[]{fits, copied - fits};
+        } finally {
+            // logs of passes not run yet when setting up failed
+            for (File log : logs) {
+                if (log != null) {
+                    OpLogCodec.delete(log);
+                }
+            }
+        }
+    }
+
+    /*
+     * New stream over the whole target (or the current target block)
+     */
+    private static InputStream targetStream(Status status) throws IOException {
+        if (status.targetblocksize > 0) {
+            ByteBuffer buffer = targetBuffer.duplicate();
+            buffer.rewind();
+            return new ByteBufferBackedInputStream(buffer);
+        }
+        return new BufferedInputStream(new FileInputStream(target));
+    }
+
+    /*
+     * Chunk size for a checksum index over blksize bytes of source which fits
+     * into the index memory of the plan
+     */
+    private static int indexChunkSize(long blksize) {
+        return memoryPlan.chunkSize(blksize);
+    }
+
+    /*
+     * Declared memory budget, the maximum heap if none was declared
+     */
+    private static long memoryBudget() {
+        long heap = Runtime.getRuntime().maxMemory();
+        return (memoryBudget > 0) ? Math.min(memoryBudget, heap) : heap;
+    }
+
     private static void writePassResults(Status status, File vdiff, OutputStream output, int pass) throws IOException {
         DiffWriter ddStream;
         if (xdiff) {
@@ -808,8 +954,7 @@ public class XDeltaEncoder {
         } else {
             is = new BufferedInputStream(new FileInputStream(target), 1024 * 1024 * 32);
         }
-        DataInputStream vinp = new DataInputStream(new GZIPInputStream(new BufferedInputStream(
-                new FileInputStream(vdiff))));
+        VirtualReader vinp = OpLogCodec.reader(vdiff, status.codec);
         if (status.targetblocksize > 0) {
             System.out.print("Writing delta file for pass " + pass + "...                        \r");
         } else {
@@ -817,23 +962,23 @@ public class XDeltaEncoder {
         }
         long offs;
         int length = 0;
-        byte op = vinp.readByte();
+        byte op = vinp.readOp();
         while (op != 3) {
             if (op == 1) {  // copy
-                offs = vinp.readLong();
-                length = vinp.readInt();
+                offs = vinp.readOffset();
+                length = vinp.readLength();
                 int l = length;
                 while (l > 0) {
                     l -= is.skip(l);
                 }
                 ddStream.addCopy(offs, length);
             } else if (op == 2) {
-                length = vinp.readInt();
+                length = vinp.readLength();
                 for (int i = 0; i < length; i++) {
                     ddStream.addData((byte) is.read());
                 }
             }
-            op = vinp.readByte();
+            op = vinp.readOp();
         }
         vinp.close();
         is.close();
@@ -1055,6 +1200,100 @@ public class XDeltaEncoder {
         encodeVirtualFile(blocksize);
     }
 
+    /*
+     * Small files are encoded by SuffixArrayDelta if source, target and
+     * the index fit into memory, unless options of Delta or of the passes
+     * were chosen
+     */
+    private static boolean useSuffixArray() {
+        if ((suffixArrayLimit <= 0) || randomDataSource || autocode || appendOnly || multiResolution
+                || do_preparation_pass || (targetBlockSize > 0) || (restoreChecksumFile != null) || debugMode) {
+            return false;
+        }
+        long targetLength = target.length();
+        boolean fits = (sourceLength <= suffixArrayLimit) && (targetLength <= suffixArrayLimit)
+                && (memoryBudget() - MemoryPlanner.RESERVE > SuffixArrayDelta.memoryFor(sourceLength, targetLength));
+        if (fits && (passOptions.length() > 0)) {
+            System.out.println("Suffix array mode not used because of" + passOptions + ".");
+            return false;
+        }
+        return fits;
+    }
+
+    /*
+     * Encoder for small files finding the longest matches, see SuffixArrayDelta
+     */
+    private static void encodeSuffixArray() throws IOException {
+        System.out.println(" [" + sdf.format(new Date(System.currentTimeMillis())) + "]: Suffix array mode.");
+        byte[] sourceBytes = readFile(source);
+        byte[] targetBytes = readFile(target);
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(new FileOutputStream(delta), 1024 * 1024)));
+        DiffWriter ddStream;
+        if (xdiff) {
+            ddStream = new XDiffWriter(output);
+        } else {
+            ddStream = new GDiffWriter(output, 0, differential, zeroAdditions, zeroMinBlock, zeroRatio);
+        }
+        SuffixArrayDelta suffixArrayDelta = new SuffixArrayDelta();
+        try {
+            suffixArrayDelta.compute(sourceBytes, targetBytes, ddStream, true);
+        } finally {
+            output.close();
+        }
+        System.out.println("Found " + df.format(suffixArrayDelta.found / 1024d / 1024d) + " mb in source.");
+        System.out.print("Delta file size: " + delta.length());
+        System.out.println(
+                "   Final compression ratio: " + df.format(100.00d * delta.length() / target.length()) + " %");
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        DataInputStream is = new DataInputStream(new FileInputStream(file));
+        try {
+            is.readFully(bytes);
+        } finally {
+            is.close();
+        }
+        return bytes;
+    }
+
+    /*
+     * Single pass encoder matching aligned blocks, see BlockDelta
+     */
+    private static void encodeBlocks() throws IOException {
+        if (randomDataSource || autocode) {
+            System.out.println("Block mode needs source and target files.");
+            return;
+        }
+        BlockDelta blockDelta = new BlockDelta();
+        blockDelta.setBlockSize(blockModeSize);
+        blockDelta.setRefine(blockRefine);
+        System.out.println(" [" + sdf.format(new Date(System.currentTimeMillis())) + "]: Block mode, block size "
+                + blockModeSize + ".");
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(new FileOutputStream(delta), 1024 * 1024)));
+        DiffWriter ddStream;
+        if (xdiff) {
+            ddStream = new XDiffWriter(output);
+        } else {
+            ddStream = new GDiffWriter(output, 0, differential, zeroAdditions, zeroMinBlock, zeroRatio);
+        }
+        SeekableSource ss = new RandomAccessFileSeekableSource(new RandomAccessFile(source, "r"));
+        InputStream is = new BufferedInputStream(new FileInputStream(target), 1024 * 1024 * 32);
+        try {
+            blockDelta.compute(ss, is, ddStream, true);
+        } finally {
+            ss.close();
+            is.close();
+            output.close();
+        }
+        System.out.println("Found " + df.format(blockDelta.found / 1024d / 1024d) + " mb in blocks.");
+        System.out.print("Delta file size: " + delta.length());
+        System.out.println(
+                "   Final compression ratio: " + df.format(100.00d * delta.length() / target.length()) + " %");
+    }
+
     private static void decode() throws IOException {
         SeekableSource ss = null;
         if (autocode) {
@@ -1256,6 +1495,44 @@ public class XDeltaEncoder {
         }
     }
 
+    /*
+     * Reads at most length bytes of the underlying stream
+     */
+    private static class BoundedInputStream extends FilterInputStream {
+
+        long remaining;
+
+        BoundedInputStream(InputStream in, long length) {
+            super(in);
+            remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] bytes, int off, int len)
+                throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int r = in.read(bytes, off, (int) Math.min(len, remaining));
+            if (r > 0) {
+                remaining -= r;
+            }
+            return r;
+        }
+    }
+
     private static class Status {
 
         String statusFileName;
@@ -1270,6 +1547,9 @@ public class XDeltaEncoder {
         int targetpass;
         long targetpos;
         long targetblocksize;
+        int codec = OpLogCodec.GZIP;
+        // op logs were kept in memory, the files cannot be resumed
+        boolean memory = false;
 
         Status() {
             String deltaname = delta.getName();
@@ -1296,7 +1576,24 @@ public class XDeltaEncoder {
             targetpass = (Integer) is.readObject();
             targetpos = (Long) is.readObject();
             targetblocksize = (Long) is.readObject();
+            try {
+                codec = (Integer) is.readObject();
+                memory = (Boolean) is.readObject();
+            } catch (ArrayIndexOutOfBoundsException ex) {
+                // status of a version with gzip op logs only
+                codec = OpLogCodec.GZIP;
+            }
             is.close();
+            if (memory) {
+                System.out.println("Op logs of the interrupted encoding were kept in memory, starting again.");
+                tempFile1.delete();
+                tempFile2.delete();
+                tempFile3.delete();
+                pass = 0;
+                targetpass = 0;
+                targetpos = 0;
+                memory = false;
+            }
         }
 
         void write() throws IOException {
@@ -1312,6 +1609,9 @@ public class XDeltaEncoder {
             os.writeObject(targetpass);
             os.writeObject(targetpos);
             os.writeObject(targetblocksize);
+            os.writeObject(codec);
+            memory |= OpLogCodec.inMemory(tempFile1);
+            os.writeObject(memory);
             os.close();
         }
     }
@@ -1368,8 +1668,36 @@ public class XDeltaEncoder {
                     + "                              source must be specified but is ignored\n"
                     + "         -m               merge two consecutive patches\n"
                     + "                             (does not check patch consistence)\n"
+                    + "         -mc candidates   number of source positions tried per checksum - default 1\n"
+                    + "                             more candidates find longer matches but encode slower\n"
+                    + "         -nf              do not use bloom filter in front of checksum index\n"
+                    + "         -bi              use cache line sized buckets in the heap checksum index\n"
+                    + "         -pd distance     look up checksum index this many bytes ahead - default 0 (off)\n"
+                    + "         -lz level        look for a longer match up to level bytes ahead - default 0\n"
+                    + "                             higher levels give smaller deltas but encode slower\n"
+                    + "         -sa size         use suffix array matching for files up to size bytes\n"
+                    + "                             - default 64m, 0 = off (needs about 6x source of memory)\n"
+                    + "         -oc codec        compression of temporary op logs: none, fast (default)\n"
+                    + "                             or gzip\n"
+                    + "         --mem size       memory budget (e.g. 8g) divided between source blocks,\n"
+                    + "                             indexes and op logs - default maximum heap\n"
+                    + "         -om size         keep temporary op logs up to size bytes in memory\n"
+                    + "                             - default 1/16 of memory budget, 0 = always in files\n"
+                    + "         -pb blocks       match this many source blocks at once, one thread each\n"
+                    + "                             (not used with -p, -f or -a)\n"
+                    + "         -mr              single pass multi resolution matching: coarse index of\n"
+                    + "                             whole source, fine index built around its matches\n"
+                    + "         -cdc size        index source at content defined boundaries size bytes apart\n"
+                    + "                             on average - much smaller index, finds shifted data\n"
+                    + "         -bm blocksize    match aligned blocks only (e.g. 4096 for disk and VM images)\n"
+                    + "             -br              refine unmatched blocks with the rolling matcher\n"
+                    + "         -append          target is source with appended data (e.g. logs), only\n"
+                    + "                             the changed tail of source is indexed\n"
+                    + "         -mi directory    keep checksum index in memory mapped files in directory\n"
+                    + "                             instead of java heap\n"
                     + "         -cf filename     save/restore preprocessor checksums to/from a file\n"
-                    + "                             for later use with the same source (not checked!)\n"
+                    + "                             for later use with the same source, changed or\n"
+                    + "                             appended data are indexed again\n"
                     + "         -d               decode using delta patch\n"
                     + "             -so              split output - useful when JVM can't handle big files\n"
                     + "             -mo              merge splitted output when finished (Linux only)\n"
@@ -1387,7 +1715,13 @@ public class XDeltaEncoder {
         boolean ignoreWarnings = false;
         boolean singlePass = false;
         boolean testBlockSize = false;
+        boolean blocksizeSet = false;
         while (args[arcbase].startsWith("-")) {
+            for (String option : PASS_OPTIONS) {
+                if (args[arcbase].equalsIgnoreCase(option)) {
+                    passOptions += " " + option;
+                }
+            }
             if (args[arcbase].equalsIgnoreCase("-d") || args[arcbase].equalsIgnoreCase("-v")) {
                 decoder = 1;
                 if (args[arcbase].equalsIgnoreCase("-v")) {
@@ -1459,6 +1793,7 @@ public class XDeltaEncoder {
                     ch = ch.replace("m", "");
                 }
                 blocksize = Integer.decode(ch) * factor;
+                blocksizeSet = true;
                 if (blocksize <= chunksize) {
                     blocksize = BLOCKSIZE;
                     System.out.println("Invalid block size. Used default value " + BLOCKSIZE);
@@ -1485,6 +1820,114 @@ public class XDeltaEncoder {
                 useReverseDelta = true;
                 arcbase++;
                 reverseDelta = new File(args[arcbase]);
+            } else if (args[arcbase].equalsIgnoreCase("-mc")) {
+                arcbase++;
+                maxCandidates = Integer.decode(args[arcbase]);
+                if (maxCandidates < 1) {
+                    maxCandidates = 1;
+                    System.out.println("Invalid number of candidates. Used default value " + 1);
+                }
+            } else if (args[arcbase].equalsIgnoreCase("-nf")) {
+                checksumFilter = false;
+            } else if (args[arcbase].equalsIgnoreCase("-bi")) {
+                bucketIndex = true;
+            } else if (args[arcbase].equalsIgnoreCase("-pd")) {
+                arcbase++;
+                prefetchDistance = Integer.decode(args[arcbase]);
+                if (prefetchDistance < 0) {
+                    prefetchDistance = 0;
+                    System.out.println("Invalid prefetch distance. Used default value " + 0);
+                }
+            } else if (args[arcbase].equalsIgnoreCase("-bm")) {
+                arcbase++;
+                blockModeSize = Integer.decode(args[arcbase]);
+                if (blockModeSize < 1) {
+                    blockModeSize = BlockDelta.DEFAULT_BLOCK_SIZE;
+                    System.out.println("Invalid block size. Used default value " + BlockDelta.DEFAULT_BLOCK_SIZE);
+                }
+            } else if (args[arcbase].equalsIgnoreCase("-br")) {
+                blockRefine = true;
+            } else if (args[arcbase].equalsIgnoreCase("-append")) {
+                appendOnly = true;
+            } else if (args[arcbase].equalsIgnoreCase("-lz")) {
+                arcbase++;
+                lazyLevel = Integer.decode(args[arcbase]);
+                if (lazyLevel < 0) {
+                    lazyLevel = 0;
+                    System.out.println("Invalid lazy level. Used default value " + 0);
+                }
+            } else if (args[arcbase].equalsIgnoreCase("-sa")) {
+                arcbase++;
+                String ch = args[arcbase];
+                long factor = 1;
+                if (ch.endsWith("m")) {
+                    factor = 1024 * 1024;
+                    ch = ch.replace("m", "");
+                }
+                suffixArrayLimit = Long.decode(ch) * factor;
+            } else if (args[arcbase].equalsIgnoreCase("--mem") || args[arcbase].equalsIgnoreCase("-mem")) {
+                arcbase++;
+                String ch = args[arcbase].toLowerCase();
+                long factor = 1;
+                if (ch.endsWith("g")) {
+                    factor = 1024 * 1024 * 1024;
+                    ch = ch.replace("g", "");
+                } else if (ch.endsWith("m")) {
+                    factor = 1024 * 1024;
+                    ch = ch.replace("m", "");
+                } else if (ch.endsWith("k")) {
+                    factor = 1024;
+                    ch = ch.replace("k", "");
+                }
+                try {
+                    memoryBudget = Long.decode(ch) * factor;
+                } catch (NumberFormatException ex) {
+                    memoryBudget = -1;
+                }
+                if (memoryBudget <= 0) {
+                    memoryBudget = 0;
+                    System.out.println("Invalid memory budget " + args[arcbase] + ". Maximum heap used.");
+                } else if (memoryBudget > Runtime.getRuntime().maxMemory()) {
+                    System.out.println("Memory budget exceeds maximum heap, use -Xmx to raise it. Maximum heap used.");
+                }
+            } else if (args[arcbase].equalsIgnoreCase("-om")) {
+                arcbase++;
+                String ch = args[arcbase];
+                long factor = 1;
+                if (ch.endsWith("m")) {
+                    factor = 1024 * 1024;
+                    ch = ch.replace("m", "");
+                }
+                opLogMemory = Long.decode(ch) * factor;
+            } else if (args[arcbase].equalsIgnoreCase("-oc")) {
+                arcbase++;
+                opLogCodec = OpLogCodec.forName(args[arcbase]);
+                if (opLogCodec < 0) {
+                    opLogCodec = OpLogCodec.FAST;
+                    System.out.println("Unknown op log codec " + args[arcbase] + ". Fast codec used.");
+                }
+            } else if (args[arcbase].equalsIgnoreCase("-pb")) {
+                arcbase++;
+                parallelBlocks = Integer.decode(args[arcbase]);
+                if (parallelBlocks < 1) {
+                    parallelBlocks = 1;
+                }
+            } else if (args[arcbase].equalsIgnoreCase("-mr")) {
+                multiResolution = true;
+            } else if (args[arcbase].equalsIgnoreCase("-cdc")) {
+                arcbase++;
+                contentDefinedChunkSize = Integer.decode(args[arcbase]);
+                if (contentDefinedChunkSize < ContentDefinedChunker.MIN_AVERAGE_SIZE) {
+                    contentDefinedChunkSize = 0;
+                    System.out.println("Invalid average chunk size. Content defined chunking disabled.");
+                }
+            } else if (args[arcbase].equalsIgnoreCase("-mi")) {
+                arcbase++;
+                indexDirectory = new File(args[arcbase]);
+                if (!indexDirectory.isDirectory()) {
+                    System.out.println("Index directory " + indexDirectory.getPath() + " does not exist.");
+                    System.exit(88);
+                }
             } else if (args[arcbase].equalsIgnoreCase("-cf")) {
                 arcbase++;
                 restoreChecksumFile = args[arcbase];
@@ -1493,6 +1936,10 @@ public class XDeltaEncoder {
             }
             arcbase++;
         }
+        if (multiResolution && (restoreChecksumFile != null)) {
+            System.out.println("Checksum file is not used with -mr.");
+            restoreChecksumFile = null;
+        }
         String sourceString = args[arcbase];
         if (sourceString.startsWith("test:")) {
             randomDataSource = true;
@@ -1565,6 +2012,20 @@ public class XDeltaEncoder {
         try {
             preprocessor.setChunkSize(chunksize);
             mainprocessor.setChunkSize(chunksize);
+            preprocessor.setIndexDirectory(indexDirectory);
+            mainprocessor.setIndexDirectory(indexDirectory);
+            preprocessor.setChecksumFilter(checksumFilter);
+            mainprocessor.setChecksumFilter(checksumFilter);
+            preprocessor.setMaxCandidates(maxCandidates);
+            mainprocessor.setMaxCandidates(maxCandidates);
+            preprocessor.setBucketIndex(bucketIndex);
+            mainprocessor.setBucketIndex(bucketIndex);
+            preprocessor.setPrefetchDistance(prefetchDistance);
+            mainprocessor.setPrefetchDistance(prefetchDistance);
+            preprocessor.setLazyLevel(lazyLevel);
+            mainprocessor.setLazyLevel(lazyLevel);
+            preprocessor.setContentDefinedChunkSize(contentDefinedChunkSize);
+            mainprocessor.setContentDefinedChunkSize(contentDefinedChunkSize);
             if (decoder == 0) {
                 if (convert == 1) {
                     convert();
@@ -1572,9 +2033,18 @@ public class XDeltaEncoder {
                     merge();
                 } else if (useReverseDelta) {
                     createReverseDelta(blocksize);
+                } else if (blockModeSize > 0) {
+                    encodeBlocks();
+                    encoded = true;
+                } else if (useSuffixArray()) {
+                    encodeSuffixArray();
+                    encoded = true;
                 } else {
                     if (testBlockSize) {
                         blocksize = (int) testBlockSize();
+                    } else if ((memoryBudget > 0) && !blocksizeSet) {
+                        // the plan shrinks it to the largest block the budget allows
+                        blocksize = MemoryPlanner.MAX_BLOCKSIZE;
                     }
                     if (singlePass) {
                         blocksize = source.length();
@@ -277,8 +277,12 @@ public class JarDeltaJarPatcherTest {
      * @author S3460
      */
     private void runJarPatcher(ZipFile orginalZip, ZipFile newZip) throws Exception {
+        runJarPatcher(new JarDelta(), orginalZip, newZip);
+    }
+
+    private void runJarPatcher(JarDelta jarDelta, ZipFile orginalZip, ZipFile newZip) throws Exception {
 
-        new JarDelta().computeDelta(orginalZip, newZip, new ZipOutputStream(new FileOutputStream(
+        jarDelta.computeDelta(orginalZip, newZip, new ZipOutputStream(new FileOutputStream(
                 patchFile)));
 
         new JarPatcher().applyDelta(new ZipFile(sourceFile), new ZipFile(patchFile),
@@ -314,6 +318,19 @@ public class JarDeltaJarPatcherTest {
         runJarPatcherDerivedFile();
     }
 
+    /**
+     * Tests JarDelta and JarPatcher without suffix arrays
+     */
+    @Test
+    public void testJarPatcherDerivedFileDeltaOnly() throws Exception {
+        byteMaxLength = 100000;
+        entryMaxSize = 100;
+        JarDelta jarDelta = new JarDelta();
+        jarDelta.setSuffixArrayLimit(0);
+        ZipFile orginalZip = makeSourceZipFile(sourceFile);
+        runJarPatcher(jarDelta, orginalZip, makeTargetZipFile(orginalZip, targetFile));
+    }
+
     @Ignore
     public void noTestJarPatcherDerivedFileVeryBig() throws Exception {
         byteMaxLength = 100000;
@@ -0,0 +1,179 @@
+package com.nothome.delta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link AffixMatcher}.
+ */
+public class AffixMatcherTest {
+
+    @Test
+    public void testMismatchBackward() {
+        byte[] a = new byte[40];
+        new Random(9).nextBytes(a);
+        for (int i = 0; i < a.length; i++) {
+            byte[] b = a.clone();
+            b[a.length - 1 - i]++;
+            assertEquals(i, AffixMatcher.mismatchBackward(ByteBuffer.wrap(a), ByteBuffer.wrap(b), a.length));
+        }
+        assertEquals(a.length, AffixMatcher.mismatchBackward(ByteBuffer.wrap(a), ByteBuffer.wrap(a.clone()), a.length));
+    }
+
+    @Test
+    public void testPrefixAndSuffix() throws IOException {
+        byte[] source = new byte[10000];
+        new Random(10).nextBytes(source);
+        byte[] target = new byte[10003];
+        System.arraycopy(source, 0, target, 0, 1234);
+        target[1234] = (byte) ~source[1234];
+        System.arraycopy(source, 1235, target, 1238, source.length - 1235);
+        assertAffixes(source, target, 1234, source.length - 1235);
+        // identical files, the suffix must not overlap the prefix
+        assertAffixes(source, source, source.length, 0);
+        // target is the start of source
+        byte[] head = new byte[5000];
+        System.arraycopy(source, 0, head, 0, head.length);
+        assertAffixes(source, head, head.length, 0);
+    }
+
+    @Test
+    public void testAppendedWholeSource() throws IOException {
+        byte[] source = new byte[10000];
+        Random random = new Random(11);
+        random.nextBytes(source);
+        // log style: target is source with data appended
+        byte[] target = new byte[source.length + 3000];
+        System.arraycopy(source, 0, target, 0, source.length);
+        for (int i = source.length; i < target.length; i++) {
+            target[i] = (byte) random.nextInt();
+        }
+        assertTrue(AffixMatcher.isAppended(source.length, source.length, 0));
+        List<long[]> copies = new ArrayList<long[]>();
+        byte[] patch = encodeAppended(source, target, source.length, copies);
+        assertArrayEquals(target, new GDiffPatcher().patch(source, patch));
+        assertEquals(1, copies.size());
+        assertEquals(0, copies.get(0)[0]);
+        assertEquals(source.length, copies.get(0)[1]);
+        // no data appended
+        assertArrayEquals(source, new GDiffPatcher().patch(source, encodeAppended(source, source, source.length,
+                new ArrayList<long[]>())));
+    }
+
+    @Test
+    public void testAppendedTail() throws IOException {
+        byte[] source = new byte[100000];
+        Random random = new Random(12);
+        random.nextBytes(source);
+        // the last 20000 bytes of source were rewritten, moving a part of them
+        int prefix = 80000;
+        byte[] target = new byte[130000];
+        System.arraycopy(source, 0, target, 0, prefix);
+        target[prefix] = (byte) ~source[prefix];
+        System.arraycopy(source, 85000, target, 90000, 15000);
+        assertTrue(AffixMatcher.isAppended(source.length, prefix, 20000));
+        List<long[]> copies = new ArrayList<long[]>();
+        byte[] patch = encodeAppended(source, target, prefix, copies);
+        assertArrayEquals(target, new GDiffPatcher().patch(source, patch));
+        assertEquals(prefix, copies.get(0)[1]);
+        // copies from the tail are offsets into the whole source
+        long found = 0;
+        for (int i = 1; i < copies.size(); i++) {
+            assertTrue(copies.get(i)[0] >= prefix);
+            found += copies.get(i)[1];
+        }
+        assertTrue(found > 15000 - 2 * Delta.DEFAULT_CHUNK_SIZE);
+    }
+
+    @Test
+    public void testAppendedFallback() throws IOException {
+        byte[] source = new byte[100000];
+        Random random = new Random(13);
+        random.nextBytes(source);
+        // most of source changed, more than a tail
+        byte[] target = new byte[120000];
+        random.nextBytes(target);
+        System.arraycopy(source, 0, target, 0, 1000);
+        System.arraycopy(source, 10000, target, 50000, 30000);
+        assertFalse(AffixMatcher.isAppended(source.length, 1000, 20000));
+        // the whole source indexed instead, the moved part copied
+        byte[] patch = new Delta().compute(source, target);
+        assertArrayEquals(target, new GDiffPatcher().patch(source, patch));
+        assertTrue(patch.length < target.length - 30000);
+    }
+
+    /*
+     * Patch of target encoded as appended to the first prefix bytes of
+     * source, the copies written go to copies
+     */
+    private byte[] encodeAppended(byte[] source, byte[] target, int prefix, final List<long[]> copies)
+            throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        final GDiffWriter writer = new GDiffWriter(new DataOutputStream(os));
+        DiffWriter recorder = new DiffWriter() {
+            public void addCopy(long offset, int length) throws IOException {
+                copies.add(new long[]{offset, length});
+                writer.addCopy(offset, length);
+            }
+
+            public void addData(byte b) throws IOException {
+                writer.addData(b);
+            }
+
+            public void flush() throws IOException {
+                writer.flush();
+            }
+
+            public void close() throws IOException {
+                writer.close();
+            }
+        };
+        ByteBuffer tail = ByteBuffer.wrap(source, prefix, source.length - prefix).slice();
+        AffixMatcher.encodeAppended(new Delta(), new ByteBufferSeekableSource(tail), prefix, source.length - prefix,
+                new ByteArrayInputStream(target, prefix, target.length - prefix), recorder);
+        recorder.close();
+        return os.toByteArray();
+    }
+
+    private void assertAffixes(byte[] source, byte[] target, long prefix, long suffix) throws IOException {
+        File s = write(source);
+        File t = write(target);
+        RandomAccessFile sf = new RandomAccessFile(s, "r");
+        RandomAccessFile tf = new RandomAccessFile(t, "r");
+        try {
+            long p = AffixMatcher.commonPrefix(sf.getChannel(), tf.getChannel());
+            assertEquals(prefix, p);
+            assertEquals(suffix, AffixMatcher.commonSuffix(sf.getChannel(), tf.getChannel(),
+                    Math.min(source.length, target.length) - p));
+        } finally {
+            sf.close();
+            tf.close();
+            assertTrue(s.delete());
+            assertTrue(t.delete());
+        }
+    }
+
+    private File write(byte[] data) throws IOException {
+        File file = File.createTempFile("affix-", ".test");
+        FileOutputStream os = new FileOutputStream(file);
+        os.write(data);
+        os.close();
+        return file;
+    }
+}
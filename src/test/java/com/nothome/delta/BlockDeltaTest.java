@@ -0,0 +1,76 @@
+package com.nothome.delta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link BlockDelta}.
+ */
+public class BlockDeltaTest {
+
+    @Test
+    public void testAlignedBlocks() throws IOException {
+        Random random = new Random(11);
+        byte[] source = new byte[64 * 512];
+        random.nextBytes(source);
+        // one block changed, two blocks swapped, a partial block appended
+        byte[] target = new byte[source.length + 100];
+        System.arraycopy(source, 0, target, 0, source.length);
+        target[3 * 512 + 7]++;
+        System.arraycopy(source, 10 * 512, target, 20 * 512, 512);
+        System.arraycopy(source, 20 * 512, target, 10 * 512, 512);
+        BlockDelta blockDelta = new BlockDelta();
+        blockDelta.setBlockSize(512);
+        byte[] patch = blockDelta.compute(source, target);
+        assertEquals(63 * 512, blockDelta.found);
+        assertArrayEquals(target, new GDiffPatcher().patch(source, patch));
+    }
+
+    @Test
+    public void testRefine() throws IOException {
+        Random random = new Random(12);
+        byte[] source = new byte[64 * 512];
+        random.nextBytes(source);
+        // an inserted byte shifts all following blocks
+        byte[] target = new byte[source.length + 1];
+        System.arraycopy(source, 0, target, 0, 5 * 512 + 3);
+        System.arraycopy(source, 5 * 512 + 3, target, 5 * 512 + 4, source.length - 5 * 512 - 3);
+        BlockDelta blockDelta = new BlockDelta();
+        blockDelta.setBlockSize(512);
+        byte[] patch = blockDelta.compute(source, target);
+        assertEquals(5 * 512, blockDelta.found);
+        blockDelta.setRefine(true);
+        byte[] refined = blockDelta.compute(source, target);
+        assertTrue(blockDelta.found > source.length - 512);
+        assertTrue(refined.length < patch.length / 10);
+        assertArrayEquals(target, new GDiffPatcher().patch(source, patch));
+        assertArrayEquals(target, new GDiffPatcher().patch(source, refined));
+    }
+
+    @Test
+    public void testRefineGrownTarget() throws IOException {
+        Random random = new Random(22);
+        // a partial last block, the target grows far beyond the source
+        byte[] source = new byte[46182];
+        random.nextBytes(source);
+        byte[] target = new byte[3 * source.length];
+        random.nextBytes(target);
+        System.arraycopy(source, 0, target, 0, 20000);
+        // aligned for both block sizes, the run behind it starts past the source end
+        System.arraycopy(source, 4 * 7680, target, 12 * 7680, 10000);
+        for (int blockSize : new int[]{15, 512}) {
+            BlockDelta blockDelta = new BlockDelta();
+            blockDelta.setBlockSize(blockSize);
+            blockDelta.setRefine(true);
+            byte[] patch = blockDelta.compute(source, target);
+            assertArrayEquals(target, new GDiffPatcher().patch(source, patch));
+            assertTrue(blockDelta.found >= 10000 - blockSize);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.nothome.delta;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link BucketChecksumIndex}.
+ */
+public class BucketChecksumIndexTest {
+
+    @Test
+    public void testPutGetGrow() {
+        BucketChecksumIndex index = new BucketChecksumIndex();
+        index.put(0, 7);
+        index.put(-1, 8);
+        assertEquals(7, index.get(0));
+        assertEquals(8, index.get(-1));
+        assertEquals(-1, index.get(1));
+        index.put(0, 10);
+        assertEquals(10, index.get(0));
+        Random random = new Random(1);
+        int[] keys = new int[100000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = random.nextInt();
+            index.put(keys[i], i);
+        }
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals(keys[i], keys[index.get(keys[i])]);
+        }
+        index.clear();
+        assertTrue(index.isEmpty());
+        assertEquals(-1, index.get(keys[0]));
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        ChecksumIndexTest.checkRemove(new BucketChecksumIndex());
+    }
+
+    @Test
+    public void testWriteAndMap() throws Exception {
+        BucketChecksumIndex index = new BucketChecksumIndex();
+        Random random = new Random(4);
+        int[] keys = new int[5000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = random.nextInt(3000);
+            index.add(keys[i], i, 2);
+        }
+        File file = File.createTempFile("checksums-", ".test");
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        index.write(out);
+        out.close();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        MappedChecksumIndex mapped = MappedChecksumIndex.read(raf, file);
+        raf.close();
+        assertEquals(index.size(), mapped.size());
+        int[] expected = new int[2];
+        int[] actual = new int[2];
+        for (int i = 0; i < keys.length; i++) {
+            int n = index.getAll(keys[i], expected);
+            assertEquals(n, mapped.getAll(keys[i], actual));
+            // order of values may differ between the layouts
+            Arrays.sort(expected, 0, n);
+            Arrays.sort(actual, 0, n);
+            for (int j = 0; j < n; j++) {
+                assertEquals(expected[j], actual[j]);
+            }
+        }
+        mapped.clear();
+        assertTrue(file.delete());
+    }
+}
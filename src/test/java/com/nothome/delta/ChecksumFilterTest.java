@@ -0,0 +1,143 @@
+package com.nothome.delta;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link ChecksumFilter} and its use by {@link Checksum}.
+ */
+public class ChecksumFilterTest {
+
+    @Test
+    public void testNoFalseNegatives() {
+        ChecksumFilter filter = new ChecksumFilter(100000);
+        Random random = new Random(19);
+        Set<Integer> keys = new HashSet<Integer>();
+        while (keys.size() < 100000) {
+            keys.add(random.nextInt());
+        }
+        for (int key : keys) {
+            filter.add(key);
+        }
+        assertEquals(keys.size(), filter.entries());
+        for (int key : keys) {
+            assertTrue(filter.mightContain(key));
+        }
+        int passed = 0;
+        int absent = 0;
+        while (absent < 100000) {
+            int key = random.nextInt();
+            if (!keys.contains(key)) {
+                absent++;
+                if (filter.mightContain(key)) {
+                    passed++;
+                }
+            }
+        }
+        // about 5 % with 8 bits per key
+        assertTrue(passed < absent / 10);
+        assertFalse(filter.isSaturated());
+    }
+
+    @Test
+    public void testSaturated() {
+        // smallest filter, 64 bits per word
+        ChecksumFilter filter = new ChecksumFilter(0);
+        for (int i = 0; i < 32 * ChecksumFilter.MIN_WORDS; i++) {
+            filter.add(i * 0x9e3779b1);
+        }
+        assertFalse(filter.isSaturated());
+        filter.add(-1);
+        assertTrue(filter.isSaturated());
+    }
+
+    @Test
+    public void testLargestFilter() {
+        ChecksumFilter filter = new ChecksumFilter(8L * ChecksumFilter.MAX_WORDS);
+        assertEquals(8L * ChecksumFilter.MAX_WORDS, filter.memoryUsage());
+        Random random = new Random(23);
+        int[] keys = new int[100000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = random.nextInt();
+            filter.add(keys[i]);
+        }
+        // about half of the keys in the upper half of the words
+        int upper = 0;
+        for (int i = ChecksumFilter.MAX_WORDS / 2; i < ChecksumFilter.MAX_WORDS; i++) {
+            if (filter.getWord(i) != 0) {
+                upper++;
+            }
+        }
+        assertTrue(upper > keys.length / 3);
+        for (int key : keys) {
+            assertTrue(filter.mightContain(key));
+        }
+    }
+
+    @Test
+    public void testLookupCounters() throws IOException {
+        byte[] bytes = new byte[64 * 1024];
+        Random random = new Random(20);
+        random.nextBytes(bytes);
+        ByteBufferSeekableSource source = new ByteBufferSeekableSource(bytes);
+        Checksum checksum = new Checksum(source, 16);
+        checksum.ensureCapacity(bytes.length, 16);
+        checksum.init(source, 16);
+        assertTrue(checksum.isFilterEnabled());
+        ByteBuffer bb = ByteBuffer.wrap(bytes);
+        for (int i = 0; i < bytes.length / 16; i++) {
+            bb.position(i * 16);
+            assertEquals(i, checksum.findChecksumIndex(checksum.queryChecksum(bb, 16)));
+        }
+        assertEquals(bytes.length / 16, checksum.hits);
+        assertEquals(0, checksum.filterRejects + checksum.falsePositives);
+
+        checksum.resetLookupStatistics();
+        int misses = lookupAbsent(checksum, random, 10000);
+        assertEquals(10000 - misses, checksum.hits);
+        assertEquals(misses, checksum.filterRejects + checksum.falsePositives);
+        // most misses never reach the table
+        assertTrue(checksum.falsePositives < misses / 10);
+        assertTrue(checksum.getLookupStatistics().contains("false positives"));
+    }
+
+    @Test
+    public void testSaturatedFilterDropped() throws IOException {
+        // no size known in advance: the smallest filter fills up
+        byte[] bytes = new byte[16 * (64 * ChecksumFilter.MIN_WORDS / 2 + 1000)];
+        Random random = new Random(21);
+        random.nextBytes(bytes);
+        ByteBufferSeekableSource source = new ByteBufferSeekableSource(bytes);
+        Checksum checksum = new Checksum(source, 16);
+        checksum.init(source, 16);
+        int misses = lookupAbsent(checksum, random, 10000);
+        // every miss probes the table
+        assertEquals(0, checksum.filterRejects);
+        assertEquals(misses, checksum.falsePositives);
+        assertTrue(checksum.getLookupStatistics().contains("misses"));
+    }
+
+    /*
+     * Looks up random chunks, returns lookups not found
+     */
+    private static int lookupAbsent(Checksum checksum, Random random, int lookups) {
+        byte[] chunk = new byte[16];
+        int misses = 0;
+        for (int i = 0; i < lookups; i++) {
+            random.nextBytes(chunk);
+            if (checksum.findChecksumIndex(checksum.queryChecksum(ByteBuffer.wrap(chunk), 16)) < 0) {
+                misses++;
+            }
+        }
+        return misses;
+    }
+}
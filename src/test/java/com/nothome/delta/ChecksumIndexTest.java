@@ -0,0 +1,104 @@
+package com.nothome.delta;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link ChecksumIndex}.
+ */
+public class ChecksumIndexTest {
+
+    @Test
+    public void testPutGet() {
+        ChecksumIndex index = new ChecksumIndex();
+        index.put(0, 7);
+        index.put(-1, 8);
+        index.put(Integer.MIN_VALUE, 9);
+        assertEquals(7, index.get(0));
+        assertEquals(8, index.get(-1));
+        assertEquals(9, index.get(Integer.MIN_VALUE));
+        assertEquals(-1, index.get(1));
+        index.put(0, 10);
+        assertEquals(10, index.get(0));
+        assertEquals(3, index.size());
+    }
+
+    @Test
+    public void testGrow() {
+        ChecksumIndex index = new ChecksumIndex();
+        Random random = new Random(1);
+        int[] keys = new int[100000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = random.nextInt();
+            index.put(keys[i], i);
+        }
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals(keys[i], keys[index.get(keys[i])]);
+        }
+        assertTrue(index.capacity() >= 2 * index.size());
+        index.clear();
+        assertTrue(index.isEmpty());
+        assertEquals(-1, index.get(keys[0]));
+    }
+
+    @Test
+    public void testPresized() {
+        ChecksumIndex index = new ChecksumIndex(5000);
+        int capacity = index.capacity();
+        assertEquals(ChecksumIndex.memoryFor(5000), index.memoryUsage());
+        for (int i = 0; i < 5000; i++) {
+            index.put(i * 31, i);
+        }
+        assertEquals(capacity, index.capacity());
+    }
+
+    @Test
+    public void testRemove() throws IOException {
+        checkRemove(new ChecksumIndex());
+    }
+
+    /*
+     * Removes entries of colliding keys, the others must stay reachable
+     */
+    static void checkRemove(ChecksumTable table) throws IOException {
+        Random random = new Random(8);
+        int[] keys = new int[3000];
+        boolean[] removed = new boolean[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = random.nextInt(700);
+            table.add(keys[i], i, Integer.MAX_VALUE);
+        }
+        for (int i = 0; i < keys.length; i += 3) {
+            assertTrue(table.remove(keys[i], i));
+            removed[i] = true;
+        }
+        assertEquals(false, table.remove(keys[0], 0));
+        int n = 0;
+        for (int i = 1000; i < 1500; i++) {
+            if (!removed[i]) {
+                removed[i] = true;
+                n++;
+            }
+        }
+        assertEquals(n, table.removeValues(1000, 1500));
+        int[] found = new int[keys.length];
+        for (int key = 0; key < 700; key++) {
+            int m = table.getAll(key, found);
+            int[] actual = Arrays.copyOf(found, m);
+            Arrays.sort(actual);
+            int expected = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if ((keys[i] == key) && !removed[i]) {
+                    assertEquals(i, actual[expected++]);
+                }
+            }
+            assertEquals(expected, m);
+        }
+    }
+}
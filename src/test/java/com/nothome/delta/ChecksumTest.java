@@ -62,4 +62,92 @@ public class ChecksumTest {
             hash = checksum.incrementChecksum(hash, bb.get(bb.position() - chunk), bb.get(), chunk);
         assertEquals(hash2, hash);
     }
+
+    @Test
+    public void testHash64() throws IOException {
+        testHash64(16, false);
+        testHash64(4, true);
+        testHash64(10, true);
+    }
+
+    public void testHash64(int chunk, boolean strong) throws IOException {
+        byte[] bytes = s.getBytes("ASCII");
+        ByteBufferSeekableSource source = new ByteBufferSeekableSource(bytes);
+        Checksum checksum = new Checksum(source, chunk);
+        checksum.setHash64(true);
+        checksum.setStrongFingerprint(strong);
+        checksum.init(source, chunk);
+        ByteBuffer bb = ByteBuffer.wrap(bytes);
+        long hash = checksum.queryChecksum(bb, chunk);
+        assertEquals(0, checksum.findChecksumIndex(hash, bb, chunk));
+        bb.position(chunk);
+        long hash2 = checksum.queryChecksum(bb, chunk);
+        assertEquals(1, checksum.findChecksumIndex(hash2, bb, chunk));
+        for (int i = 0; i < chunk; i++)
+            hash = checksum.incrementChecksum(hash, bb.get(bb.position() - chunk), bb.get(), chunk);
+        assertEquals(hash2, hash);
+        // same table key, different confirmation
+        long forged = hash2 ^ 0x1234567812345678L;
+        bb.position(chunk);
+        if (strong) {
+            ByteBuffer other = ByteBuffer.wrap(s.toUpperCase().getBytes("ASCII"));
+            other.position(chunk);
+            assertEquals(-1, checksum.findChecksumIndex(hash2, other, chunk));
+        } else {
+            assertEquals(-1, checksum.findChecksumIndex(forged, bb, chunk));
+        }
+    }
+
+    @Test
+    public void testSegments() throws IOException {
+        byte[] bytes = new byte[4096];
+        new java.util.Random(5).nextBytes(bytes);
+        int chunk = 8;
+        ByteBufferSeekableSource source = new ByteBufferSeekableSource(bytes);
+        Checksum checksum = new Checksum(source, chunk);
+        checksum.setHash64(true);
+        checksum.setSegmentChunks(64);
+        checksum.ensureCapacity(bytes.length, chunk);
+        checksum.init(source, chunk);
+        ByteBuffer bb = ByteBuffer.wrap(bytes);
+        long[] indexes = new long[2];
+        for (int i = 0; i < bytes.length / chunk; i++) {
+            bb.position(i * chunk);
+            long hash = checksum.queryChecksum(bb, chunk);
+            assertEquals(i, checksum.findChecksumIndex(hash, bb, chunk));
+            assertEquals(1, checksum.findChecksumIndexes(hash, bb, chunk, indexes));
+            assertEquals(i, indexes[0]);
+        }
+    }
+
+    @Test
+    public void testParallelCompute() throws IOException {
+        byte[] bytes = new byte[1 << 18];
+        java.util.Random random = new java.util.Random(7);
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) random.nextInt(4);  // many repeated chunks
+        }
+        int chunk = 6;
+        ByteBufferSeekableSource source = new ByteBufferSeekableSource(bytes);
+        Checksum sequential = new Checksum(source, chunk);
+        sequential.setMaxCandidates(4);
+        assertEquals(bytes.length / chunk, sequential.compute(ByteBuffer.wrap(bytes), chunk, 0));
+        Checksum parallel = new Checksum(source, chunk);
+        parallel.setMaxCandidates(4);
+        java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(4);
+        assertEquals(bytes.length / chunk, parallel.compute(ByteBuffer.wrap(bytes), chunk, 0, pool));
+        pool.shutdown();
+        ByteBuffer bb = ByteBuffer.wrap(bytes);
+        long[] expected = new long[4];
+        long[] actual = new long[4];
+        for (int i = 0; i + chunk <= bytes.length; i += 101) {
+            bb.position(i);
+            long hash = sequential.queryChecksum(bb, chunk);
+            int n = sequential.findChecksumIndexes(hash, expected);
+            assertEquals(n, parallel.findChecksumIndexes(hash, actual));
+            for (int j = 0; j < n; j++) {
+                assertEquals(expected[j], actual[j]);
+            }
+        }
+    }
 }
@@ -0,0 +1,85 @@
+package com.nothome.delta;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link ContentDefinedChunker}.
+ */
+public class ContentDefinedChunkerTest {
+
+    @Test
+    public void testChunkSizes() {
+        byte[] data = new byte[1 << 20];
+        new Random(10).nextBytes(data);
+        List<Integer> boundaries = boundaries(data, 1000);
+        ContentDefinedChunker chunker = new ContentDefinedChunker(1000);
+        assertEquals(512, chunker.getAverageSize());
+        int last = 0;
+        for (int boundary : boundaries) {
+            assertTrue(boundary - last >= 128);
+            assertTrue(boundary - last <= chunker.getMaxSize());
+            last = boundary;
+        }
+        // about one boundary per average size
+        assertTrue(boundaries.size() > data.length / 1024);
+        assertTrue(boundaries.size() < data.length / 256);
+    }
+
+    @Test
+    public void testResynchronize() {
+        Random random = new Random(11);
+        byte[] data = new byte[200000];
+        random.nextBytes(data);
+        byte[] inserted = new byte[data.length + 77];
+        System.arraycopy(data, 0, inserted, 0, 50000);
+        System.arraycopy(data, 50000, inserted, 50077, data.length - 50000);
+        List<Integer> original = boundaries(data, 512);
+        List<Integer> shifted = boundaries(inserted, 512);
+        int same = 0;
+        for (int boundary : original) {
+            if (boundary > 50000 + 2048) {
+                assertTrue(shifted.contains(boundary + 77));
+                same++;
+            }
+        }
+        assertTrue(same > 100);
+    }
+
+    @Test
+    public void testPieces() {
+        byte[] data = new byte[100000];
+        new Random(12).nextBytes(data);
+        List<Integer> expected = boundaries(data, 256);
+        // fed in small pieces the boundaries are the same
+        ContentDefinedChunker chunker = new ContentDefinedChunker(256);
+        ByteBuffer bb = ByteBuffer.wrap(data);
+        List<Integer> actual = new ArrayList<Integer>();
+        for (int from = 0; from < data.length; from += 100) {
+            int to = Math.min(from + 100, data.length);
+            int pos = from;
+            while ((pos = chunker.next(bb, pos, to)) >= 0) {
+                actual.add(pos);
+            }
+        }
+        assertEquals(expected, actual);
+    }
+
+    private List<Integer> boundaries(byte[] data, int averageSize) {
+        ContentDefinedChunker chunker = new ContentDefinedChunker(averageSize);
+        ByteBuffer bb = ByteBuffer.wrap(data);
+        List<Integer> boundaries = new ArrayList<Integer>();
+        int pos = 0;
+        while ((pos = chunker.next(bb, pos, data.length)) >= 0) {
+            boundaries.add(pos);
+        }
+        return boundaries;
+    }
+}
@@ -0,0 +1,43 @@
+package com.nothome.delta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link Delta} with several candidates per checksum.
+ */
+public class DeltaCandidatesTest {
+
+    @Test
+    public void testLongestCandidateWins() throws IOException {
+        Random random = new Random(3);
+        byte[] block = new byte[4096];
+        random.nextBytes(block);
+        // source: block, noise, block with a damaged second half
+        byte[] source = new byte[3 * 4096];
+        System.arraycopy(block, 0, source, 0, 4096);
+        for (int i = 4096; i < 8192; i++) {
+            source[i] = (byte) random.nextInt();
+        }
+        System.arraycopy(block, 0, source, 8192, 2048);
+        for (int i = 8192 + 2048; i < source.length; i++) {
+            source[i] = (byte) random.nextInt();
+        }
+        byte[] target = block.clone();
+
+        Delta single = new Delta();
+        byte[] patch1 = single.compute(source, target);
+        Delta multi = new Delta();
+        multi.setMaxCandidates(4);
+        byte[] patch4 = multi.compute(source, target);
+
+        assertTrue(patch4.length < patch1.length);
+        assertArrayEquals(target, new GDiffPatcher().patch(source, patch1));
+        assertArrayEquals(target, new GDiffPatcher().patch(source, patch4));
+    }
+}
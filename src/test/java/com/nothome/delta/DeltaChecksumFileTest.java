@@ -0,0 +1,195 @@
+package com.nothome.delta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link Delta#writeChecksums(String)} and
+ * {@link Delta#readChecksums(String, SeekableSource, boolean)}.
+ */
+public class DeltaChecksumFileTest {
+
+    @Test
+    public void testRestoreAndReject() throws IOException {
+        Random random = new Random(6);
+        byte[] source = new byte[100000];
+        random.nextBytes(source);
+        byte[] target = new byte[source.length];
+        System.arraycopy(source, 5000, target, 0, target.length - 5000);
+
+        Delta delta = new Delta();
+        delta.setKeepSource(true);
+        byte[] patch = delta.compute(source, target);
+        File file = File.createTempFile("checksums-", ".cf");
+        try {
+            delta.writeChecksums(file.getPath());
+            delta.clearSource();
+
+            Delta restored = new Delta();
+            assertTrue(restored.readChecksums(file.getPath(), new ByteBufferSeekableSource(source)));
+            byte[] patch2 = restored.compute(source, target);
+            assertArrayEquals(patch, patch2);
+            assertArrayEquals(target, new GDiffPatcher().patch(source, patch2));
+            restored.clearSource();
+            assertTrue(file.exists());
+
+            byte[] changed = source.clone();
+            changed[0]++;
+            assertFalse(new Delta().readChecksums(file.getPath(), new ByteBufferSeekableSource(changed)));
+            byte[] longer = new byte[source.length + 1];
+            System.arraycopy(source, 0, longer, 0, source.length);
+            assertFalse(new Delta().readChecksums(file.getPath(), new ByteBufferSeekableSource(longer)));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testRejectEditAnywhere() throws IOException {
+        Random random = new Random(16);
+        byte[] source = new byte[3 << 20];
+        random.nextBytes(source);
+        Delta delta = new Delta();
+        delta.setChunkSize(64);
+        delta.setKeepSource(true);
+        delta.compute(source, new byte[0]);
+        File file = File.createTempFile("checksums-", ".cf");
+        try {
+            delta.writeChecksums(file.getPath());
+            delta.clearSource();
+            // single bytes in every megabyte, away from block boundaries
+            for (int pos : new int[]{10000, (1 << 20) + 777777, source.length - 2}) {
+                byte[] changed = source.clone();
+                changed[pos]++;
+                assertFalse(new Delta().readChecksums(file.getPath(), new ByteBufferSeekableSource(changed)));
+            }
+            Delta restored = new Delta();
+            assertTrue(restored.readChecksums(file.getPath(), new ByteBufferSeekableSource(source)));
+            restored.clearSource();
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testRestoreContentDefined() throws IOException {
+        Random random = new Random(14);
+        byte[] source = new byte[100000];
+        random.nextBytes(source);
+        byte[] target = new byte[source.length];
+        System.arraycopy(source, 5000, target, 0, target.length - 5000);
+
+        Delta delta = new Delta();
+        delta.setContentDefinedChunkSize(256);
+        delta.setKeepSource(true);
+        byte[] patch = delta.compute(source, target);
+        File file = File.createTempFile("checksums-", ".cf");
+        try {
+            delta.writeChecksums(file.getPath());
+            delta.clearSource();
+
+            Delta restored = new Delta();
+            assertTrue(restored.readChecksums(file.getPath(), new ByteBufferSeekableSource(source)));
+            byte[] patch2 = restored.compute(source, target);
+            assertArrayEquals(patch, patch2);
+            restored.clearSource();
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testRestoreAndUpdate() throws IOException {
+        Random random = new Random(18);
+        byte[] source = new byte[(5 << 20) / 2];
+        random.nextBytes(source);
+        Delta delta = new Delta();
+        delta.setKeepSource(true);
+        delta.compute(source, new byte[0]);
+        File file = File.createTempFile("checksums-", ".cf");
+        try {
+            delta.writeChecksums(file.getPath());
+            delta.clearSource();
+            // the next export: changes in the second megabyte, data appended
+            byte[] grown = new byte[source.length + 300001];
+            System.arraycopy(source, 0, grown, 0, source.length);
+            for (int i = source.length; i < grown.length; i++) {
+                grown[i] = (byte) random.nextInt();
+            }
+            for (int i = 1500000; i < 1500100; i++) {
+                grown[i] = (byte) random.nextInt();
+            }
+            byte[] target = new byte[90000];
+            System.arraycopy(grown, 1490000, target, 0, 30000);
+            System.arraycopy(grown, source.length + 1000, target, 30000, 30000);
+            System.arraycopy(source, 7, target, 60000, 30000);
+
+            assertFalse(new Delta().readChecksums(file.getPath(), new ByteBufferSeekableSource(grown)));
+            Delta restored = new Delta();
+            assertTrue(restored.readChecksums(file.getPath(), new ByteBufferSeekableSource(grown), true));
+            assertTrue(restored.isChecksumsUpdated());
+            byte[] patch = restored.compute(grown, target);
+            assertArrayEquals(target, new GDiffPatcher().patch(grown, patch));
+            assertArrayEquals(new Delta().compute(grown, target), patch);
+            // written back over the file it is still mapped from
+            restored.writeChecksums(file.getPath());
+            assertArrayEquals(patch, restored.compute(grown, target));
+            restored.clearSource();
+            Delta saved = new Delta();
+            assertTrue(saved.readChecksums(file.getPath(), new ByteBufferSeekableSource(grown), true));
+            assertFalse(saved.isChecksumsUpdated());
+            assertArrayEquals(patch, saved.compute(grown, target));
+            saved.clearSource();
+
+            byte[] shorter = new byte[source.length - 1];
+            System.arraycopy(source, 0, shorter, 0, shorter.length);
+            assertFalse(new Delta().readChecksums(file.getPath(), new ByteBufferSeekableSource(shorter), true));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testAppendAndUpdate() throws IOException {
+        Random random = new Random(9);
+        byte[] source = new byte[100000];
+        random.nextBytes(source);
+        byte[] grown = new byte[source.length + 30001];
+        System.arraycopy(source, 0, grown, 0, source.length);
+        for (int i = source.length; i < grown.length; i++) {
+            grown[i] = (byte) random.nextInt();
+        }
+        byte[] changed = grown.clone();
+        for (int i = 40000; i < 40100; i++) {
+            changed[i] = (byte) random.nextInt();
+        }
+        byte[] target = new byte[60000];
+        System.arraycopy(changed, 40000, target, 0, 20000);
+        System.arraycopy(changed, 110000, target, 20000, 20000);
+        System.arraycopy(source, 7, target, 40000, 20000);
+
+        byte[] expected = new Delta().compute(changed, target);
+        for (SeekableSource old : new SeekableSource[]{null, new ByteBufferSeekableSource(grown)}) {
+            for (boolean hash64 : new boolean[]{false, true}) {
+                Delta delta = new Delta();
+                delta.setHash64(hash64);
+                delta.setKeepSource(true);
+                delta.compute(source, new byte[0]);
+                delta.appendChecksums(new ByteBufferSeekableSource(grown));
+                delta.updateChecksums(new ByteBufferSeekableSource(changed), old, 40000, 40100);
+                byte[] patch = delta.compute(changed, target);
+                assertArrayEquals(target, new GDiffPatcher().patch(changed, patch));
+                if (!hash64) {
+                    assertArrayEquals(expected, patch);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.nothome.delta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests match extension of {@link Delta}.
+ */
+public class DeltaMatchTest {
+
+    @Test
+    public void testMismatch() {
+        byte[] a = new byte[40];
+        new Random(5).nextBytes(a);
+        for (int i = 0; i < a.length; i++) {
+            byte[] b = a.clone();
+            b[i]++;
+            assertEquals(i, Delta.mismatch(ByteBuffer.wrap(a), 0, ByteBuffer.wrap(b), 0, a.length));
+        }
+        assertEquals(a.length, Delta.mismatch(ByteBuffer.wrap(a), 0, ByteBuffer.wrap(a.clone()), 0, a.length));
+        assertEquals(3, Delta.mismatch(ByteBuffer.wrap(a), 1, ByteBuffer.wrap(a), 1, 3));
+    }
+
+    @Test
+    public void testLongMatch() throws IOException {
+        Random random = new Random(6);
+        byte[] source = new byte[100000];
+        random.nextBytes(source);
+        // target: a literal, then a long run of source ending at an odd offset
+        byte[] target = new byte[60001];
+        target[0] = 1;
+        System.arraycopy(source, 1003, target, 1, 60000);
+        List<long[]> copies = copies(source, target, 0);
+        // from the first chunk boundary to the end in one copy
+        assertEquals(1, copies.size());
+        assertEquals(1008, copies.get(0)[0]);
+        assertEquals(59995, copies.get(0)[1]);
+        assertArrayEquals(target, new GDiffPatcher().patch(source, new Delta().compute(source, target)));
+    }
+
+    @Test
+    public void testBackwardMatch() throws IOException {
+        Random random = new Random(7);
+        byte[] source = new byte[20000];
+        random.nextBytes(source);
+        // the copy starts between chunk boundaries of the source
+        byte[] target = new byte[10001];
+        target[0] = 1;
+        System.arraycopy(source, 1003, target, 1, 10000);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        GDiffWriter writer = new GDiffWriter(os);
+        new Delta().compute(new ByteBufferSeekableSource(source), new ByteArrayInputStream(target), writer, 0, 0, true);
+        // one data byte, one copy
+        assertEquals(5 + /*D*/1 + 1 + /*C*/5 + /*EOF*/1, os.size());
+        assertArrayEquals(target, new GDiffPatcher().patch(source, os.toByteArray()));
+    }
+
+    @Test
+    public void testLazyMatch() throws IOException {
+        Random random = new Random(8);
+        byte[] target = new byte[2001];
+        random.nextBytes(target);
+        byte[] source = new byte[8192];
+        random.nextBytes(source);
+        // a short match at the start, a long one a byte later
+        System.arraycopy(target, 0, source, 0, 32);
+        System.arraycopy(target, 1, source, 4096, 2000);
+        assertEquals(2, copies(source, target, 0).size());
+        List<long[]> lazy = copies(source, target, 1);
+        assertEquals(1, lazy.size());
+        assertEquals(4096, lazy.get(0)[0]);
+        assertEquals(2000, lazy.get(0)[1]);
+    }
+
+    @Test
+    public void testLazyMatchCandidates() throws IOException {
+        Random random = new Random(9);
+        byte[] target = new byte[2001];
+        random.nextBytes(target);
+        byte[] source = new byte[16384];
+        random.nextBytes(source);
+        // a byte later a short match stored first, then a long one
+        System.arraycopy(target, 0, source, 0, 32);
+        System.arraycopy(target, 1, source, 4096, 20);
+        System.arraycopy(target, 1, source, 8192, 2000);
+        // the lookahead picks the longest candidate as the lookup does
+        List<long[]> lazy = copies(source, target, 1, 0, 2);
+        assertEquals(1, lazy.size());
+        assertEquals(8192, lazy.get(0)[0]);
+        assertEquals(2000, lazy.get(0)[1]);
+    }
+
+    @Test
+    public void testLazyMatchStatistics() throws IOException {
+        Random random = new Random(10);
+        byte[] source = new byte[100000];
+        random.nextBytes(source);
+        byte[] target = new byte[50000];
+        random.nextBytes(target);
+        // short copies, each ending within the buffered target
+        for (int i = 0; i + 300 < target.length; i += 1000) {
+            System.arraycopy(source, random.nextInt(source.length - 300), target, i, 300);
+        }
+        // probes ahead are not counted as lookups
+        Delta d = new Delta();
+        byte[] patch = d.compute(source, target);
+        Delta lazy = new Delta();
+        lazy.setLazyLevel(4);
+        lazy.setDuplicateChecksum(true);
+        assertArrayEquals(patch, lazy.compute(source, target));
+        assertEquals(d.getLookupStatistics(), lazy.getLookupStatistics());
+    }
+
+    @Test
+    public void testContentDefinedChunks() throws IOException {
+        Random random = new Random(13);
+        byte[] source = new byte[300000];
+        random.nextBytes(source);
+        // an insertion and a deletion shift the rest of the source
+        byte[] target = new byte[source.length + 77 - 500];
+        System.arraycopy(source, 0, target, 0, 100000);
+        System.arraycopy(source, 100000, target, 100077, 100000);
+        System.arraycopy(source, 200500, target, 200077, source.length - 200500);
+        Delta d = new Delta();
+        d.setContentDefinedChunkSize(1024);
+        byte[] patch = d.compute(source, target);
+        assertArrayEquals(target, new GDiffPatcher().patch(source, patch));
+        // the inserted bytes as data, the rest copied
+        assertTrue(patch.length < 200);
+        // without backward extension each copy starts at a chunk boundary
+        List<long[]> copies = copies(source, target, 0, 1024);
+        assertEquals(3, copies.size());
+        assertEquals(source.length, copies.get(2)[0] + copies.get(2)[1]);
+    }
+
+    @Test
+    public void testMultiResolution() throws IOException {
+        Random random = new Random(15);
+        byte[] source = new byte[3 << 20];
+        random.nextBytes(source);
+        // a clean run found by the coarse index, then scattered edits
+        byte[] target = new byte[1 << 20];
+        System.arraycopy(source, 1 << 20, target, 0, target.length);
+        for (int i = 300000; i < target.length; i += 700) {
+            target[i]++;
+        }
+        Delta coarse = new Delta();
+        coarse.setChunkSize(4096);
+        byte[] coarsePatch = coarse.compute(source, target);
+        Delta d = new Delta();
+        d.setCoarseChunkSize(4096);
+        byte[] patch = d.compute(source, target);
+        assertArrayEquals(target, new GDiffPatcher().patch(source, patch));
+        assertTrue(patch.length < 20 * (target.length - 300000) / 700);
+        assertTrue(patch.length * 20 < coarsePatch.length);
+        // without memory for regions only the coarse matches are found
+        Delta anchors = new Delta();
+        anchors.setCoarseChunkSize(4096);
+        anchors.setFineIndexMemory(0);
+        byte[] anchorPatch = anchors.compute(source, target);
+        assertArrayEquals(target, new GDiffPatcher().patch(source, anchorPatch));
+        assertTrue(anchorPatch.length > patch.length * 20);
+    }
+
+    private List<long[]> copies(byte[] source, byte[] target, int lazyLevel) throws IOException {
+        return copies(source, target, lazyLevel, 0);
+    }
+
+    private List<long[]> copies(byte[] source, byte[] target, int lazyLevel, int averageSize) throws IOException {
+        return copies(source, target, lazyLevel, averageSize, 1);
+    }
+
+    private List<long[]> copies(byte[] source, byte[] target, int lazyLevel, int averageSize, int maxCandidates)
+            throws IOException {
+        final List<long[]> copies = new ArrayList<long[]>();
+        Delta d = new Delta();
+        d.setLazyLevel(lazyLevel);
+        d.setMaxCandidates(maxCandidates);
+        d.setContentDefinedChunkSize(averageSize);
+        d.compute(new ByteBufferSeekableSource(source), new ByteArrayInputStream(target), new DiffWriter() {
+            public void addCopy(long offset, int length) {
+                copies.add(new long[]{offset, length});
+            }
+
+            public void addData(byte b) {
+            }
+
+            public void flush() {
+            }
+
+            public void close() {
+            }
+        }, 0, 0, true);
+        return copies;
+    }
+}
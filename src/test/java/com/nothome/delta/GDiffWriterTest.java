@@ -28,5 +28,21 @@ public class GDiffWriterTest {
         assertEquals((byte)0, ba[ba.length - 1]);
         assertEquals(5 + /*D*/1 + 2 + /*C*/4 + /*D*/1 + 3 + /*EOF*/1, os.toByteArray().length);
     }
+
+    @Test
+    public void testRetractData() throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        GDiffWriter tw = new GDiffWriter(os);
+        byte b[] = "abc".getBytes();
+        tw.addData(b[0]);
+        tw.addData(b[1]);
+        tw.addData(b[2]);
+        assertEquals(3, tw.retractable());
+        tw.retractData(2);
+        tw.addCopy(0x1f4, 0xa2);
+        assertEquals(0, tw.retractable());
+        tw.close();
+        assertEquals(5 + /*D*/1 + 1 + /*C*/4 + /*EOF*/1, os.toByteArray().length);
+    }
     
 }
@@ -0,0 +1,105 @@
+package com.nothome.delta;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link MappedChecksumIndex}.
+ */
+public class MappedChecksumIndexTest {
+
+    @Test
+    public void testPutGetGrow() throws Exception {
+        MappedChecksumIndex index = new MappedChecksumIndex(null);
+        assertEquals(-1, index.get(0));
+        Random random = new Random(2);
+        int[] keys = new int[50000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = random.nextInt();
+            index.put(keys[i], i);
+        }
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals(keys[i], keys[index.get(keys[i])]);
+        }
+        File file = index.getFile();
+        assertTrue(file.exists());
+        index.clear();
+        assertFalse(file.exists());
+        assertTrue(index.isEmpty());
+        assertEquals(-1, index.get(keys[0]));
+    }
+
+    @Test
+    public void testSerialize() throws Exception {
+        MappedChecksumIndex index = new MappedChecksumIndex(null, 100);
+        index.put(5, 0);
+        index.put(-5, 1);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream os = new ObjectOutputStream(bos);
+        os.writeObject(index);
+        os.close();
+        ObjectInputStream is = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()));
+        MappedChecksumIndex copy = (MappedChecksumIndex) is.readObject();
+        assertEquals(2, copy.size());
+        assertEquals(0, copy.get(5));
+        assertEquals(1, copy.get(-5));
+        assertTrue(!copy.getFile().equals(index.getFile()));
+        index.clear();
+        copy.clear();
+    }
+
+    @Test
+    public void testWriteAndMap() throws Exception {
+        ChecksumIndex index = new ChecksumIndex();
+        Random random = new Random(4);
+        int[] keys = new int[5000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = random.nextInt();
+            index.add(keys[i], i, 2);
+        }
+        File file = File.createTempFile("checksums-", ".test");
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        out.writeInt(42);
+        index.write(out);
+        out.close();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        assertEquals(42, raf.readInt());
+        MappedChecksumIndex mapped = MappedChecksumIndex.read(raf, file);
+        assertEquals(raf.length(), raf.getFilePointer());
+        raf.close();
+        assertEquals(index.size(), mapped.size());
+        int[] expected = new int[2];
+        int[] actual = new int[2];
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals(index.get(keys[i]), mapped.get(keys[i]));
+            assertEquals(index.getAll(keys[i], expected), mapped.getAll(keys[i], actual));
+            assertEquals(expected[0], actual[0]);
+        }
+        // adding copies the table, the saved file is kept
+        mapped.put(keys[0], 7);
+        assertEquals(7, mapped.get(keys[0]));
+        assertTrue(!file.equals(mapped.getFile()));
+        mapped.clear();
+        assertTrue(file.delete());
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        MappedChecksumIndex index = new MappedChecksumIndex(null);
+        ChecksumIndexTest.checkRemove(index);
+        index.clear();
+    }
+}
@@ -0,0 +1,52 @@
+package com.nothome.delta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link SuffixArrayDelta}.
+ */
+public class SuffixArrayDeltaTest {
+
+    @Test
+    public void testPatch() throws IOException {
+        Random random = new Random(17);
+        byte[] source = new byte[50000];
+        random.nextBytes(source);
+        byte[] target = new byte[60000];
+        random.nextBytes(target);
+        System.arraycopy(source, 1003, target, 7, 20000);
+        System.arraycopy(source, 30000, target, 30000, 15000);
+        for (byte[] s : new byte[][]{source, new byte[0], new byte[1]}) {
+            for (byte[] t : new byte[][]{target, new byte[0], new byte[1]}) {
+                byte[] patch = new SuffixArrayDelta().compute(s, t);
+                assertArrayEquals(t, new GDiffPatcher().patch(s, patch));
+            }
+        }
+    }
+
+    @Test
+    public void testShortMatches() throws IOException {
+        Random random = new Random(18);
+        byte[] source = new byte[20000];
+        random.nextBytes(source);
+        // short pieces of source between changed bytes, shorter than chunks
+        byte[] target = new byte[source.length];
+        for (int i = 0; i < target.length; i += 13) {
+            int len = Math.min(12, target.length - i);
+            System.arraycopy(source, (i * 7) % (source.length - 12), target, i, len);
+            if (i + 12 < target.length) {
+                target[i + 12] = (byte) random.nextInt();
+            }
+        }
+        byte[] patch = new SuffixArrayDelta().compute(source, target);
+        assertArrayEquals(target, new GDiffPatcher().patch(source, patch));
+        byte[] chunked = new Delta().compute(source, target);
+        assertTrue(patch.length < chunked.length * 3 / 4);
+    }
+}
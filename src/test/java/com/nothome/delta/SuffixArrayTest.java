@@ -0,0 +1,57 @@
+package com.nothome.delta;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link SuffixArray} against sorting the suffixes directly.
+ */
+public class SuffixArrayTest {
+
+    @Test
+    public void testBuild() {
+        Random random = new Random(16);
+        for (int alphabet : new int[]{1, 2, 3, 256}) {
+            for (int length = 0; length < 300; length += 1 + length / 4) {
+                byte[] text = new byte[length];
+                for (int i = 0; i < length; i++) {
+                    text[i] = (byte) random.nextInt(alphabet);
+                }
+                assertArrayEquals(sorted(text), SuffixArray.build(text));
+            }
+        }
+        byte[] repeated = "abracadabraabracadabra".getBytes();
+        assertArrayEquals(sorted(repeated), SuffixArray.build(repeated));
+    }
+
+    private int[] sorted(final byte[] text) {
+        Integer[] suffixes = new Integer[text.length];
+        for (int i = 0; i < text.length; i++) {
+            suffixes[i] = i;
+        }
+        Arrays.sort(suffixes, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                int i = a;
+                int j = b;
+                while ((i < text.length) && (j < text.length)) {
+                    int d = (text[i++] & 0xff) - (text[j++] & 0xff);
+                    if (d != 0) {
+                        return d;
+                    }
+                }
+                // the shorter suffix is a prefix of the longer one
+                return (text.length - i) - (text.length - j);
+            }
+        });
+        int[] sa = new int[text.length];
+        for (int i = 0; i < text.length; i++) {
+            sa[i] = suffixes[i];
+        }
+        return sa;
+    }
+}
@@ -0,0 +1,68 @@
+package com.nothome.delta;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link VirtualWriter} with {@link VirtualReader}.
+ */
+public class VirtualWriterTest {
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        long[][] copies = {{0, 100}, {100, 20}, {5, 1000}, {1L << 40, 7}, {3, 10}};
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        VirtualWriter writer = new VirtualWriter(new DataOutputStream(os));
+        for (int i = 0; i < copies.length; i++) {
+            writer.addCopy(copies[i][0], (int) copies[i][1]);
+            for (int j = 0; j < (i + 1) * 100; j++) {
+                writer.addData((byte) j);
+            }
+        }
+        writer.close();
+        // contiguous copies and short lengths take a few bytes each
+        assertTrue(os.size() < 50);
+        VirtualReader reader = new VirtualReader(new ByteArrayInputStream(os.toByteArray()));
+        for (int i = 0; i < copies.length; i++) {
+            assertEquals(1, reader.readOp());
+            assertEquals(copies[i][0], reader.readOffset());
+            assertEquals(copies[i][1], reader.readLength());
+            assertEquals(2, reader.readOp());
+            assertEquals((i + 1) * 100, reader.readLength());
+        }
+        assertEquals(3, reader.readOp());
+        reader.close();
+    }
+
+    @Test
+    public void testMergeAdjacentCopies() throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        VirtualWriter writer = new VirtualWriter(new DataOutputStream(os));
+        writer.addCopy(1000, 10);
+        writer.addCopy(1010, 20);
+        writer.addCopy(1030, 5);
+        // retracted data does not separate copies
+        writer.addData((byte) 1);
+        writer.retractData(writer.retractable());
+        writer.addCopy(1035, 5);
+        writer.addCopy(0, 7);
+        writer.close();
+        assertEquals(40 + 7, writer.totalLength);
+        VirtualReader reader = new VirtualReader(new ByteArrayInputStream(os.toByteArray()));
+        assertEquals(1, reader.readOp());
+        assertEquals(1000, reader.readOffset());
+        assertEquals(40, reader.readLength());
+        assertEquals(1, reader.readOp());
+        assertEquals(0, reader.readOffset());
+        assertEquals(7, reader.readLength());
+        assertEquals(3, reader.readOp());
+        reader.close();
+    }
+}
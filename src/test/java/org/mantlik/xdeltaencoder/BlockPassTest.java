@@ -0,0 +1,154 @@
+package org.mantlik.xdeltaencoder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.nothome.delta.ByteBufferSeekableSource;
+import com.nothome.delta.Delta;
+import com.nothome.delta.VirtualReader;
+import com.nothome.delta.VirtualWriter;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests parallel passes and merging of op logs by {@link BlockPass}.
+ */
+public class BlockPassTest {
+
+    private final List<File> files = new ArrayList<File>();
+
+    @After
+    public void tearDown() {
+        OpLogCodec.setMemoryLimit(0);
+        for (File file : files) {
+            OpLogCodec.delete(file);
+        }
+    }
+
+    @Test
+    public void testRunReleasesLogs() throws IOException {
+        OpLogCodec.setMemoryLimit(8 * 1024 * 1024);
+        Random random = new Random(17);
+        byte[] source = new byte[64 * 1024];
+        random.nextBytes(source);
+        // second half of the source, new data, first half
+        byte[] target = new byte[source.length + 1000];
+        random.nextBytes(target);
+        System.arraycopy(source, 32 * 1024, target, 0, 32 * 1024);
+        System.arraycopy(source, 0, target, 32 * 1024 + 1000, 32 * 1024);
+        File ops = log(new long[][]{{2, 0, target.length}});
+        BlockPass[] passes = new BlockPass[2];
+        File[] logs = new File[passes.length];
+        for (int i = 0; i < passes.length; i++) {
+            byte[] block = new byte[32 * 1024];
+            System.arraycopy(source, i * block.length, block, 0, block.length);
+            logs[i] = tempFile();
+            passes[i] = new BlockPass(new Delta(), new ByteBufferSeekableSource(block), i * block.length, ops,
+                    new ByteArrayInputStream(target), logs[i], OpLogCodec.NONE);
+        }
+        File output = tempFile();
+        assertEquals(source.length, BlockPass.run(passes, output, OpLogCodec.NONE));
+        assertOps(output, new long[][]{{1, 32 * 1024, 32 * 1024}, {2, 0, 1000}, {1, 0, 32 * 1024}});
+        // only the input and the merged op log are left in heap
+        for (File log : logs) {
+            assertFalse(OpLogCodec.inMemory(log));
+            assertFalse(log.exists());
+        }
+        assertEquals(2, OpLogCodec.memoryLogCount());
+        OpLogCodec.delete(ops);
+        OpLogCodec.delete(output);
+        assertEquals(0, OpLogCodec.memoryLogCount());
+    }
+
+    @Test
+    public void testFarthestCopy() throws IOException {
+        // copy 0-10 then data, data then copy 5-30
+        File a = log(new long[][]{{1, 1000, 10}, {2, 0, 20}});
+        File b = log(new long[][]{{2, 0, 5}, {1, 5000, 25}});
+        File output = tempFile();
+        assertEquals(30, BlockPass.merge(new File[]{a, b}, output, OpLogCodec.NONE));
+        // the second copy is entered 5 bytes in
+        assertOps(output, new long[][]{{1, 1000, 10}, {1, 5005, 20}});
+    }
+
+    @Test
+    public void testLongerCopyWins() throws IOException {
+        File a = log(new long[][]{{1, 100, 10}, {2, 0, 10}});
+        File b = log(new long[][]{{1, 700, 15}, {2, 0, 5}});
+        File output = tempFile();
+        assertEquals(15, BlockPass.merge(new File[]{a, b}, output, OpLogCodec.NONE));
+        assertOps(output, new long[][]{{1, 700, 15}, {2, 0, 5}});
+    }
+
+    @Test
+    public void testDataGaps() throws IOException {
+        File a = log(new long[][]{{2, 0, 10}, {1, 100, 10}, {2, 0, 10}});
+        File b = log(new long[][]{{2, 0, 25}, {1, 300, 5}});
+        File output = tempFile();
+        assertEquals(15, BlockPass.merge(new File[]{a, b}, output, OpLogCodec.NONE));
+        // data stays only where neither log has a copy
+        assertOps(output, new long[][]{{2, 0, 10}, {1, 100, 10}, {2, 0, 5}, {1, 300, 5}});
+    }
+
+    @Test
+    public void testDifferentTargetLength() throws IOException {
+        File a = log(new long[][]{{2, 0, 10}});
+        File b = log(new long[][]{{1, 10, 12}});
+        try {
+            BlockPass.merge(new File[]{a, b}, tempFile(), OpLogCodec.NONE);
+            fail("merged op logs of different length");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().contains("different target length"));
+        }
+    }
+
+    /*
+     * Op log of {op, offset, length} with 1 for copy and 2 for data
+     */
+    private File log(long[][] ops) throws IOException {
+        File file = tempFile();
+        VirtualWriter writer = new VirtualWriter(OpLogCodec.output(file, OpLogCodec.NONE));
+        for (long[] op : ops) {
+            if (op[0] == 1) {
+                writer.addCopy(op[1], (int) op[2]);
+            } else {
+                for (int i = 0; i < op[2]; i++) {
+                    writer.addData((byte) i);
+                }
+            }
+        }
+        writer.close();
+        return file;
+    }
+
+    private void assertOps(File file, long[][] expected) throws IOException {
+        VirtualReader reader = OpLogCodec.reader(file, OpLogCodec.NONE);
+        try {
+            for (long[] op : expected) {
+                assertEquals(op[0], reader.readOp());
+                if (op[0] == 1) {
+                    assertEquals(op[1], reader.readOffset());
+                }
+                assertEquals(op[2], reader.readLength());
+            }
+            assertEquals(3, reader.readOp());
+        } finally {
+            reader.close();
+        }
+    }
+
+    private File tempFile() throws IOException {
+        File file = File.createTempFile("blockpass-", ".vdiff");
+        files.add(file);
+        return file;
+    }
+}
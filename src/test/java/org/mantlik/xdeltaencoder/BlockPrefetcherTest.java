@@ -0,0 +1,83 @@
+package org.mantlik.xdeltaencoder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests background reads of source blocks by {@link BlockPrefetcher}.
+ */
+public class BlockPrefetcherTest {
+
+    private File file;
+    private byte[] data;
+
+    @Before
+    public void setUp() throws IOException {
+        data = new byte[100000];
+        new Random(24).nextBytes(data);
+        file = File.createTempFile("prefetch-", ".test");
+        FileOutputStream os = new FileOutputStream(file);
+        os.write(data);
+        os.close();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testTake() throws IOException {
+        BlockPrefetcher prefetcher = new BlockPrefetcher(file);
+        byte[] buffer = new byte[30000];
+        prefetcher.start(40000, buffer);
+        assertEquals(buffer.length, prefetcher.take(40000));
+        assertArrayEquals(Arrays.copyOfRange(data, 40000, 70000), buffer);
+        // the last block is short
+        prefetcher.start(90000, buffer);
+        assertEquals(10000, prefetcher.take(90000));
+        assertArrayEquals(Arrays.copyOfRange(data, 90000, 100000), Arrays.copyOf(buffer, 10000));
+    }
+
+    @Test
+    public void testTakeOtherPosition() throws IOException {
+        BlockPrefetcher prefetcher = new BlockPrefetcher(file);
+        byte[] buffer = new byte[30000];
+        prefetcher.start(0, buffer);
+        assertEquals(-1, prefetcher.take(30000));
+        // the read was cancelled, nothing left to take
+        assertEquals(-1, prefetcher.take(0));
+        assertEquals(-1, new BlockPrefetcher(file).take(0));
+        // a cancelled read leaves the prefetcher usable
+        prefetcher.start(30000, buffer);
+        prefetcher.cancel();
+        prefetcher.start(60000, buffer);
+        assertEquals(buffer.length, prefetcher.take(60000));
+        assertArrayEquals(Arrays.copyOfRange(data, 60000, 90000), buffer);
+    }
+
+    @Test
+    public void testError() {
+        File missing = new File(file.getPath() + ".missing");
+        BlockPrefetcher prefetcher = new BlockPrefetcher(missing);
+        prefetcher.start(0, new byte[1000]);
+        try {
+            prefetcher.take(0);
+            fail("error not passed to take");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().contains(missing.getName()));
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package org.mantlik.xdeltaencoder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.nothome.delta.BucketChecksumIndex;
+import com.nothome.delta.ChecksumFilter;
+import com.nothome.delta.ChecksumIndex;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link MemoryPlanner}.
+ */
+public class MemoryPlannerTest {
+
+    private static final long MB = 1024 * 1024;
+    private static final long GB = 1024 * MB;
+
+    @Test
+    public void testLargeBudget() {
+        MemoryPlanner plan = new MemoryPlanner(8 * GB, 16, true, false, true);
+        plan.plan(100 * GB, MemoryPlanner.MAX_BLOCKSIZE, 0, 1, true, -1);
+        // the largest byte array, no room for a second one
+        assertEquals(MemoryPlanner.MAX_BLOCKSIZE, plan.getBlockSize());
+        assertEquals(1, plan.getParallelBlocks());
+        assertFalse(plan.isPrefetch());
+        assertEquals(512 * MB, plan.getOpLogMemory());
+        assertEquals(0, plan.getTargetBlockSize());
+        assertEquals((7616 * MB - MemoryPlanner.MAX_BLOCKSIZE) / 2, plan.getIndexMemory());
+        int chunkSize = plan.chunkSize(MemoryPlanner.MAX_BLOCKSIZE);
+        assertTrue(plan.indexMemoryFor(MemoryPlanner.MAX_BLOCKSIZE / chunkSize, false) <= plan.getIndexMemory());
+        assertTrue(plan.toString().contains("(chunk size " + chunkSize + ", 17.00 bytes per chunk)"));
+    }
+
+    @Test
+    public void testParallelBlocksShrink() {
+        MemoryPlanner plan = new MemoryPlanner(8 * GB, 16, true, false, true);
+        plan.plan(100 * GB, MemoryPlanner.MAX_BLOCKSIZE, 0, 4, true, -1);
+        // half of the rest shared by four blocks
+        assertEquals(4, plan.getParallelBlocks());
+        assertEquals(952 * MB, plan.getBlockSize());
+        assertFalse(plan.isPrefetch());
+        assertEquals(1904 * MB, plan.getIndexMemory());
+        // fewer blocks than wanted in a small source
+        plan.plan(3 * MB, 128 * MB, 0, 4, true, -1);
+        assertEquals(1, plan.getParallelBlocks());
+        assertEquals(3 * MB, plan.getBlockSize());
+        assertFalse(plan.isPrefetch());
+    }
+
+    @Test
+    public void testSmallBudget() {
+        MemoryPlanner plan = new MemoryPlanner(64 * MB, 16, true, false, true);
+        plan.plan(GB, 128 * MB, 32 * MB, 1, true, -1);
+        // reserve 8, op logs 4 and target block 16 leave 36 mb
+        assertEquals(4 * MB, plan.getOpLogMemory());
+        assertEquals(16 * MB, plan.getTargetBlockSize());
+        assertEquals(18 * MB, plan.getBlockSize());
+        assertFalse(plan.isPrefetch());
+        assertEquals(9 * MB, plan.getIndexMemory());
+        assertTrue(plan.chunkSize(18 * MB) > 16);
+        // op logs are limited to a quarter of the budget
+        plan.plan(GB, 128 * MB, 0, 1, true, GB);
+        assertEquals(16 * MB, plan.getOpLogMemory());
+    }
+
+    @Test
+    public void testTinyBudget() {
+        MemoryPlanner plan = new MemoryPlanner(4 * MB, 16, true, false, true);
+        plan.plan(GB, 128 * MB, 0, 1, true, -1);
+        // never below a megabyte
+        assertEquals(MB, plan.getBlockSize());
+    }
+
+    @Test
+    public void testPrefetch() {
+        MemoryPlanner plan = new MemoryPlanner(512 * MB, 16, true, false, true);
+        plan.plan(GB, 16 * MB, 0, 1, true, -1);
+        assertEquals(16 * MB, plan.getBlockSize());
+        assertTrue(plan.isPrefetch());
+        // two blocks out of 416 mb
+        assertEquals(192 * MB, plan.getIndexMemory());
+        assertTrue(plan.toString().contains("+ prefetch"));
+    }
+
+    @Test
+    public void testSourceInFile() {
+        MemoryPlanner plan = new MemoryPlanner(512 * MB, 16, true, false, true);
+        plan.plan(10 * GB, 10 * GB, 0, 1, false, -1);
+        // blocks are not read to heap, whatever their size
+        assertEquals(10 * GB, plan.getBlockSize());
+        assertFalse(plan.isPrefetch());
+        assertEquals(208 * MB, plan.getIndexMemory());
+    }
+
+    @Test
+    public void testIndexOffHeap() {
+        MemoryPlanner plan = new MemoryPlanner(64 * MB, 16, false, false, false);
+        plan.plan(GB, 128 * MB, 32 * MB, 1, true, -1);
+        // index segments on disk only
+        assertEquals(16, plan.chunkSize(GB));
+        plan = new MemoryPlanner(64 * MB, 16, false, false, true);
+        plan.plan(GB, 128 * MB, 32 * MB, 1, true, -1);
+        // a byte of filter per chunk in 9 mb, rounded up to a power of two
+        assertEquals(128, plan.chunkSize(GB));
+        assertEquals(8 * MB, plan.indexMemoryFor(GB / 128, false));
+        assertTrue(plan.toString().contains("bytes per chunk on heap"));
+    }
+
+    @Test
+    public void testIndexMemory() {
+        MemoryPlanner plan = new MemoryPlanner(64 * MB, 16, true, false, true);
+        plan.plan(GB, 128 * MB, 32 * MB, 1, true, -1);
+        // table and filter of 8 mb chunks
+        long chunks = 1024 * 1024;
+        assertEquals(ChecksumIndex.memoryFor(chunks) + ChecksumFilter.memoryFor(chunks),
+                plan.indexMemoryFor(chunks, false));
+        // tags of 64 bit hashes add 4 bytes per chunk
+        assertEquals(plan.indexMemoryFor(chunks, false) + 4 * (chunks + 1), plan.indexMemoryFor(chunks, true));
+        MemoryPlanner bucketed = new MemoryPlanner(64 * MB, 16, true, true, true);
+        bucketed.plan(GB, 128 * MB, 32 * MB, 1, true, -1);
+        assertEquals(BucketChecksumIndex.memoryFor(chunks) + ChecksumFilter.memoryFor(chunks),
+                bucketed.indexMemoryFor(chunks, false));
+    }
+
+    @Test
+    public void testChunksFit() {
+        for (boolean bucketIndex : new boolean[] {false, true}) {
+            for (boolean filter : new boolean[] {false, true}) {
+                MemoryPlanner plan = new MemoryPlanner(64 * MB, 16, true, bucketIndex, filter);
+                plan.plan(GB, 128 * MB, 32 * MB, 1, true, -1);
+                for (boolean tagged : new boolean[] {false, true}) {
+                    int chunkSize = plan.chunkSize(18 * MB, tagged);
+                    assertTrue(plan.indexMemoryFor(18 * MB / chunkSize, tagged) <= plan.getIndexMemory());
+                    // not much larger than needed
+                    int smaller = chunkSize - chunkSize / 8;
+                    assertTrue((smaller <= 16)
+                            || (plan.indexMemoryFor(18 * MB / smaller, tagged) > plan.getIndexMemory()));
+                }
+                // tags take more room
+                assertTrue(plan.chunkSize(18 * MB, true) > plan.chunkSize(18 * MB, false));
+            }
+        }
+    }
+}